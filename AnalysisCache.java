@@ -0,0 +1,275 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+
+// Results of the ANALYSIS PHASE kept on disk, so running preview and then full on the same episode only
+// analyzes it once. Entries are small properties files named after a key made of:
+//
+//   - a hash of the decoded PCM up to the end of the analysis range (every sample of both channels,
+//     before normalizing), which preview and analysis decode as well as full, and
+//   - a hash of everything else the results depend on: the whole file's peak (what the normalize
+//     before the analysis goes by), the analysis range, the band and target settings, the loudness
+//     target and which analysis ran (parallel, serial or streaming, which differ in the last bits).
+//
+// So preview, then full, on the same episode share an entry.
+//
+// Floats are stored with Float.toString, which reads back to the same bits, so a cached run gives the
+// same output as the run that filled the cache.
+//
+// An entry decides the gains, so anyone who can write to the directory can change what a job puts out.
+// The directory is made readable only by its owner, and is only used if it's ours and nobody else can
+// write to it (on filesystems with POSIX permissions).
+public class AnalysisCache
+{
+	private static final int VERSION = 3;		// Bump when what's stored or how it's computed changes
+	private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	File directory;
+
+	public static class Entry
+	{
+		float RMSL, RMSR;
+		float[] bandRMS = new float[StereoPair.BANDS_HZ.length];
+		float[] bandMult = new float[StereoPair.BANDS_HZ.length];
+		float overallGainFactor;
+		double loudness;			// Integrated LUFS of the analysis range
+	}
+
+
+	// Hashes the samples going by before an end position, in order. Read-only.
+	public static class ContentHash implements BlockStage
+	{
+		long hash = 0;
+		long frames = 0;
+		int end;
+
+		public ContentHash(int endPosition)
+		{
+			end = endPosition;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			to = Math.min(to, from + Math.max(0, end-position));
+			long h = hash;
+			float[] left = block[0];
+			float[] right = block[1];
+			for (int i=from;i<to;i++)
+			{
+				h = (h ^ Float.floatToRawIntBits(left[i])) * MULTIPLIER;
+				h = (h ^ Float.floatToRawIntBits(right[i])) * MULTIPLIER;
+			}
+			hash = h;
+			frames += to-from;
+		}
+
+		public long getHash()
+		{
+			return mix(hash ^ frames);
+		}
+	}
+
+
+	public AnalysisCache(String directoryName)
+	{
+		directory = new File(directoryName);
+	}
+
+
+	// Hash of the store up to the end position, as a ContentHash would see it
+	public static long hash(SampleStore samples, int end)
+	{
+		end = Math.min(end, samples.getLength());
+		ContentHash hash = new ContentHash(end);
+		float[][] block = new float[2][8192];
+		for (int pos=0;pos<end;pos+=8192)
+		{
+			int frames = Math.min(8192, end-pos);
+			samples.read(block, 0, pos, frames);
+			hash.process(block, 0, frames, pos);
+		}
+		return hash.getHash();
+	}
+
+
+	public static String key(long contentHash, float filePeak, String analysis, int start, int end, float sampleRate, Options options)
+	{
+		String parameters = "v"+VERSION
+			+" peak="+filePeak
+			+" analysis="+analysis
+			+" range="+start+"-"+end
+			+" rate="+sampleRate
+			+" bands="+Arrays.toString(StereoPair.BANDS_HZ)
+			+" q="+Arrays.toString(StereoPair.BANDS_Q)
+			+" ratios="+Arrays.toString(StereoPair.BANDS_TARGET_RATIO)
+			+" rmsTarget="+StereoPair.RMS_TARGET
+			+" loudnessTarget="+options.loudnessTarget;
+
+		long h = 0;
+		for (int i=0;i<parameters.length();i++)
+		{
+			h = (h ^ parameters.charAt(i)) * MULTIPLIER;
+		}
+		return String.format("%016x-%016x", contentHash, mix(h));
+	}
+
+
+	// The entry for the key, or null if there isn't a usable one
+	public Entry load(String key)
+	{
+		File file = new File(directory, key+".properties");
+		if (!file.exists() || !isPrivate()) return null;
+
+		Properties p = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				p.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+
+			Entry e = new Entry();
+			e.RMSL = Float.parseFloat(p.getProperty("RMSL"));
+			e.RMSR = Float.parseFloat(p.getProperty("RMSR"));
+			for (int i=0;i<e.bandRMS.length;i++)
+			{
+				e.bandRMS[i] = Float.parseFloat(p.getProperty("bandRMS."+i));
+				e.bandMult[i] = Float.parseFloat(p.getProperty("bandMult."+i));
+			}
+			e.overallGainFactor = Float.parseFloat(p.getProperty("overallGainFactor"));
+			e.loudness = Double.parseDouble(p.getProperty("loudness"));
+			return e;
+		}
+		catch (Exception ex)
+		{
+			// Unreadable or from something else, so analyze again (and overwrite it)
+			log("Ignoring analysis cache entry "+file+": "+ex);
+			return null;
+		}
+	}
+
+
+	// Failing to save only costs the next run its shortcut, so that's logged rather than thrown
+	public void save(String key, Entry e)
+	{
+		Properties p = new Properties();
+		p.setProperty("RMSL", Float.toString(e.RMSL));
+		p.setProperty("RMSR", Float.toString(e.RMSR));
+		for (int i=0;i<e.bandRMS.length;i++)
+		{
+			p.setProperty("bandRMS."+i, Float.toString(e.bandRMS[i]));
+			p.setProperty("bandMult."+i, Float.toString(e.bandMult[i]));
+		}
+		p.setProperty("overallGainFactor", Float.toString(e.overallGainFactor));
+		p.setProperty("loudness", Double.toString(e.loudness));
+
+		try
+		{
+			if (!directory.exists())
+			{
+				if (isPosix(directory))
+				{
+					Files.createDirectories(directory.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				}
+				else
+				{
+					directory.mkdirs();
+				}
+			}
+			if (!isPrivate()) return;
+
+			// Written aside and renamed, so another job never reads half an entry
+			File temp = File.createTempFile(key, ".tmp", directory);
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				p.store(out, "BetterBot analysis");
+			}
+			finally
+			{
+				out.close();
+			}
+			File file = new File(directory, key+".properties");
+			if (!temp.renameTo(file))
+			{
+				file.delete();
+				if (!temp.renameTo(file)) temp.delete();
+			}
+			log("Analysis saved to cache: "+file);
+		}
+		catch (IOException ex)
+		{
+			log("Couldn't save analysis cache entry: "+ex);
+		}
+	}
+
+
+	// The directory is ours and only we can write to it, checked where the filesystem can say. Logs why not.
+	public boolean isPrivate()
+	{
+		if (!isPosix(directory)) return true;
+		try
+		{
+			PosixFileAttributes attributes = Files.readAttributes(directory.toPath(), PosixFileAttributes.class);
+			String user = System.getProperty("user.name");
+			if (!attributes.owner().getName().equals(user))
+			{
+				log("Not using analysis cache "+directory+": owned by "+attributes.owner().getName()+", not "+user);
+				return false;
+			}
+			Set<PosixFilePermission> permissions = attributes.permissions();
+			if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+			{
+				log("Not using analysis cache "+directory+": others can write to it ("+PosixFilePermissions.toString(permissions)+")");
+				return false;
+			}
+			return true;
+		}
+		catch (IOException ex)
+		{
+			log("Not using analysis cache "+directory+": "+ex);
+			return false;
+		}
+	}
+
+
+	// The nearest existing directory at or above the file has POSIX permissions
+	private static boolean isPosix(File file)
+	{
+		File f = file.getAbsoluteFile();
+		while (f != null && !f.exists()) f = f.getParentFile();
+		if (f == null) return false;
+		return Files.getFileAttributeView(f.toPath(), PosixFileAttributeView.class) != null;
+	}
+
+
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
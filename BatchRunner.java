@@ -0,0 +1,145 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Processes a list or directory of episodes in one JVM, on a pool of worker threads, so a nightly
+// backlog pays for JVM startup and JIT warm-up once instead of once per file.
+//
+//   java BetterBot batch <manifest or directory> <output directory> <mode> [--workers=N] [options]
+//
+// A manifest has one input file per line, optionally followed by a tab and an output file.
+// Blank lines and lines starting with # are skipped. Without an output file, the output goes to the
+// output directory under the input's name.
+public class BatchRunner
+{
+	public static int run(String[] args) throws Exception
+	{
+		long startTime = System.nanoTime();
+
+		log("************************************************");
+		log("BATCH MODE");
+		log("************************************************");
+
+		String source = args[1];
+		String outputDirectory = args[2];
+		BetterBot.Mode mode = BetterBot.parseMode(args[3]);
+		Options options = Options.parse(args, 4);
+
+		List<Job> jobs = readJobs(source, outputDirectory, mode, options);
+		log("Jobs="+jobs.size());
+		log("Workers="+options.workers);
+		for (Job job : jobs)
+		{
+			job.concurrentJobs = Math.min(options.workers, jobs.size());
+			if (options.workers > 1) job.logTag = job.inputFile;
+		}
+
+		ExecutorService workers = Executors.newFixedThreadPool(options.workers);
+		List<Future<Integer>> results = workers.invokeAll(jobs);
+		workers.shutdown();
+
+		// Worst status wins: error, then too long, then OK
+		int batchStatus = BetterBot.RETURN_OK;
+		double audioSeconds = 0;
+		int ok = 0, tooLong = 0, errors = 0;
+
+		log("************************************************");
+		log("BATCH RESULTS");
+		log("************************************************");
+		for (int i=0;i<jobs.size();i++)
+		{
+			Job job = jobs.get(i);
+			int status;
+			try
+			{
+				status = results.get(i).get();
+			}
+			catch (ExecutionException e)
+			{
+				// Job.call() catches its own failures, so this is only something it let through
+				log("Exception!: "+job.inputFile+": "+e.getCause());
+				status = BetterBot.RETURN_ERROR;
+			}
+			log(status + "\t" + String.format("%.1f", job.seconds) + "s\t" + job.inputFile);
+
+			if (status == BetterBot.RETURN_OK)
+			{
+				ok++;
+				audioSeconds += job.getAudioSeconds();
+			}
+			else if (status == BetterBot.RETURN_TOO_LONG)
+			{
+				tooLong++;
+				if (batchStatus == BetterBot.RETURN_OK) batchStatus = BetterBot.RETURN_TOO_LONG;
+			}
+			else
+			{
+				errors++;
+				batchStatus = BetterBot.RETURN_ERROR;
+			}
+		}
+
+		double wallSeconds = (System.nanoTime() - startTime) / 1000000000.0;
+		log("------------------------------------------------");
+		log("OK="+ok+" too long="+tooLong+" errors="+errors);
+		log("Audio hours processed="+String.format("%.3f", audioSeconds/3600.0));
+		log("Wall hours="+String.format("%.3f", wallSeconds/3600.0));
+		log("Throughput (audio-hours per wall-hour)="+String.format("%.1f", audioSeconds/wallSeconds));
+		log("------------------------------------------------");
+
+		return batchStatus;
+	}
+
+
+	private static List<Job> readJobs(String source, String outputDirectory, BetterBot.Mode mode, Options options) throws Exception
+	{
+		List<Job> jobs = new ArrayList<Job>();
+		File sourceFile = new File(source);
+
+		if (sourceFile.isDirectory())
+		{
+			File[] files = sourceFile.listFiles();
+			Arrays.sort(files);
+			for (File f : files)
+			{
+				String name = f.getName().toUpperCase();
+				boolean audio = name.endsWith(".WAV") || name.endsWith(".AIF") || name.endsWith(".AIFF");
+				if (f.isFile() && audio && name.indexOf("-CONVERTED.") < 0)
+				{
+					jobs.add(new Job(f.getPath(), new File(outputDirectory, f.getName()).getPath(), mode, options));
+				}
+			}
+		}
+		else
+		{
+			BufferedReader reader = new BufferedReader(new FileReader(sourceFile));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+
+				String[] fields = line.split("\t");
+				String input = fields[0].trim();
+				String output = (fields.length > 1) ? fields[1].trim() : new File(outputDirectory, new File(input).getName()).getPath();
+				jobs.add(new Job(input, output, mode, options));
+			}
+			reader.close();
+		}
+
+		return jobs;
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
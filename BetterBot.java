@@ -9,34 +9,51 @@ import javax.sound.sampled.*;
 
 public class BetterBot
 {
-	public static StereoPair s;
 	public static enum Mode { ANALYSIS, PREVIEW, FULL };
 
 	// Return codes
-	private static final int RETURN_OK = 0;
-	private static final int RETURN_ERROR = 1;
-	private static final int RETURN_TOO_LONG = 2;
+	static final int RETURN_OK = 0;
+	static final int RETURN_ERROR = 1;
+	static final int RETURN_TOO_LONG = 2;
 
-	private static final int ANALYZE_START_MIN = 1;	 // Start one minute in, to avoid any jingles
-	private static final int ANALYZE_END_MIN = 15; // Stop at minute 15
+	static final int ANALYZE_START_MIN = 1;	 // Start one minute in, to avoid any jingles
+	static final int ANALYZE_END_MIN = 15; // Stop at minute 15
 
 	private static final int PROCESS_PREVIEW_START_MIN = 0;
 	private static final int PROCESS_PREVIEW_END_MIN = 2;
 
 	private static final int PROCESS_FULL_START_MIN = 0;
-	private static final int PROCESS_FULL_END_MIN = 60;
 
-	private static final int MAX_LENGTH_MIN = 60;
+	static final int MAX_LENGTH_MIN = 8*60;		// Default for --max-length-min
 
-	private static final int THREAD_TIMEOUT_MS = 120000;  // Timeout for analysis threads
-	private static final int RMS_MODE = 0;	// Analysis mode for multithreaded analysis
-	private static final int EQ_MODE = 1;	// Analysis mode for multithreaded analysis
+	// Frame positions are ints, so nothing past about 13.5 hours at 44.1khz (12.4 at 48khz)
+	private static final int MAX_FRAMES = Integer.MAX_VALUE - 1;
+
+	// In memory, episodes that would take more than this fraction of the heap (their job's share of it,
+	// in batch and server mode) go off-heap instead
+	private static final double HEAP_FRACTION = 0.5;
+
+	// Which job the current thread is working for, when several share the log (batch and server modes)
+	private static final ThreadLocal<String> logTag = new ThreadLocal<String>();
 
 
 	public static void main(String[] args)
 	{
 		try
 		{
+			if (args[0].equals("batch"))
+			{
+				System.exit(BatchRunner.run(args));
+			}
+			if (args[0].equals("serve"))
+			{
+				System.exit(JobServer.run(args));
+			}
+			if (args[0].equals("stream"))
+			{
+				System.exit(LiveStream.run(args));
+			}
+
 			long startTime = System.nanoTime();
 
 			log("************************************************");
@@ -49,134 +66,260 @@ public class BetterBot
 			String outputFile = args[1];
 			log("outputFile="+outputFile);
 
-			String modeString = args[2];
-			Mode mode = Mode.ANALYSIS;
-			if (modeString.equals("analysis"))
-			{
-				log("Analysis mode!");
-				mode = Mode.ANALYSIS;
-			}
-			else if (modeString.equals("preview"))
-			{
-				log("Preview mode!");
-				mode = Mode.PREVIEW;
-			}
-			else if (modeString.equals("full"))
+			Mode mode = parseMode(args[2]);
+
+			Options options = Options.parse(args, 3);
+			log("Kernels="+Kernels.INSTANCE.getName());
+
+			int result = runJob(new Job(inputFile, outputFile, mode, options));
+			if (result != RETURN_OK)
 			{
-				log("Full mode!");
-				mode = Mode.FULL;
+				System.exit(result);
 			}
 
-			log("************************************************");
-			log("CONVERSION PHASE");
-			log("************************************************");
+			/////////////////////////////////////////////////////////////////////////////////
+			/////////////////////////////////////////////////////////////////////////////////
 
-			log("Converting to 44.1khz, 16-bit, stereo...");
+			// Stats
+			long endTime = System.nanoTime();
+			long elapsedTime = endTime - startTime;
+			double seconds = (double)elapsedTime / 1000000000.0;
+			log("------------------------------------------------");
+			log("FINISHED!");
+			log("Processing time in seconds = " + seconds);
+			log("------------------------------------------------");
 
-			File conversionFile = new File(inputFile);
+			Runtime runtime = Runtime.getRuntime();
+			NumberFormat format = NumberFormat.getInstance();
+			long maxMemory = runtime.maxMemory();
+			long allocatedMemory = runtime.totalMemory();
+			long freeMemory = runtime.freeMemory();
+			log("free memory: " + format.format(freeMemory / 1024));
+			log("allocated memory: " + format.format(allocatedMemory / 1024));
+			log("max memory: " + format.format(maxMemory / 1024));
+			log("total free memory: " + format.format((freeMemory + (maxMemory - allocatedMemory)) / 1024));
+			log("------------------------------------------------");
 
-			AudioInputStream ais = AudioSystem.getAudioInputStream(conversionFile);
+			System.exit(RETURN_OK);
+		}
+		catch (Exception e)
+		{
+			log("Exception!: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(RETURN_ERROR);
+		}
+	}
 
-			AudioFileFormat.Type fileType;
-			String extension;
-			if (inputFile.toUpperCase().indexOf(".WAV") > 0)
-			{
-				fileType = AudioFileFormat.Type.WAVE;
-				extension = ".wav";
-			}
-			else if (inputFile.toUpperCase().indexOf(".AIF") > 0)
-			{
-				fileType = AudioFileFormat.Type.AIFF;
-				extension = ".aif";
-			}
-			else
-			{
-				throw new Exception("Unsupported file type.");
-			}
 
-			int originalChannelCount = ais.getFormat().getChannels();
-			if (originalChannelCount > 2)
-			{
-				throw new Exception("Multi-channel audio not supported.");
-			}
+	static Mode parseMode(String modeString)
+	{
+		Mode mode = Mode.ANALYSIS;
+		if (modeString.equals("analysis"))
+		{
+			log("Analysis mode!");
+			mode = Mode.ANALYSIS;
+		}
+		else if (modeString.equals("preview"))
+		{
+			log("Preview mode!");
+			mode = Mode.PREVIEW;
+		}
+		else if (modeString.equals("full"))
+		{
+			log("Full mode!");
+			mode = Mode.FULL;
+		}
+		return mode;
+	}
 
-			boolean originalMono = (originalChannelCount == 1);
 
-			AudioFormat outputFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100.0f, 16, 2, 4, 44100.0f, false);
-			String convertedFilename = removeExtension(inputFile) + "-converted" + extension;
-			AudioInputStream targetStream = AudioSystem.getAudioInputStream(outputFormat, ais);
-			AudioSystem.write(targetStream, fileType, new File(convertedFilename));
-			targetStream.close();
-			log("Saved as: "+convertedFilename);
+	// Converts and processes one file, returns one of the RETURN_ codes
+	static int runJob(Job job) throws Exception
+	{
+		JobEvent event = JobEvent.begin(job);
+		int result = RETURN_ERROR;
+		try
+		{
+			result = convertAndProcess(job);
+			return result;
+		}
+		finally
+		{
+			event.finish(job, result);
+		}
+	}
 
-			log("************************************************");
-			log("ANALYSIS PHASE");
-			log("************************************************");
 
-			// Load file and init
-			s = new StereoPair(convertedFilename);
+	private static int convertAndProcess(Job job) throws Exception
+	{
+		String inputFile = job.inputFile;
+
+		log("************************************************");
+		log("CONVERSION PHASE");
+		log("************************************************");
+
+		AudioFileFormat.Type fileType;
+		String extension;
+		if (inputFile.toUpperCase().indexOf(".WAV") > 0)
+		{
+			fileType = AudioFileFormat.Type.WAVE;
+			extension = ".wav";
+		}
+		else if (inputFile.toUpperCase().indexOf(".AIF") > 0)
+		{
+			fileType = AudioFileFormat.Type.AIFF;
+			extension = ".aif";
+		}
+		else
+		{
+			throw new Exception("Unsupported file type.");
+		}
+
+		// Only the header is needed here; the samples are converted as they're loaded
+		AudioFileFormat header = readHeader(inputFile);
+		int originalChannelCount = header.getFormat().getChannels();
+
+		// Processed at the file's own rate, so it's only resampled if it's below 44.1khz
+		float sampleRate = FrameReader.processingRate(header.getFormat().getSampleRate());
+		job.sampleRate = sampleRate;
+		log("Sample rate="+header.getFormat().getSampleRate()+", processing at "+sampleRate);
+
+		if (originalChannelCount > 2)
+		{
+			return processMultiTrack(inputFile, job, originalChannelCount, convertedFrameLength(header, sampleRate), sampleRate);
+		}
+
+		boolean originalMono = (originalChannelCount == 1);
+
+		// Too long can be told from the header, before anything is decoded
+		long headerFrames = convertedFrameLength(header, sampleRate);
+		if (tooLong(headerFrames, fileType, job.options, sampleRate))
+		{
+			return RETURN_TOO_LONG;
+		}
 
-			if ((s.channel[0].length) > s.minToSamples(MAX_LENGTH_MIN))
+		String convertedFilename = inputFile;
+		if (job.options.keepConverted)
+		{
+			// Write the intermediate file as well, for debugging
+			convertedFilename = removeExtension(inputFile) + "-converted" + extension;
+			StageEvent event = StageEvent.begin("convert");
+			AudioInputStream ais = AudioSystem.getAudioInputStream(new File(inputFile));
+			try
+			{
+				AudioInputStream targetStream = AudioSystem.getAudioInputStream(FrameReader.convertedFormat(sampleRate), ais);
+				AudioSystem.write(targetStream, fileType, new File(convertedFilename));
+			}
+			finally
 			{
-				log("len="+s.channel[0].length);
-				log("max="+s.minToSamples(MAX_LENGTH_MIN));
-				log("File too long!");
-				System.exit(RETURN_TOO_LONG);
+				ais.close();
 			}
+			event.finish(Math.max(0, headerFrames));
+			log("Saved as: "+convertedFilename);
+		}
+
+		if (job.options.streaming)
+		{
+			return processStreaming(convertedFilename, job, originalMono, sampleRate);
+		}
+		else
+		{
+			return processInMemory(convertedFilename, job, originalMono, headerFrames, sampleRate);
+		}
+	}
 
-			// Normalize first
-			s.normalize();
 
-			// Set analysis range
-			s.setProcessStart(s.minToSamples(ANALYZE_START_MIN));
-			s.setProcessEnd(s.minToSamples(ANALYZE_END_MIN));
+	private static int processInMemory(String convertedFilename, Job job, boolean originalMono, long headerFrames, float sampleRate) throws Exception
+	{
+		String outputFile = job.outputFile;
+		Mode mode = job.mode;
+
+		log("************************************************");
+		log("ANALYSIS PHASE");
+		log("************************************************");
+
+		// Load file and init
+		// Long episodes go off-heap whether or not it was asked for, so the heap doesn't have to fit them
+		boolean offHeap = job.options.offHeap;
+		long heapNeeded = Math.min(headerFrames, decodeFrames(mode, sampleRate))*8;
+		if (!offHeap && heapNeeded > heapShare(job))
+		{
+			log("Too long to hold on the heap ("+heapNeeded/(1024*1024)+"MB), using off-heap samples");
+			offHeap = true;
+		}
 
-			// Start RMS analysis threads running (one for left, one for right)...
-			AnalysisThread[] rmsAnalysisThreads = new AnalysisThread[2];
-			for (int j=0;j<rmsAnalysisThreads.length;j++)
+		SampleStore store;
+		if (offHeap)
+		{
+			log("Off-heap sample store, RAM budget="+job.options.ramBudgetMb+"MB");
+			store = new OffHeapSampleStore(job.options.ramBudgetMb*1024L*1024L);
+		}
+		else
+		{
+			store = new HeapSampleStore();
+		}
+		try
+		{
+			StereoPair s = new StereoPair(convertedFilename, store, decodeFrames(mode, sampleRate));
+			s.options = job.options;
+			job.audioFrames = s.getLength();
+
+			if (tooLong(s.getLength(), s.fileType, job.options, s.sampleRate))
 			{
-				rmsAnalysisThreads[j] = new AnalysisThread(RMS_MODE, j);
-				rmsAnalysisThreads[j].start();
+				return RETURN_TOO_LONG;
 			}
 
-			// Start EQ analysis threads running (one for each band)...
-			AnalysisThread[] eqAnalysisThreads = new AnalysisThread[StereoPair.BANDS_HZ.length];
-			for (int j=0;j<eqAnalysisThreads.length;j++)
+			// The whole file's peak, for the normalize before analysis. Preview and analysis stop decoding
+			// after the analysis window, so for a longer file that takes a read through the rest.
+			float filePeak = (s.getLength() < decodeFrames(mode, s.sampleRate)) ? s.getPeakLevel() : FrameReader.peak(convertedFilename);
+
+			// Results from an earlier run on the same audio, if there are any
+			AnalysisCache cache = null;
+			String cacheKey = null;
+			AnalysisCache.Entry cached = null;
+			if (job.options.analysisCache != null)
 			{
-				eqAnalysisThreads[j] = new AnalysisThread(EQ_MODE, j);
-				eqAnalysisThreads[j].start();
+				cache = new AnalysisCache(job.options.analysisCache);
+				String analysis = job.options.serialAnalysis ? "serial" : "parallel";
+				int analyzeEnd = StereoPair.minToSamples(ANALYZE_END_MIN, s.sampleRate);
+				cacheKey = AnalysisCache.key(AnalysisCache.hash(s.samples, analyzeEnd), filePeak, analysis, StereoPair.minToSamples(ANALYZE_START_MIN, s.sampleRate), analyzeEnd, s.sampleRate, job.options);
+				cached = cache.load(cacheKey);
 			}
 
-			// Join all analysis threads...
-			for (int i=0;i<rmsAnalysisThreads.length;i++)
+			// Normalize first
+			s.normalize(filePeak);
+
+			if (cached != null)
 			{
-				try
-				{
-					rmsAnalysisThreads[i].join(THREAD_TIMEOUT_MS);
-				}
-				catch (InterruptedException ignore)
-				{
-				}
+				log("Analysis found in cache: "+cacheKey);
+				s.setAnalysis(cached);
 			}
-
-			for (int i=0;i<eqAnalysisThreads.length;i++)
+			else
 			{
-				try
+				// Set analysis range
+				s.setProcessStart(StereoPair.minToSamples(ANALYZE_START_MIN, s.sampleRate));
+				s.setProcessEnd(StereoPair.minToSamples(ANALYZE_END_MIN, s.sampleRate));
+
+				// RMS and band analysis
+				if (job.options.serialAnalysis)
 				{
-					eqAnalysisThreads[i].join(THREAD_TIMEOUT_MS);
+					s.analyzeSerial();
 				}
-				catch (InterruptedException ignore)
+				else
 				{
+					s.analyze();
 				}
-			}
 
-			log("Multi-threaded analysis complete.");
-			log("------------------------------------------------");
+				log("Analysis complete.");
+				log("------------------------------------------------");
 
 
-			// Calculate targets based on analysis
-			s.calculateTargetGain();
-			s.calculateBandMultipliers();
+				// Calculate targets based on analysis
+				s.calculateTargetGain();
+				s.calculateBandMultipliers();
+
+				if (cache != null) cache.save(cacheKey, s.getAnalysis());
+			}
 
 			if (mode.equals(Mode.FULL) || mode.equals(Mode.PREVIEW))
 			{
@@ -186,13 +329,20 @@ public class BetterBot
 
 				if (mode.equals(Mode.FULL))
 				{
-					s.setProcessStart(s.minToSamples(PROCESS_FULL_START_MIN));
-					s.setProcessEnd(s.minToSamples(PROCESS_FULL_END_MIN));
+					s.setProcessStart(StereoPair.minToSamples(PROCESS_FULL_START_MIN, s.sampleRate));
+					s.setProcessEnd(s.getLength());
 				}
 				else if (mode.equals(Mode.PREVIEW))
 				{
-					s.setProcessStart(s.minToSamples(PROCESS_PREVIEW_START_MIN));
-					s.setProcessEnd(s.minToSamples(PROCESS_PREVIEW_END_MIN));
+					s.setProcessStart(StereoPair.minToSamples(PROCESS_PREVIEW_START_MIN, s.sampleRate));
+					s.setProcessEnd(StereoPair.minToSamples(PROCESS_PREVIEW_END_MIN, s.sampleRate));
+				}
+
+				if (!job.options.unfused)
+				{
+					// Same chain as below, fused into a few passes
+					s.processChain(originalMono, outputFile);
+					return RETURN_OK;
 				}
 
 				s.removeDCOffset();			// Remove DC offset
@@ -201,9 +351,7 @@ public class BetterBot
 
 				s.eqBalance();				// Adjust EQ as necessary to match target
 
-				s.hiPass(75, 0.1f);		// Remove low rumble
-				s.hiPass(75, 0.1f);		// Remove low rumble
-				s.hiPass(75, 0.1f);		// Remove low rumble
+				s.rumbleFilter();			// Remove low rumble
 
 				s.normalize();
 
@@ -215,43 +363,199 @@ public class BetterBot
 
 				s.save(outputFile);
 			}
+		}
+		finally
+		{
+			// The samples, also if loading them failed
+			store.close();
+		}
 
+		return RETURN_OK;
+	}
 
-			/////////////////////////////////////////////////////////////////////////////////
-			/////////////////////////////////////////////////////////////////////////////////
 
-			// Clean up memory
-			s = null;
-			System.gc();
+	// More than two channels: every track processed on its own, in memory, tracks in parallel
+	private static int processMultiTrack(String inputFile, Job job, int channels, long headerFrames, float sampleRate) throws Exception
+	{
+		String outputFile = job.outputFile;
+		Mode mode = job.mode;
 
-			// Stats
-			long endTime = System.nanoTime();
-			long elapsedTime = endTime - startTime;
-			double seconds = (double)elapsedTime / 1000000000.0;
-			log("------------------------------------------------");
-			log("FINISHED!");
-			log("Processing time in seconds = " + seconds);
-			log("------------------------------------------------");
+		if (job.options.streaming || job.options.offHeap || job.options.keepConverted)
+		{
+			log("Multitrack files are processed in memory, on the heap; --streaming, --off-heap and --keep-converted don't apply");
+		}
 
-			Runtime runtime = Runtime.getRuntime();
-			NumberFormat format = NumberFormat.getInstance();
-			long maxMemory = runtime.maxMemory();
-			long allocatedMemory = runtime.totalMemory();
-			long freeMemory = runtime.freeMemory();
-			log("free memory: " + format.format(freeMemory / 1024));
-			log("allocated memory: " + format.format(allocatedMemory / 1024));
-			log("max memory: " + format.format(maxMemory / 1024));
-			log("total free memory: " + format.format((freeMemory + (maxMemory - allocatedMemory)) / 1024));
-			log("------------------------------------------------");
+		AudioFileFormat.Type fileType = inputFile.toUpperCase().indexOf(".WAV") > 0 ? AudioFileFormat.Type.WAVE : AudioFileFormat.Type.AIFF;
+		if (tooLong(headerFrames, fileType, job.options, channels, sampleRate))
+		{
+			return RETURN_TOO_LONG;
+		}
 
-			System.exit(RETURN_OK);
+		log("************************************************");
+		log("ANALYSIS PHASE");
+		log("************************************************");
+
+		// Every track is held on the heap as floats; there's no off-heap multitrack store, so a session
+		// too big for this job's share is turned away before loading rather than running out of memory
+		long heapNeeded = (headerFrames < 0) ? -1 : Math.min(headerFrames, decodeFrames(mode, sampleRate))*channels*4;
+		if (heapNeeded > heapShare(job))
+		{
+			log("Multitrack file too big for the heap: "+channels+" tracks need "+heapNeeded/(1024*1024)+"MB, this job's share is "+heapShare(job)/(1024*1024)+"MB. Raise -Xmx, run fewer jobs at once or split the tracks.");
+			return RETURN_ERROR;
 		}
-		catch (Exception e)
+
+		MultiTrack m = new MultiTrack(inputFile, decodeFrames(mode, sampleRate), heapShare(job));
+		m.options = job.options;
+		job.audioFrames = m.getLength();
+
+		if (tooLong(m.getLength(), m.fileType, job.options, channels, m.sampleRate))
 		{
-			log("Exception!: "+e.getMessage());
-			e.printStackTrace();
-			System.exit(RETURN_ERROR);
+			return RETURN_TOO_LONG;
+		}
+
+		m.normalize();
+
+		m.setProcessStart(StereoPair.minToSamples(ANALYZE_START_MIN, m.sampleRate));
+		m.setProcessEnd(StereoPair.minToSamples(ANALYZE_END_MIN, m.sampleRate));
+		m.analyze();
+
+		if (mode.equals(Mode.FULL) || mode.equals(Mode.PREVIEW))
+		{
+			log("************************************************");
+			log("PROCESSING PHASE");
+			log("************************************************");
+
+			if (mode.equals(Mode.FULL))
+			{
+				m.setProcessStart(StereoPair.minToSamples(PROCESS_FULL_START_MIN, m.sampleRate));
+				m.setProcessEnd(m.getLength());
+			}
+			else
+			{
+				m.setProcessStart(StereoPair.minToSamples(PROCESS_PREVIEW_START_MIN, m.sampleRate));
+				m.setProcessEnd(StereoPair.minToSamples(PROCESS_PREVIEW_END_MIN, m.sampleRate));
+			}
+			m.processChain(outputFile);
+		}
+
+		return RETURN_OK;
+	}
+
+
+	private static int processStreaming(String convertedFilename, Job job, boolean originalMono, float sampleRate) throws Exception
+	{
+		String outputFile = job.outputFile;
+		Mode mode = job.mode;
+
+		log("************************************************");
+		log("ANALYSIS PHASE");
+		log("************************************************");
+
+		StreamingEngine engine = new StreamingEngine(convertedFilename, job.options.blockSize, decodeFrames(mode, sampleRate));
+		engine.options = job.options;
+		job.audioFrames = engine.getLength();
+
+		if (tooLong(engine.getLength(), engine.fileType, job.options, engine.sampleRate))
+		{
+			return RETURN_TOO_LONG;
+		}
+
+		engine.analyze(StereoPair.minToSamples(ANALYZE_START_MIN, engine.sampleRate), StereoPair.minToSamples(ANALYZE_END_MIN, engine.sampleRate));
+
+		if (mode.equals(Mode.FULL) || mode.equals(Mode.PREVIEW))
+		{
+			log("************************************************");
+			log("PROCESSING PHASE");
+			log("************************************************");
+
+			if (mode.equals(Mode.FULL))
+			{
+				engine.process(StereoPair.minToSamples(PROCESS_FULL_START_MIN, engine.sampleRate), engine.getLength(), originalMono, outputFile);
+			}
+			else
+			{
+				engine.process(StereoPair.minToSamples(PROCESS_PREVIEW_START_MIN, engine.sampleRate), StereoPair.minToSamples(PROCESS_PREVIEW_END_MIN, engine.sampleRate), originalMono, outputFile);
+			}
 		}
+
+		return RETURN_OK;
+	}
+
+
+	// Heap one job can take for its samples: a fraction of it, split between the jobs running at once
+	static long heapShare(Job job)
+	{
+		return (long) (Runtime.getRuntime().maxMemory()*HEAP_FRACTION / Math.max(1, job.concurrentJobs));
+	}
+
+
+	// Longer than --max-length-min, than frame positions go, or than the output format can hold
+	static boolean tooLong(long frames, AudioFileFormat.Type fileType, Options options, float sampleRate)
+	{
+		return tooLong(frames, fileType, options, 2, sampleRate);
+	}
+
+
+	static boolean tooLong(long frames, AudioFileFormat.Type fileType, Options options, int channels, float sampleRate)
+	{
+		long max = Math.min((long) (options.maxLengthMin*60.0*sampleRate), MAX_FRAMES);
+		max = Math.min(max, PcmWriter.maxFrames(fileType, channels));
+		if (frames <= max) return false;
+
+		log("len="+frames);
+		log("max="+max);
+		log("File too long!");
+		return true;
+	}
+
+
+	// The file's format from its header. AudioSystem doesn't know RF64, so a file it can't read gets a
+	// second try as a mapped PcmFile.
+	static AudioFileFormat readHeader(String inputFile) throws UnsupportedAudioFileException, IOException
+	{
+		try
+		{
+			return AudioSystem.getAudioFileFormat(new File(inputFile));
+		}
+		catch (UnsupportedAudioFileException e)
+		{
+			PcmFile pcm;
+			try
+			{
+				pcm = new PcmFile(inputFile);
+			}
+			catch (UnsupportedAudioFileException notPcm)
+			{
+				throw e;
+			}
+			try
+			{
+				return new AudioFileFormat(pcm.getFileType(), pcm.getFormat(), (int) Math.min(pcm.getFrameLength(), Integer.MAX_VALUE));
+			}
+			finally
+			{
+				pcm.close();
+			}
+		}
+	}
+
+
+	// Frames at the processing rate according to the header, -1 if it doesn't say
+	static long convertedFrameLength(AudioFileFormat header, float sampleRate)
+	{
+		long frames = header.getFrameLength();
+		float rate = header.getFormat().getSampleRate();
+		if (frames == AudioSystem.NOT_SPECIFIED || rate == AudioSystem.NOT_SPECIFIED) return -1;
+		return (long) (frames * (double) sampleRate / rate);
+	}
+
+
+	// How much of the file the mode needs decoded: preview and analysis stop after the analysis window.
+	// The normalize before analysis still goes by the whole file's peak (see FrameReader.peak).
+	static int decodeFrames(Mode mode, float sampleRate)
+	{
+		if (mode.equals(Mode.FULL)) return Integer.MAX_VALUE;
+		return StereoPair.minToSamples(Math.max(ANALYZE_END_MIN, PROCESS_PREVIEW_END_MIN), sampleRate);
 	}
 
 
@@ -323,7 +627,22 @@ public class BetterBot
 	public static void log(String s)
 	{
 		//System.out.println(System.currentTimeMillis()+ ": "+ s);
-		System.out.println(s);
+		String tag = logTag.get();
+		System.out.println((tag == null) ? s : "["+tag+"] "+s);
+	}
+
+
+	// Prefixes this thread's log lines with the tag, null for none
+	static void setLogTag(String tag)
+	{
+		if (tag == null) logTag.remove();
+		else logTag.set(tag);
+	}
+
+
+	static String getLogTag()
+	{
+		return logTag.get();
 	}
 }
 
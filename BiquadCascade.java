@@ -0,0 +1,229 @@
+// A chain of second-order filter sections run one after another on each sample, so a steep filter is
+// still a single pass over the file.
+//
+// Designed responses (Butterworth and Linkwitz-Riley, any order) use the bilinear transform and run in
+// double precision, which keeps low cutoffs like 75 Hz stable. The legacy design is the original
+// StereoPair.filter section (a damped low-pass, with hiPass taken as the input minus the low-pass)
+// repeated, with the same float arithmetic, so hiPass(75, 0.1f) three times over comes out bit for bit.
+public class BiquadCascade implements BlockStage
+{
+	public enum Response
+	{
+		LEGACY, BUTTERWORTH, LINKWITZ_RILEY
+	}
+
+	StereoPair.FilterType type;
+	Response response;
+	int sections;
+
+	// Designed sections: y = b0*x + z1; z1 = b1*x - a1*y + z2; z2 = b2*x - a2*y (transposed direct form II)
+	double[] b0, b1, b2, a1, a2;
+	double[][] z1, z2;		// [channel][section]
+
+	// Legacy sections
+	float fk, fa1, fa0;
+	float[][] fd1, fd2;		// [channel][section]
+
+	private BiquadCascade(StereoPair.FilterType filterType, Response filterResponse, int sectionCount)
+	{
+		type = filterType;
+		response = filterResponse;
+		sections = sectionCount;
+		b0 = new double[sections];
+		b1 = new double[sections];
+		b2 = new double[sections];
+		a1 = new double[sections];
+		a2 = new double[sections];
+		z1 = new double[2][sections];
+		z2 = new double[2][sections];
+		fd1 = new float[2][sections];
+		fd2 = new float[2][sections];
+	}
+
+
+	// count copies of the StereoPair.filter section, as if filter(freqHz, q, type) was called count times
+	public static BiquadCascade legacy(StereoPair.FilterType type, float freqHz, float q, int count, float sampleRate)
+	{
+		BiquadCascade cascade = new BiquadCascade(type, Response.LEGACY, count);
+		float damp = (float) (0.01+q*20);
+		float c = (float) (1/Math.tan(Math.PI*freqHz/sampleRate));
+		cascade.fk = 1 / (1 + c*(c+damp));
+		cascade.fa1 = 2 * (1 - c*c) * cascade.fk;
+		cascade.fa0 = (1 + c*(c-damp)) * cascade.fk;
+		return cascade;
+	}
+
+
+	// Butterworth of the given order (1 = 6db/octave); odd orders get one first-order section
+	public static BiquadCascade butterworth(StereoPair.FilterType type, float freqHz, int order, float sampleRate)
+	{
+		BiquadCascade cascade = new BiquadCascade(type, Response.BUTTERWORTH, (order+1)/2);
+		cascade.designButterworth(0, freqHz, order, sampleRate);
+		return cascade;
+	}
+
+
+	// Linkwitz-Riley of the given (even) order: two Butterworths of half the order, so -6db at the cutoff
+	// and low/high outputs that sum flat
+	public static BiquadCascade linkwitzRiley(StereoPair.FilterType type, float freqHz, int order, float sampleRate)
+	{
+		if (order < 2 || order % 2 != 0)
+		{
+			throw new IllegalArgumentException("Linkwitz-Riley order must be even: "+order);
+		}
+		int half = order/2;
+		int halfSections = (half+1)/2;
+		BiquadCascade cascade = new BiquadCascade(type, Response.LINKWITZ_RILEY, halfSections*2);
+		cascade.designButterworth(0, freqHz, half, sampleRate);
+		cascade.designButterworth(halfSections, freqHz, half, sampleRate);
+		return cascade;
+	}
+
+
+	// Parses "legacy", "butterworth:N" or "linkwitz-riley:N". Legacy is the three section hiPass stack.
+	public static BiquadCascade parse(String spec, StereoPair.FilterType type, float freqHz, float legacyQ, float sampleRate)
+	{
+		String name = spec;
+		int order = 0;
+		int colon = spec.indexOf(':');
+		if (colon >= 0)
+		{
+			name = spec.substring(0, colon);
+			order = Integer.parseInt(spec.substring(colon+1));
+		}
+
+		if (name.equals("legacy"))
+		{
+			return legacy(type, freqHz, legacyQ, (order > 0) ? order : 3, sampleRate);
+		}
+		else if (name.equals("butterworth"))
+		{
+			return butterworth(type, freqHz, (order > 0) ? order : 4, sampleRate);
+		}
+		else if (name.equals("linkwitz-riley"))
+		{
+			return linkwitzRiley(type, freqHz, (order > 0) ? order : 4, sampleRate);
+		}
+		throw new IllegalArgumentException("Unknown filter: "+spec);
+	}
+
+
+	// Fills sections [first, first+(order+1)/2) with a Butterworth of the given order
+	private void designButterworth(int first, float freqHz, int order, float sampleRate)
+	{
+		double k = Math.tan(Math.PI*freqHz/sampleRate);
+		int s = first;
+
+		for (int j=1;j<=order/2;j++)
+		{
+			// Pole pair j of the Butterworth prototype (odd orders have the real pole at angle 0)
+			double angle = (order % 2 == 0) ? (2*j-1)*Math.PI/(2.0*order) : j*Math.PI/order;
+			double q = 1.0 / (2.0*Math.cos(angle));
+			double norm = 1.0 / (1.0 + k/q + k*k);
+			if (type == StereoPair.FilterType.LOWPASS)
+			{
+				b0[s] = k*k*norm;
+				b1[s] = 2.0*b0[s];
+			}
+			else
+			{
+				b0[s] = norm;
+				b1[s] = -2.0*b0[s];
+			}
+			b2[s] = b0[s];
+			a1[s] = 2.0*(k*k - 1.0)*norm;
+			a2[s] = (1.0 - k/q + k*k)*norm;
+			s++;
+		}
+
+		if (order % 2 == 1)
+		{
+			// Real pole
+			double norm = 1.0 / (1.0 + k);
+			if (type == StereoPair.FilterType.LOWPASS)
+			{
+				b0[s] = k*norm;
+				b1[s] = b0[s];
+			}
+			else
+			{
+				b0[s] = norm;
+				b1[s] = -b0[s];
+			}
+			b2[s] = 0.0;
+			a1[s] = (k - 1.0)*norm;
+			a2[s] = 0.0;
+		}
+	}
+
+
+	public int getSections()
+	{
+		return sections;
+	}
+
+
+	public String toString()
+	{
+		return response+" "+type+" ("+sections+" sections)";
+	}
+
+
+	// Also takes one-channel blocks
+	public void process(float[][] block, int from, int to, int position)
+	{
+		for (int c=0;c<block.length;c++)
+		{
+			if (response == Response.LEGACY)
+			{
+				processLegacy(block[c], from, to, fd1[c], fd2[c]);
+			}
+			else
+			{
+				processDesigned(block[c], from, to, z1[c], z2[c]);
+			}
+		}
+	}
+
+
+	private void processDesigned(float[] x, int from, int to, double[] s1, double[] s2)
+	{
+		for (int i=from;i<to;i++)
+		{
+			double v = x[i];
+			for (int s=0;s<sections;s++)
+			{
+				double y = b0[s]*v + s1[s];
+				s1[s] = b1[s]*v - a1[s]*y + s2[s];
+				s2[s] = b2[s]*v - a2[s]*y;
+				v = y;
+			}
+			x[i] = (float) v;
+		}
+	}
+
+
+	private void processLegacy(float[] x, int from, int to, float[] d1, float[] d2)
+	{
+		boolean hiPass = (type == StereoPair.FilterType.HIPASS);
+		for (int i=from;i<to;i++)
+		{
+			float v = x[i];
+			for (int s=0;s<sections;s++)
+			{
+				float fd0 = (fk*v) - (fa1*d1[s]) - (fa0*d2[s]);
+				if (hiPass)
+				{
+					v = v - (fd0 + d1[s] + d1[s] + d2[s]);
+				}
+				else
+				{
+					v = fd0 + d1[s] + d1[s] + d2[s];
+				}
+				d2[s] = d1[s];
+				d1[s] = fd0;
+			}
+			x[i] = v;
+		}
+	}
+}
@@ -0,0 +1,8 @@
+
+public interface BlockStage
+{
+	// Process block[..][from..to) in place. position is the absolute sample index of block[..][from],
+	// so stages that care about where they are in the file (delays, phrase/peak regions) can tell.
+	// Any filter state is kept in the stage and carried over to the next call.
+	public void process(float[][] block, int from, int to, int position);
+}
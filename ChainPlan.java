@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs a processing chain as a few fused passes instead of one pass per stage. Each pass takes a block,
+// runs every stage in the pass over it while it's still in cache, and hands it on once.
+//
+// The caller gives the whole chain as one list and the plan works out where the passes end, from what
+// the stages are:
+//
+//   - a Measurement (a peak, the phrase list, the peak regions) has its result once the pass it's in
+//     has run to the end of the range
+//   - a Deferred stage is built from measurements (a normalize gain from a peak), so a pass ends before
+//     one while anything in it is still measuring, and it's built when its pass comes
+//   - a Step runs over the whole range on its own (the exact in-memory peakReduce), so it gets a pass
+//     to itself
+//   - StageChain lines up one DelayStage per chain, so a second one starts a new pass
+//
+// Where the passes run is up to the Source: in place over a SampleStore or a track, or from the input
+// file again each time (StreamingEngine), in which case each pass also re-runs the passes before it,
+// less their measurements. Stages that would do nothing (a gain of exactly 1, a band within
+// EQ_TOLERANCE, which comes in as null) are dropped.
+public class ChainPlan
+{
+	public static final int BLOCK_SIZE = 8192;	// Frames per block, small enough to stay in cache
+
+	// The chain as one flat list, in order
+	public interface Chain
+	{
+		// Called again for every pass when the source re-reads the input, so stages with filter state
+		// have to be new each time, and measurements the same objects each time so that the stages
+		// built from them see their results
+		public void add(List<BlockStage> stages);
+	}
+
+	// Where the passes run
+	public interface Source
+	{
+		// Runs the stages over the range once, writing the result back if writeBack is set and to the
+		// writer if there is one. Returns the position reached.
+		public int run(String name, List<BlockStage> stages, boolean writeBack, PcmWriter writer) throws IOException;
+
+		// Each pass reads the input again, so it needs the stages of the passes before it too
+		public boolean rereads();
+	}
+
+	// A stage made from what earlier stages measured over the whole range. build() may return null
+	// for nothing to do.
+	public static abstract class Deferred implements BlockStage
+	{
+		String name;
+		boolean built = false;
+		BlockStage stage;
+
+		public Deferred(String stageName)
+		{
+			name = stageName;
+		}
+
+		protected abstract BlockStage build();
+
+		BlockStage get()
+		{
+			if (!built)
+			{
+				stage = build();
+				built = true;
+			}
+			return stage;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			BlockStage s = get();
+			if (s != null) s.process(block, from, to, position);
+		}
+	}
+
+	// An operation that has to run over the whole range at once, with everything before it done
+	public static abstract class Step implements BlockStage
+	{
+		String name;
+
+		public Step(String stepName)
+		{
+			name = stepName;
+		}
+
+		public abstract void run() throws IOException;
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			throw new UnsupportedOperationException(name+" only runs over the whole range");
+		}
+	}
+
+	Source source;
+
+	int stageCount = 0;		// Passes the unfused chain would have made
+	int passCount = 0;		// Passes actually made
+	int skipped = 0;		// No-op stages dropped
+
+	// Passes in place over [startFrame,endFrame) of the store
+	public ChainPlan(SampleStore store, int startFrame, int endFrame)
+	{
+		this(new StoreSource(store, startFrame, endFrame));
+	}
+
+
+	public ChainPlan(Source passSource)
+	{
+		source = passSource;
+	}
+
+
+	// Runs the stages, the last pass writing to the writer if there is one. The stages are used as
+	// they are, so the source mustn't re-read.
+	public void run(final List<BlockStage> stages, PcmWriter writer) throws IOException
+	{
+		if (source.rereads()) throw new IllegalStateException("A source that re-reads needs a Chain");
+		run(new Chain()
+		{
+			public void add(List<BlockStage> chain)
+			{
+				chain.addAll(stages);
+			}
+		}, writer);
+	}
+
+
+	public void run(Chain chain, PcmWriter writer) throws IOException
+	{
+		List<List<BlockStage>> passes = split(build(chain));
+		for (int k=0;k<passes.size();k++)
+		{
+			PcmWriter output = (k == passes.size()-1) ? writer : null;
+			List<List<BlockStage>> built = passes;
+			if (source.rereads() && k > 0) built = split(build(chain));
+
+			List<BlockStage> pass = built.get(k);
+			if (pass.size() == 1 && pass.get(0) instanceof Step)
+			{
+				if (source.rereads()) throw new IllegalStateException(((Step) pass.get(0)).name+" can't run on a source that re-reads");
+				step((Step) pass.get(0));
+				continue;
+			}
+
+			List<BlockStage> stages = new ArrayList<BlockStage>();
+			String name = "";
+			for (BlockStage stage : pass)
+			{
+				BlockStage s = resolve(stage);
+				if (isNoOp(s))
+				{
+					skipped++;
+					continue;
+				}
+				stages.add(s);
+				name += (name.isEmpty() ? "" : ", ") + name(stage);
+			}
+			stageCount += stages.size();
+			if (stages.isEmpty() && output == null) continue;
+
+			// From the input again: the earlier passes' stages first, less what they measured
+			List<BlockStage> chainStages = new ArrayList<BlockStage>();
+			if (source.rereads())
+			{
+				for (int j=0;j<k;j++)
+				{
+					for (BlockStage stage : built.get(j))
+					{
+						BlockStage s = resolve(stage);
+						if (!isNoOp(s) && !isReadOnly(s)) chainStages.add(s);
+					}
+				}
+			}
+			chainStages.addAll(stages);
+
+			boolean readOnly = true;
+			for (BlockStage stage : chainStages)
+			{
+				if (!isReadOnly(stage)) readOnly = false;
+			}
+
+			log("Pass "+(passCount+1)+": "+name+" ("+chainStages.size()+" stages)");
+			passCount++;
+			int end = source.run(name, chainStages, !readOnly, output);
+			for (BlockStage stage : stages)
+			{
+				if (stage instanceof Measurement) ((Measurement) stage).finish(end);
+			}
+		}
+	}
+
+
+	private void step(Step step) throws IOException
+	{
+		log("Pass "+(passCount+1)+": "+step.name);
+		stageCount++;
+		passCount++;
+		step.run();
+	}
+
+
+	private static List<BlockStage> build(Chain chain)
+	{
+		List<BlockStage> stages = new ArrayList<BlockStage>();
+		chain.add(stages);
+		return stages;
+	}
+
+
+	// The passes: one ends before a Deferred stage while the pass is still measuring, before and after
+	// a Step, and before a second DelayStage. Always at least one, which may be empty.
+	public static List<List<BlockStage>> split(List<BlockStage> stages)
+	{
+		List<List<BlockStage>> passes = new ArrayList<List<BlockStage>>();
+		List<BlockStage> pass = new ArrayList<BlockStage>();
+		boolean measuring = false;
+		boolean delaying = false;
+		for (BlockStage stage : stages)
+		{
+			boolean after = !pass.isEmpty() && pass.get(pass.size()-1) instanceof Step;
+			if (!pass.isEmpty() && (after
+				|| stage instanceof Step
+				|| (stage instanceof Deferred && measuring)
+				|| (stage instanceof DelayStage && delaying)))
+			{
+				passes.add(pass);
+				pass = new ArrayList<BlockStage>();
+				measuring = false;
+				delaying = false;
+			}
+			pass.add(stage);
+			if (stage instanceof Measurement) measuring = true;
+			if (stage instanceof DelayStage) delaying = true;
+		}
+		if (!pass.isEmpty() || passes.isEmpty()) passes.add(pass);
+		return passes;
+	}
+
+
+	private static BlockStage resolve(BlockStage stage)
+	{
+		return (stage instanceof Deferred) ? ((Deferred) stage).get() : stage;
+	}
+
+
+	private static String name(BlockStage stage)
+	{
+		if (stage instanceof Deferred) return ((Deferred) stage).name;
+		return stage.getClass().getSimpleName();
+	}
+
+
+	public static boolean isNoOp(BlockStage stage)
+	{
+		if (stage == null) return true;
+		if (stage instanceof Stages.Gain) return ((Stages.Gain) stage).g == 1.0f;
+		if (stage instanceof Stages.ChannelGain) return ((Stages.ChannelGain) stage).g == 1.0f;
+		return false;
+	}
+
+
+	// Stages that only measure, so a pass made of nothing else needn't write back
+	public static boolean isReadOnly(BlockStage stage)
+	{
+		return stage instanceof Measurement;
+	}
+
+
+	public void report()
+	{
+		log("Chain: "+stageCount+" stage passes fused into "+passCount+" passes ("+(stageCount-passCount)+" removed, "+skipped+" no-op stages skipped)");
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+
+
+	// In place over a range of a store
+	private static class StoreSource implements Source
+	{
+		SampleStore samples;
+		int start, end;
+
+		StoreSource(SampleStore store, int startFrame, int endFrame)
+		{
+			samples = store;
+			start = startFrame;
+			end = endFrame;
+		}
+
+		public boolean rereads()
+		{
+			return false;
+		}
+
+		public int run(String name, List<BlockStage> stages, final boolean writeBack, final PcmWriter writer) throws IOException
+		{
+			StageEvent event = StageEvent.begin("pass: "+name);
+
+			// A delaying stage hands frames back behind the ones being read, which are done with by then
+			StageChain stageChain = new StageChain(stages, "");
+			StageChain.Output output = new StageChain.Output()
+			{
+				public void write(float[][] block, int from, int to, int position) throws IOException
+				{
+					if (writeBack) samples.write(block, from, position, to-from);
+					if (writer != null) writer.write(block, from, to);
+				}
+			};
+
+			float[][] block = new float[2][BLOCK_SIZE];
+			for (int pos=start;pos<end;pos+=BLOCK_SIZE)
+			{
+				int frames = Math.min(BLOCK_SIZE, end-pos);
+				samples.read(block, 0, pos, frames);
+				stageChain.process(block, 0, frames, pos, output);
+			}
+			stageChain.finish(block, output);
+			event.finish(end-start);
+			return end;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+
+// A stage that hands back each block as it was getLatency() frames earlier, because it needs to see
+// that far ahead first (NoiseGate, Limiter). StageChain takes care of lining things up after it.
+public interface DelayStage extends BlockStage
+{
+	// Frames between a frame going into process() and coming back out
+	public int getLatency();
+
+	// After the last block: writes the frames still held back to block[..][from..to) and returns how
+	// many, 0 once they're all out
+	public int flush(float[][] block, int from, int to);
+}
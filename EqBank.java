@@ -0,0 +1,151 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// All the EQ bands in one pass. Each band-pass filter reads the same input sample and the weighted wet
+// signals are summed onto it, like a graphic EQ, instead of each band filtering what the band before it
+// already changed. That matches how bandRMS is measured (every band from the same input), and makes
+// EQ one pass over the file instead of one per band.
+//
+// The band filter is the StereoPair.bandPass one. With a single active band the output is the same as
+// bandGain; with several, it differs from the serial eqBalance by the bands' effect on each other.
+//
+// With splitChannels, the left and right channels of each block are filtered on separate cores.
+// A one-channel block (a MultiTrack track) is filtered as the left channel.
+public class EqBank implements BlockStage
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+	private static final int GROUP = 3;		// Bands filtered together in one sweep of the block
+
+	int bands;
+	float[] fk, fa1, fa0;
+	float[] wet;			// wetGainFactor-1, what the band signal is added back in with
+	float[][] fd1, fd2;		// [channel][band]
+	float[][] input = new float[2][0];	// Copy of the block's input, per channel
+	boolean splitChannels;
+
+	static ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	// Bands whose gain (clamped to MIN/MAX_BAND_GAIN) is within EQ_TOLERANCE are left out.
+	// Returns null if no band needs processing.
+	public static EqBank create(float[] freqs, float[] widths, float[] multipliers, boolean split, float sampleRate)
+	{
+		int active = 0;
+		float[] gains = new float[freqs.length];
+		for (int i=0;i<freqs.length;i++)
+		{
+			gains[i] = Math.min(Math.max(multipliers[i],StereoPair.MIN_BAND_GAIN),StereoPair.MAX_BAND_GAIN);
+			if (Math.abs(1-gains[i]) >= StereoPair.EQ_TOLERANCE) active++;
+		}
+		if (active == 0) return null;
+
+		EqBank bank = new EqBank(active, split);
+		int b = 0;
+		for (int i=0;i<freqs.length;i++)
+		{
+			if (Math.abs(1-gains[i]) < StereoPair.EQ_TOLERANCE) continue;
+
+			float dampening = widths[i]*0.999f + 0.001f;
+			float c = (float) ( 1 / Math.tan( Math.PI*freqs[i] / sampleRate ) );
+			float a2 = 1 + c*(c+dampening);
+			bank.fa1[b] = 2 * (1 - c*c) / a2;
+			bank.fa0[b] = (1 + c*(c-dampening)) / a2;
+			bank.fk[b] = c*dampening / a2;
+			bank.wet[b] = gains[i]-1.0f;
+			b++;
+		}
+		return bank;
+	}
+
+
+	private EqBank(int activeBands, boolean split)
+	{
+		bands = activeBands;
+		splitChannels = split;
+		// Padded to whole groups, the padding bands stay silent
+		int padded = (bands+GROUP-1)/GROUP*GROUP;
+		fk = new float[padded];
+		fa1 = new float[padded];
+		fa0 = new float[padded];
+		wet = new float[padded];
+		fd1 = new float[2][padded];
+		fd2 = new float[2][padded];
+	}
+
+
+	public int getBands()
+	{
+		return bands;
+	}
+
+
+	public void process(final float[][] block, final int from, final int to, int position)
+	{
+		if (block.length == 1)
+		{
+			processChannel(block, LEFT, from, to);
+		}
+		else if (splitChannels)
+		{
+			ForkJoinTask<?> left = pool.submit(new Runnable()
+			{
+				public void run()
+				{
+					processChannel(block, LEFT, from, to);
+				}
+			});
+			processChannel(block, RIGHT, from, to);
+			left.join();
+		}
+		else
+		{
+			processChannel(block, LEFT, from, to);
+			processChannel(block, RIGHT, from, to);
+		}
+	}
+
+
+	// Three bands at a time over the block, with their filter state in locals, so the three recursions
+	// overlap instead of waiting on each other or on memory (more than three runs out of registers).
+	// Missing bands in the last group are padded with silent ones (fk = 0, wet = 0). For each sample the
+	// wet signals are still added in band order.
+	private void processChannel(float[][] block, int chan, int from, int to)
+	{
+		float[] x = block[chan];
+		float[] d1 = fd1[chan];
+		float[] d2 = fd2[chan];
+		if (input[chan].length < to-from) input[chan] = new float[to-from];
+		float[] in = input[chan];
+		System.arraycopy(x, from, in, 0, to-from);
+
+		for (int g=0;g<fk.length;g+=GROUP)
+		{
+			float ka = fk[g], a1a = fa1[g], a0a = fa0[g], wa = wet[g];
+			float kb = fk[g+1], a1b = fa1[g+1], a0b = fa0[g+1], wb = wet[g+1];
+			float kc = fk[g+2], a1c = fa1[g+2], a0c = fa0[g+2], wc = wet[g+2];
+			float s1a = d1[g], s2a = d2[g];
+			float s1b = d1[g+1], s2b = d2[g+1];
+			float s1c = d1[g+2], s2c = d2[g+2];
+
+			for (int i=from;i<to;i++)
+			{
+				float v = in[i-from];
+				float d0a = ka*v - (a1a*s1a + a0a*s2a);
+				float d0b = kb*v - (a1b*s1b + a0b*s2b);
+				float d0c = kc*v - (a1c*s1c + a0c*s2c);
+				float out = x[i];
+				out = out + (d0a - s2a)*wa;
+				out = out + (d0b - s2b)*wb;
+				out = out + (d0c - s2c)*wc;
+				x[i] = out;
+				s2a = s1a; s1a = d0a;
+				s2b = s1b; s1b = d0b;
+				s2c = s1c; s1c = d0c;
+			}
+
+			d1[g] = s1a; d2[g] = s2a;
+			d1[g+1] = s1b; d2[g+1] = s2b;
+			d1[g+2] = s1c; d2[g+2] = s2c;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+import java.util.Arrays;
+
+// Search index over one channel of the process range, so the dynamics searches (next sample above a
+// threshold, zero crossing before/after a position) are lookups instead of rescans of the samples.
+//
+//   - A max tree over the |sample| peak of every LEAF_SIZE samples answers "first sample above t after i"
+//     for any threshold in O(log n): whole leaves at or below t are skipped without touching the samples.
+//   - The positions of every zero crossing, in order, answer the zero crossing searches by binary search.
+//
+// Built in one pass at the start of phraseDynamics, peakReduce or logPeaks, which each run on a
+// differently processed signal. Those only apply positive gains, and only behind the point they're
+// searching from, so zero crossings don't move and the leaves that get skipped are untouched (the
+// samples in the leaf being searched are always checked themselves).
+public class FeatureIndex
+{
+	public static final int LEAF_SHIFT = 6;
+	public static final int LEAF_SIZE = 1 << LEAF_SHIFT;	// Samples per leaf
+	private static final int BLOCK_SIZE = 8192;				// Frames copied out of the store while building
+
+	SampleStore samples;
+	int chan;
+	int start, end;
+
+	int size;			// Leaves, rounded up to a power of two
+	float[] tree;		// tree[1] is the root, leaves at [size, 2*size)
+
+	int[] zeroCrossings;	// p where samples p-1 and p have strictly opposite signs, ascending
+	int zeroCount = 0;
+
+	public FeatureIndex(SampleStore store, int chanNum, int startFrame, int endFrame, boolean withZeroCrossings)
+	{
+		samples = store;
+		chan = chanNum;
+		start = startFrame;
+		end = Math.max(startFrame, endFrame);
+
+		int leaves = Math.max(1, (end-start+LEAF_SIZE-1) >> LEAF_SHIFT);
+		size = Integer.highestOneBit(leaves);
+		if (size < leaves) size <<= 1;
+		tree = new float[2*size];
+		Arrays.fill(tree, size, 2*size, -1.0f);	// Padding leaves never match
+
+		if (withZeroCrossings) zeroCrossings = new int[1024];
+
+		float[][] block = new float[2][BLOCK_SIZE];
+		float previous = 0.0f;
+		for (int pos=start;pos<end;pos+=BLOCK_SIZE)
+		{
+			int frames = Math.min(BLOCK_SIZE, end-pos);
+			samples.read(block, 0, pos, frames);
+			float[] x = block[chan];
+			for (int i=0;i<frames;i++)
+			{
+				int leaf = size + ((pos+i-start) >> LEAF_SHIFT);
+				float a = Math.abs(x[i]);
+				if (a > tree[leaf]) tree[leaf] = a;
+
+				if (withZeroCrossings && pos+i > start && ((x[i] > 0 && previous < 0) || (x[i] < 0 && previous > 0)))
+				{
+					if (zeroCount == zeroCrossings.length)
+					{
+						zeroCrossings = Arrays.copyOf(zeroCrossings, zeroCount*2);
+					}
+					zeroCrossings[zeroCount++] = pos+i;
+				}
+				previous = x[i];
+			}
+		}
+
+		for (int i=size-1;i>0;i--)
+		{
+			tree[i] = Math.max(tree[2*i], tree[2*i+1]);
+		}
+	}
+
+
+	// First i in [from, end) with |sample| > threshold, or end if there isn't one
+	public int nextAbove(float threshold, int from)
+	{
+		if (from < start) from = start;
+		while (from < end)
+		{
+			// Rest of the leaf 'from' is in
+			int leaf = (from-start) >> LEAF_SHIFT;
+			int found = scan(threshold, from, Math.min(end, start + ((leaf+1) << LEAF_SHIFT)));
+			if (found >= 0) return found;
+
+			// Next leaf whose peak is above threshold
+			int next = firstLeafAbove(threshold, leaf+1);
+			if (next < 0) return end;
+			from = start + (next << LEAF_SHIFT);
+		}
+		return end;
+	}
+
+
+	private int scan(float threshold, int from, int to)
+	{
+		for (int i=from;i<to;i++)
+		{
+			if (Math.abs(samples.get(chan, i)) > threshold) return i;
+		}
+		return -1;
+	}
+
+
+	// First leaf >= first whose stored peak is above threshold, or -1
+	private int firstLeafAbove(float threshold, int first)
+	{
+		if (first >= size) return -1;
+		int i = first + size;
+		while (tree[i] <= threshold)
+		{
+			// Climb while i is a right child, then move to the next subtree along
+			while ((i & 1) == 1) i >>= 1;
+			if (i == 0) return -1;
+			i++;
+		}
+		while (i < size)
+		{
+			i = 2*i;
+			if (tree[i] <= threshold) i++;
+		}
+		return i - size;
+	}
+
+
+	// Same as StereoPair.findZeroCrossBefore: last crossing p in (lowest, from-1], or 0
+	public int zeroCrossBefore(int from, int lowest)
+	{
+		// Last crossing <= from-1
+		int k = upperBound(from-1) - 1;
+		if (k >= 0 && zeroCrossings[k] > lowest) return zeroCrossings[k];
+		return 0;
+	}
+
+
+	// Same as StereoPair.findZeroCrossAfter: first i in [from+1, highest-1) where samples i and i+1 cross,
+	// or highest
+	public int zeroCrossAfter(int from, int highest)
+	{
+		// First crossing p >= from+2, reported as p-1
+		int k = upperBound(from+1);
+		if (k < zeroCount && zeroCrossings[k] <= highest-1) return zeroCrossings[k]-1;
+		return highest;
+	}
+
+
+	// Index of the first crossing > x
+	private int upperBound(int x)
+	{
+		int lo = 0, hi = zeroCount;
+		while (lo < hi)
+		{
+			int mid = (lo+hi) >>> 1;
+			if (zeroCrossings[mid] <= x) lo = mid+1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
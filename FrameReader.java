@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// Reads frames from an input file a block at a time, into float channel arrays, already converted to
+// 16-bit stereo at the processing rate: the file's own sample rate, or 44.1khz if it's lower (the top EQ
+// band, 14khz, needs the room below Nyquist). Files that are already 16-bit PCM at that rate are
+// memory-mapped; anything else is converted on the fly through AudioSystem, so there's no intermediate
+// file on disk.
+public class FrameReader
+{
+	public static final float MIN_SAMPLE_RATE = 44100.0f;
+
+	private static final int PEAK_BLOCK_SIZE = 65536;
+
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	PcmFile pcm;			// Set when the file is mapped
+	long position = 0;
+
+	AudioInputStream ais;	// Set when converting
+	AudioFormat converted;
+	byte[] audioBytes;
+	ByteBuffer bb;
+
+	public FrameReader(String fileName, int blockSize) throws UnsupportedAudioFileException, IOException
+	{
+		try
+		{
+			pcm = new PcmFile(fileName);
+			float rate = pcm.getFormat().getSampleRate();
+			if (rate != processingRate(rate))
+			{
+				pcm.close();
+				pcm = null;
+			}
+		}
+		catch (UnsupportedAudioFileException e)
+		{
+			pcm = null;
+		}
+
+		if (pcm == null)
+		{
+			AudioInputStream original = AudioSystem.getAudioInputStream(new File(fileName));
+			converted = convertedFormat(processingRate(original.getFormat().getSampleRate()));
+			try
+			{
+				ais = AudioSystem.getAudioInputStream(converted, original);
+			}
+			catch (IllegalArgumentException e)
+			{
+				original.close();
+				throw e;
+			}
+			audioBytes = new byte[blockSize*converted.getFrameSize()];
+			bb = ByteBuffer.wrap(audioBytes);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+
+	// The rate a file at this rate is processed at
+	public static float processingRate(float fileRate)
+	{
+		return Math.max(MIN_SAMPLE_RATE, fileRate);
+	}
+
+
+	// 16-bit stereo at the given rate
+	public static AudioFormat convertedFormat(float sampleRate)
+	{
+		return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, 2, 4, sampleRate, false);
+	}
+
+
+	// Peak of the whole file at the processing rate, both channels, from one read through it that keeps
+	// nothing. For preview and analysis, which only decode up to the end of the analysis window but
+	// normalize by the whole file's peak as full does.
+	public static float peak(String fileName) throws UnsupportedAudioFileException, IOException
+	{
+		StageEvent event = StageEvent.begin("file peak");
+		FrameReader reader = new FrameReader(fileName, PEAK_BLOCK_SIZE);
+		try
+		{
+			Stages.PeakMeter meter = new Stages.PeakMeter();
+			float[][] block = new float[2][PEAK_BLOCK_SIZE];
+			long frames = 0;
+			int n;
+			while ((n = reader.read(block, PEAK_BLOCK_SIZE)) > 0)
+			{
+				meter.process(block, 0, n, 0);
+				frames += n;
+			}
+			event.finish(frames);
+			return meter.getPeak();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+
+	public boolean isMapped()
+	{
+		return pcm != null;
+	}
+
+
+	public PcmFile getPcmFile()
+	{
+		return pcm;
+	}
+
+
+	public AudioFormat getFormat()
+	{
+		return isMapped() ? pcm.getFormat() : converted;
+	}
+
+
+	// AudioSystem.NOT_SPECIFIED if a converted stream doesn't know its length up front
+	public long getFrameLength()
+	{
+		return isMapped() ? pcm.getFrameLength() : ais.getFrameLength();
+	}
+
+
+	// Fills block[..][0..frames), returns number of frames actually read (less at end of file)
+	public int read(float[][] block, int frames) throws IOException
+	{
+		if (isMapped())
+		{
+			int framesRead = pcm.read(block, 0, position, frames);
+			position += framesRead;
+			return framesRead;
+		}
+
+		int bytesWanted = frames*4;
+		int bytesRead = 0;
+
+		// A single read can come back short, so keep going until the block is full
+		while (bytesRead < bytesWanted)
+		{
+			int n = ais.read(audioBytes, bytesRead, bytesWanted-bytesRead);
+			if (n < 0) break;
+			bytesRead += n;
+		}
+
+		int framesRead = bytesRead / 4;
+		bb.clear();
+		for (int i=0;i<framesRead;i++)
+		{
+			block[LEFT][i] = bb.getShort() / 32768.0f;
+			block[RIGHT][i] = bb.getShort() / 32768.0f;
+		}
+		position += framesRead;
+		return framesRead;
+	}
+
+
+	public void skipFrames(long frames) throws IOException
+	{
+		if (isMapped())
+		{
+			// The data is mapped, so skipping is just a seek
+			position += frames;
+			return;
+		}
+
+		long bytesToSkip = frames*4;
+		while (bytesToSkip > 0)
+		{
+			long n = ais.skip(bytesToSkip);
+			if (n <= 0) break;
+			bytesToSkip -= n;
+		}
+		position += frames - bytesToSkip/4;
+	}
+
+
+	public void close() throws IOException
+	{
+		if (isMapped())
+		{
+			pcm.close();
+		}
+		else
+		{
+			ais.close();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+// Samples in two float arrays on the Java heap. Fastest, but the heap has to be sized for the episode.
+public class HeapSampleStore implements SampleStore
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	float[][] channel = new float[2][0];
+	int length = 0;
+
+	public int getLength()
+	{
+		return length;
+	}
+
+
+	public void reserve(int frames)
+	{
+		if (frames > channel[LEFT].length)
+		{
+			channel[LEFT] = Arrays.copyOf(channel[LEFT], frames);
+			channel[RIGHT] = Arrays.copyOf(channel[RIGHT], frames);
+		}
+	}
+
+
+	public void append(float[][] block, int frames)
+	{
+		if (length + frames > channel[LEFT].length)
+		{
+			reserve(Math.max(length + frames, channel[LEFT].length*2));
+		}
+		System.arraycopy(block[LEFT], 0, channel[LEFT], length, frames);
+		System.arraycopy(block[RIGHT], 0, channel[RIGHT], length, frames);
+		length += frames;
+	}
+
+
+	public float get(int chan, int i)
+	{
+		return channel[chan][i];
+	}
+
+
+	public void set(int chan, int i, float x)
+	{
+		channel[chan][i] = x;
+	}
+
+
+	public void read(float[][] block, int offset, int start, int frames)
+	{
+		System.arraycopy(channel[LEFT], start, block[LEFT], offset, frames);
+		System.arraycopy(channel[RIGHT], start, block[RIGHT], offset, frames);
+	}
+
+
+	public void write(float[][] block, int offset, int start, int frames)
+	{
+		System.arraycopy(block[LEFT], offset, channel[LEFT], start, frames);
+		System.arraycopy(block[RIGHT], offset, channel[RIGHT], start, frames);
+	}
+
+
+	public void close()
+	{
+		channel = new float[2][0];
+		length = 0;
+	}
+}
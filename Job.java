@@ -0,0 +1,54 @@
+import java.util.concurrent.Callable;
+
+// One file to process: what to do with it, and how it went
+public class Job implements Callable<Integer>
+{
+	String inputFile;
+	String outputFile;
+	BetterBot.Mode mode;
+	Options options;
+
+	int concurrentJobs = 1;		// Jobs that can run at once, sharing the heap with this one
+	String logTag = null;		// Prefix for the job's log lines, when it shares the log with others
+
+	int status = BetterBot.RETURN_ERROR;
+	long audioFrames = 0;	// Length of the converted audio, once known
+	float sampleRate = FrameReader.MIN_SAMPLE_RATE;	// What it was processed at
+	double seconds = 0;		// Wall time for this job
+
+	public Job(String input, String output, BetterBot.Mode jobMode, Options jobOptions)
+	{
+		inputFile = input;
+		outputFile = output;
+		mode = jobMode;
+		options = jobOptions;
+	}
+
+	public Integer call()
+	{
+		long startTime = System.nanoTime();
+		BetterBot.setLogTag(logTag);
+		try
+		{
+			status = BetterBot.runJob(this);
+		}
+		catch (Throwable e)
+		{
+			// Errors too (e.g. OutOfMemoryError), so a worker always gets a status back
+			BetterBot.log("Exception!: "+inputFile+": "+e);
+			e.printStackTrace();
+			status = BetterBot.RETURN_ERROR;
+		}
+		finally
+		{
+			BetterBot.setLogTag(null);
+		}
+		seconds = (System.nanoTime() - startTime) / 1000000000.0;
+		return status;
+	}
+
+	public double getAudioSeconds()
+	{
+		return audioFrames / (double) sampleRate;
+	}
+}
@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder event for a whole job, from the header check to the output being closed. Its
+// StageEvents are the ones on the same thread inside it (in batch mode each worker runs one job at a
+// time). Allocation is only counted on that thread: the parallel analysis slices and the multitrack
+// tracks run on the shared fork-join pool, which other jobs use too, so theirs is left out here and
+// shows in their own StageEvents, on the pool's threads.
+@Name("betterbot.Job")
+@Label("BetterBot Job")
+@Category("BetterBot")
+@Description("One file processed")
+@StackTrace(false)
+public class JobEvent extends Event
+{
+	@Label("Input")
+	String input;
+
+	@Label("Output")
+	String output;
+
+	@Label("Mode")
+	String mode;
+
+	@Label("Result")
+	@Description("Return code: 0 ok, 1 error, 2 too long")
+	int result;
+
+	@Label("Frames")
+	long frames;
+
+	@Label("Throughput")
+	@Description("Frames per second")
+	@Frequency
+	double throughput;
+
+	@Label("Allocated")
+	@Description("Bytes allocated on the job's thread, not counting work done on the fork-join pool")
+	@DataAmount
+	long allocated;
+
+	transient long startNanos;
+	transient long startAllocated;
+
+	public static JobEvent begin(Job job)
+	{
+		JobEvent e = new JobEvent();
+		if (e.isEnabled())
+		{
+			e.input = job.inputFile;
+			e.output = job.outputFile;
+			e.mode = job.mode.toString();
+			e.startAllocated = StageEvent.allocatedBytes();
+			e.startNanos = System.nanoTime();
+			e.begin();
+		}
+		return e;
+	}
+
+
+	public void finish(Job job, int jobResult)
+	{
+		if (!isEnabled()) return;
+		end();
+		if (shouldCommit())
+		{
+			long nanos = System.nanoTime() - startNanos;
+			result = jobResult;
+			frames = job.audioFrames;
+			throughput = (nanos > 0) ? frames * 1e9 / nanos : 0.0;
+			allocated = (startAllocated < 0) ? -1 : StageEvent.allocatedBytes() - startAllocated;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,485 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Keeps one JVM up and takes jobs over HTTP on the loopback interface, so short files stop paying for
+// JVM startup and JIT warm-up on every run. Jobs run on a pool of worker threads, as in batch mode.
+//
+//   java BetterBot serve <port> [--workers=N] [--root=DIR ...] [options]
+//
+//   POST /jobs?input=in.wav&output=out.wav&mode=full[&options=--streaming+--lookahead-ms=10]
+//        Queues a job and streams its status back, a line per change, until it's done:
+//            7 queued
+//            7 running
+//            7 done 0 3.2s
+//        The last field but one is the job's return code (RETURN_OK, RETURN_ERROR, RETURN_TOO_LONG).
+//        Options are added after the server's own, so they override them for this job.
+//   GET  /jobs          One line per recent job: id, state, return code (once done), input
+//   GET  /jobs/7        The same for one job
+//   POST /shutdown      Stops taking jobs, lets the queued ones finish, and exits
+//
+// Paths are as the server sees them, so absolute paths are safest.
+//
+// Loopback only keeps other machines out, not other users of this one or a web page in a browser here, and
+// a job reads and writes whatever files it's given with the server's permissions. So every request has to
+// carry the token the server makes up at startup and logs, in an X-BetterBot-Token header or a token
+// query parameter; anything with an Origin header (a browser sending it from a page) is turned away, and
+// with --root the input and output have to be inside one of the given directories. A request can turn the
+// analysis cache off but not move it, since the cache directory is written to.
+public class JobServer
+{
+	public static final int HISTORY = 1000;		// Finished jobs remembered for GET /jobs
+	public static final String TOKEN_HEADER = "X-BetterBot-Token";
+
+	public static enum State { QUEUED, RUNNING, DONE };
+
+	// A job and where it's got to. Changes are signalled on the submission itself.
+	static class Submission implements Runnable
+	{
+		int id;
+		Job job;
+		volatile State state = State.QUEUED;
+
+		Submission(int jobId, Job j)
+		{
+			id = jobId;
+			job = j;
+		}
+
+		public void run()
+		{
+			setState(State.RUNNING);
+			try
+			{
+				job.call();
+			}
+			finally
+			{
+				setState(State.DONE);
+			}
+		}
+
+		synchronized void setState(State s)
+		{
+			state = s;
+			notifyAll();
+		}
+
+		// Waits for the state to move on from the given one, returns the new state
+		synchronized State awaitChange(State from) throws InterruptedException
+		{
+			while (state == from) wait();
+			return state;
+		}
+
+		synchronized String status()
+		{
+			String s = id + " " + state.toString().toLowerCase();
+			if (state == State.DONE) s += " " + job.status + " " + String.format("%.1f", job.seconds) + "s";
+			return s;
+		}
+	}
+
+	String[] serverOptions;
+	int workerCount;
+	List<File> roots;		// Empty = anywhere
+	String token;
+	ExecutorService workers;
+	HttpServer server;
+	CountDownLatch stopped = new CountDownLatch(1);
+
+	int nextId = 1;
+	Map<Integer, Submission> jobs = new LinkedHashMap<Integer, Submission>()
+	{
+		protected boolean removeEldestEntry(Map.Entry<Integer, Submission> eldest)
+		{
+			return size() > HISTORY && eldest.getValue().state == State.DONE;
+		}
+	};
+
+
+	public static int run(String[] args) throws Exception
+	{
+		log("************************************************");
+		log("SERVER MODE");
+		log("************************************************");
+
+		int port = Integer.parseInt(args[1]);
+
+		// --root is the server's own; the rest are job options
+		List<String> jobOptions = new ArrayList<String>();
+		List<File> roots = new ArrayList<File>();
+		for (int i=2;i<args.length;i++)
+		{
+			if (args[i].startsWith("--root="))
+			{
+				roots.add(new File(args[i].substring("--root=".length())));
+			}
+			else
+			{
+				jobOptions.add(args[i]);
+			}
+		}
+		String[] serverOptions = jobOptions.toArray(new String[jobOptions.size()]);
+		Options options = Options.parse(serverOptions, 0);
+
+		JobServer s = new JobServer(port, serverOptions, options.workers, roots);
+		s.stopped.await();
+		return BetterBot.RETURN_OK;
+	}
+
+
+	public JobServer(int port, String[] options, int workerThreads, List<File> rootDirectories) throws IOException
+	{
+		serverOptions = options;
+		workerCount = workerThreads;
+		roots = new ArrayList<File>();
+		for (File root : rootDirectories)
+		{
+			roots.add(root.getCanonicalFile());
+		}
+		token = newToken();
+		workers = Executors.newFixedThreadPool(workerCount);
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleJobs(exchange);
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleShutdown(exchange);
+			}
+		});
+
+		// Status streams hold their thread until the job is done, so they each get one
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+
+		log("Listening on "+server.getAddress());
+		log("Workers="+workerCount);
+		for (File root : roots)
+		{
+			log("Root="+root);
+		}
+		log("Token="+token);
+	}
+
+
+	private void handleJobs(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+
+			if (!allowed(exchange)) return;
+
+			if (method.equals("POST") && path.equals("/jobs"))
+			{
+				submit(exchange);
+			}
+			else if (method.equals("GET") && path.equals("/jobs"))
+			{
+				StringBuilder sb = new StringBuilder();
+				for (Submission s : history())
+				{
+					sb.append(s.status()).append(' ').append(s.job.inputFile).append('\n');
+				}
+				respond(exchange, 200, sb.toString());
+			}
+			else if (method.equals("GET") && path.startsWith("/jobs/"))
+			{
+				Submission s = find(path.substring("/jobs/".length()));
+				if (s == null)
+				{
+					respond(exchange, 404, "No such job\n");
+				}
+				else
+				{
+					respond(exchange, 200, s.status()+" "+s.job.inputFile+"\n");
+				}
+			}
+			else
+			{
+				respond(exchange, 405, "Use POST /jobs, GET /jobs or GET /jobs/<id>\n");
+			}
+		}
+		catch (Exception e)
+		{
+			log("Server error: "+e);
+			respond(exchange, 500, e+"\n");
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+
+	private void submit(HttpExchange exchange) throws Exception
+	{
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		String input = query.get("input");
+		String output = query.get("output");
+		String modeString = query.get("mode");
+		if (input == null || output == null || modeString == null)
+		{
+			respond(exchange, 400, "input, output and mode are required\n");
+			return;
+		}
+
+		if (!inRoots(input) || !inRoots(output))
+		{
+			respond(exchange, 403, "input and output have to be inside the server's roots\n");
+			return;
+		}
+		if (query.get("options") != null && query.get("options").contains("--analysis-cache="))
+		{
+			respond(exchange, 403, "The analysis cache is the server's to place\n");
+			return;
+		}
+
+		Options options;
+		try
+		{
+			options = Options.parse(jobArgs(query.get("options")), 0);
+		}
+		catch (Exception e)
+		{
+			respond(exchange, 400, e.getMessage()+"\n");
+			return;
+		}
+
+		Submission s;
+		synchronized (jobs)
+		{
+			if (workers.isShutdown())
+			{
+				respond(exchange, 503, "Shutting down\n");
+				return;
+			}
+			Job job = new Job(input, output, BetterBot.parseMode(modeString), options);
+			job.concurrentJobs = workerCount;
+			s = new Submission(nextId++, job);
+			job.logTag = "job "+s.id;
+			jobs.put(s.id, s);
+			workers.execute(s);
+		}
+		log("Job "+s.id+" queued: "+input);
+
+		// Stream each state as the job gets to it
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		OutputStream out = exchange.getResponseBody();
+		State state = null;
+		while (state != State.DONE)
+		{
+			String line;
+			synchronized (s)
+			{
+				state = (state == null) ? s.state : s.awaitChange(state);
+				line = s.status();
+			}
+			try
+			{
+				out.write((line+"\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			}
+			catch (IOException e)
+			{
+				// The client went away; the job carries on and can still be looked up
+				return;
+			}
+		}
+	}
+
+
+	private void handleShutdown(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if (!allowed(exchange)) return;
+			if (!exchange.getRequestMethod().equals("POST"))
+			{
+				respond(exchange, 405, "Use POST /shutdown\n");
+				return;
+			}
+
+			synchronized (jobs)
+			{
+				workers.shutdown();
+			}
+			respond(exchange, 200, "Finishing queued jobs, then stopping\n");
+		}
+		finally
+		{
+			exchange.close();
+		}
+
+		log("Shutting down...");
+		new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					// Stop anyway
+				}
+				server.stop(1);
+				stopped.countDown();
+			}
+		}.start();
+	}
+
+
+	// Responds and returns false unless the request has the token and didn't come from a web page
+	private boolean allowed(HttpExchange exchange) throws IOException
+	{
+		if (exchange.getRequestHeaders().getFirst("Origin") != null)
+		{
+			respond(exchange, 403, "Requests from web pages aren't accepted\n");
+			return false;
+		}
+
+		String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+		if (given == null) given = parseQuery(exchange.getRequestURI().getRawQuery()).get("token");
+		if (given == null || !MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8)))
+		{
+			respond(exchange, 401, "Needs the token from the server's log, in "+TOKEN_HEADER+" or ?token=\n");
+			return false;
+		}
+		return true;
+	}
+
+
+	// Whether the file is inside one of the roots, once links and ".." are resolved
+	private boolean inRoots(String fileName) throws IOException
+	{
+		if (roots.isEmpty()) return true;
+		File file = new File(fileName).getCanonicalFile();
+		for (File root : roots)
+		{
+			for (File f=file;f!=null;f=f.getParentFile())
+			{
+				if (f.equals(root)) return true;
+			}
+		}
+		return false;
+	}
+
+
+	// 128 random bits, in hex
+	private static String newToken()
+	{
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+		{
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+
+	// The server's options, then the job's
+	private String[] jobArgs(String jobOptions)
+	{
+		List<String> args = new ArrayList<String>();
+		for (String a : serverOptions) args.add(a);
+		if (jobOptions != null)
+		{
+			for (String a : jobOptions.trim().split("\\s+"))
+			{
+				if (a.length() > 0) args.add(a);
+			}
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+
+	private List<Submission> history()
+	{
+		synchronized (jobs)
+		{
+			return new ArrayList<Submission>(jobs.values());
+		}
+	}
+
+
+	private Submission find(String id)
+	{
+		try
+		{
+			synchronized (jobs)
+			{
+				return jobs.get(Integer.parseInt(id));
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+	{
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) return params;
+		for (String pair : query.split("&"))
+		{
+			int eq = pair.indexOf('=');
+			if (eq < 0) continue;
+			params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+		}
+		return params;
+	}
+
+
+	private static void respond(HttpExchange exchange, int code, String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
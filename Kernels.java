@@ -0,0 +1,40 @@
+// Per-sample loops that run over whole channels, so they're worth doing a vector at a time.
+// Kernels work on float[] ranges; StereoPair copies blocks out of its SampleStore to call them.
+//
+// INSTANCE is picked once at startup: the Vector API kernels if vector/VectorKernels.java has been
+// compiled and the JVM was started with --add-modules jdk.incubator.vector, otherwise ScalarKernels.
+public interface Kernels
+{
+	public static final Kernels INSTANCE = select();
+
+	// x[from..to) *= g
+	public void gain(float[] x, int from, int to, float g);
+
+	// Clamps x[from..to) to [-clipAt, clipAt]
+	public void clip(float[] x, int from, int to, float clipAt);
+
+	// max(peak, |x[from..to)|)
+	public float peak(float[] x, int from, int to, float peak);
+
+	// sum + x[from..to)^2, carried in a float
+	public float sumSquares(float[] x, int from, int to, float sum);
+
+	// sums[0] += |x|, sums[1] += x^2 over x[from..to)
+	public void absSums(float[] x, int from, int to, double[] sums);
+
+	public String getName();
+
+
+	private static Kernels select()
+	{
+		try
+		{
+			return (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e)
+		{
+			// Not compiled, or jdk.incubator.vector not added to the JVM
+			return new ScalarKernels();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+import java.util.Arrays;
+
+// Lookahead brickwall limiter, stereo linked. Nothing comes out above the ceiling, and the gain moves
+// smoothly into each peak instead of cutting it at its zero crossings like peakReduce.
+//
+// For every frame, the gain it needs is ceiling/peak. The limiter takes the lowest needed gain over the
+// next lookahead frames (the peak of that window, kept in a monotonic deque so each frame costs O(1)),
+// lets it recover towards unity at the release rate, and averages that over the lookahead. Every value
+// in the average already allows for the frame it lands on, so the smoothed gain does too; the clamp at
+// the end only catches rounding.
+//
+// The audio is delayed by lookahead-1 frames (see DelayStage). Peaks are sample peaks, not
+// oversampled true peaks. A one-channel block (a MultiTrack track) is limited on its own, as if both
+// channels were the same.
+public class Limiter implements DelayStage
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+	private static final float RECOVERED = 0.99999f;	// Close enough to unity (-100db) to stop limiting
+
+	float ceiling;
+	int window;			// Lookahead, in frames
+	float release;		// Fraction of the way back to unity per frame
+
+	float[][] ring;		// [channel][window], frame p in slot p % window
+
+	// Window peak: positions and peaks, decreasing, in a ring of window entries
+	int[] dequePos;
+	float[] dequePeak;
+	int head = 0, count = 0;
+
+	float recovered = 1.0f;		// Gain after release, for the last frame
+	float[] smoothing;			// Last window recovered gains, frame p in slot p % window
+	double sum;					// Their sum
+
+	int first = -1;		// Position of the first frame in
+	int next;			// Position of the next frame in, including the silence pushed in by flush
+	int end = -1;		// Position after the last real frame, once flush has started
+	int out;			// Position of the next frame out
+
+	float minGain = 1.0f;
+	int framesLimited = 0;
+
+	public Limiter(float ceilingLevel, int lookaheadMs, int releaseMs, float sampleRate)
+	{
+		ceiling = ceilingLevel;
+		window = Math.max(1, StereoPair.msToSamples(lookaheadMs, sampleRate));
+		release = (float) (1 - Math.exp(-1.0 / Math.max(1, StereoPair.msToSamples(releaseMs, sampleRate))));
+
+		ring = new float[2][window];
+		dequePos = new int[window];
+		dequePeak = new float[window];
+		smoothing = new float[window];
+		Arrays.fill(smoothing, 1.0f);
+		sum = window;
+	}
+
+
+	public int getLatency()
+	{
+		return window-1;
+	}
+
+
+	public float getMinGain()
+	{
+		return minGain;
+	}
+
+
+	public int getFramesLimited()
+	{
+		return framesLimited;
+	}
+
+
+	public void process(float[][] block, int from, int to, int position)
+	{
+		if (first < 0)
+		{
+			first = position;
+			out = position;
+		}
+
+		for (int i=from;i<to;i++)
+		{
+			int pos = position + (i-from);
+			float l = block[LEFT][i];
+			float r = (block.length > 1) ? block[RIGHT][i] : l;
+			push(l, r, pos);
+
+			if (pos-getLatency() >= first)
+			{
+				emit(block, i);
+			}
+			else
+			{
+				block[LEFT][i] = 0.0f;
+				if (block.length > 1) block[RIGHT][i] = 0.0f;
+			}
+		}
+	}
+
+
+	// The real frames still held back come out as silence is pushed in behind them
+	public int flush(float[][] block, int from, int to)
+	{
+		if (first < 0) return 0;
+		if (end < 0) end = next;
+
+		int frames = 0;
+		for (int i=from;i<to && out<end;i++)
+		{
+			push(0.0f, 0.0f, next);
+			emit(block, i);
+			frames++;
+		}
+		return frames;
+	}
+
+
+	// Takes in the frame at pos, which settles the gain for the frame at pos-latency
+	private void push(float l, float r, int pos)
+	{
+		int slot = pos % window;
+		ring[LEFT][slot] = l;
+		ring[RIGHT][slot] = r;
+
+		// Window peak over [pos-window+1, pos]
+		float peak = Math.max(Math.abs(l), Math.abs(r));
+		while (count > 0 && dequePeak[(head+count-1) % window] <= peak) count--;
+		dequePos[(head+count) % window] = pos;
+		dequePeak[(head+count) % window] = peak;
+		count++;
+		while (dequePos[head] <= pos-window)
+		{
+			head = (head+1) % window;
+			count--;
+		}
+
+		// Lowest gain needed over the window, then recovery towards unity
+		float needed = (dequePeak[head] > ceiling) ? ceiling/dequePeak[head] : 1.0f;
+		recovered = Math.min(needed, recovered + (1.0f-recovered)*release);
+		if (recovered > RECOVERED) recovered = 1.0f;	// Float steps would never quite get there
+
+		// Average over the window
+		sum += recovered - smoothing[slot];
+		smoothing[slot] = recovered;
+
+		next = pos + 1;
+	}
+
+
+	// Writes the frame at out into block[..][i], with its gain
+	private void emit(float[][] block, int i)
+	{
+		int slot = out % window;
+		float g = (float) (sum/window);
+		if (g < 1.0f)
+		{
+			framesLimited++;
+			if (g < minGain) minGain = g;
+		}
+
+		block[LEFT][i] = clamp(ring[LEFT][slot]*g);
+		if (block.length > 1) block[RIGHT][i] = clamp(ring[RIGHT][slot]*g);
+		out++;
+	}
+
+
+	private float clamp(float x)
+	{
+		return Math.max(-ceiling, Math.min(ceiling, x));
+	}
+}
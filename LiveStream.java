@@ -0,0 +1,268 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Live processing: 16-bit little-endian PCM in on stdin (44.1khz unless --rate says otherwise), a small
+// block at a time, and the same out on stdout (always stereo). The log goes to stderr.
+//
+//   java BetterBot stream [--channels=1|2] [--rate=48000] [--block-ms=10] [--reference=episode.wav] [options]
+//
+// Only the causal part of the chain runs, each stage keeping its state from one block to the next:
+//
+//   DC offset, input gain, channel balance, EQ, rumble filter, ambience (mono input), boost, lookahead limiter
+//
+// Input gain, balance, EQ and boost need an analysis, so they come from a reference recording made the
+// same way (e.g. last week's show); without one they're left out. Phrase dynamics and the noise gate need to see
+// seconds ahead, and the final normalize needs a whole-file peak, so they don't run live; the limiter holds
+// the output under full scale instead.
+//
+// Latency: the limiter delays the audio by its lookahead less one frame (5ms by default, --lookahead-ms),
+// so the output starts with that much silence and the rest is flushed at the end of the input. Add a
+// block (--block-ms) for the buffering on the way in. Every REPORT_SECONDS of audio, the log reports
+// how long blocks took to process against the time they last for.
+//
+// Positions are ints, so one run can go for about 13.5 hours at 44.1khz.
+public class LiveStream
+{
+	public static final int DEFAULT_BLOCK_MS = 10;
+	public static final int REPORT_SECONDS = 10;
+
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	int channels = 2;
+	float sampleRate;
+	int blockFrames;
+	List<BlockStage> chain = new ArrayList<BlockStage>();
+	Limiter limiter;
+
+	// Processing time per block, since the last report and overall
+	long reportNanos = 0, reportMaxNanos = 0;
+	int reportBlocks = 0;
+	long totalNanos = 0, maxNanos = 0;
+	int totalBlocks = 0, overruns = 0;
+
+	public static int run(String[] args) throws Exception
+	{
+		// stdout carries the audio, so the log moves to stderr
+		PrintStream audioOut = System.out;
+		System.setOut(System.err);
+
+		log("************************************************");
+		log("STREAM MODE");
+		log("************************************************");
+
+		int channels = 2;
+		float sampleRate = FrameReader.MIN_SAMPLE_RATE;
+		int blockMs = DEFAULT_BLOCK_MS;
+		String reference = null;
+		List<String> rest = new ArrayList<String>();
+		for (int i=1;i<args.length;i++)
+		{
+			if (args[i].startsWith("--channels="))
+			{
+				channels = Integer.parseInt(args[i].substring("--channels=".length()));
+				if (channels != 1 && channels != 2) throw new Exception("Only mono or stereo supported.");
+			}
+			else if (args[i].startsWith("--rate="))
+			{
+				sampleRate = Float.parseFloat(args[i].substring("--rate=".length()));
+			}
+			else if (args[i].startsWith("--block-ms="))
+			{
+				blockMs = Integer.parseInt(args[i].substring("--block-ms=".length()));
+			}
+			else if (args[i].startsWith("--reference="))
+			{
+				reference = args[i].substring("--reference=".length());
+			}
+			else
+			{
+				rest.add(args[i]);
+			}
+		}
+		Options options = Options.parse(rest.toArray(new String[rest.size()]), 0);
+
+		LiveStream stream = new LiveStream(channels, sampleRate, Math.max(1, StereoPair.msToSamples(blockMs, sampleRate)), reference, options);
+		stream.process(System.in, audioOut);
+		return BetterBot.RETURN_OK;
+	}
+
+
+	public LiveStream(int channelCount, float rate, int frames, String reference, Options options) throws Exception
+	{
+		channels = channelCount;
+		sampleRate = rate;
+		blockFrames = frames;
+
+		chain.add(new Stages.DCOffset(sampleRate));
+		float boost = 1.0f;
+		if (reference != null)
+		{
+			// Analyzed as the streaming engine would, at its own rate. The input gain is the one that
+			// normalized the reference, which the balance and boost were worked out after.
+			log("Reference: "+reference);
+			StreamingEngine engine = new StreamingEngine(reference, StreamingEngine.DEFAULT_BLOCK_SIZE);
+			engine.options = options;
+			engine.analyze(StereoPair.minToSamples(BetterBot.ANALYZE_START_MIN, engine.sampleRate), StereoPair.minToSamples(BetterBot.ANALYZE_END_MIN, engine.sampleRate));
+			chain.add(new Stages.Gain(engine.inputGain));
+			chain.add(Stages.channelBalance(engine.RMSL, engine.RMSR));
+			StereoPair.addEqStages(chain, engine.bandMult, options, sampleRate);
+			boost = engine.overallGainFactor;
+		}
+		chain.add(BiquadCascade.parse(options.rumbleFilter, StereoPair.FilterType.HIPASS, StereoPair.RUMBLE_HZ, StereoPair.RUMBLE_Q, sampleRate));
+		if (channels == 1) chain.add(new Stages.Ambience(sampleRate));
+		if (boost > 1.0f) chain.add(new Stages.Gain(boost));
+
+		// Last, so it's the only stage that sees delayed frames
+		limiter = StereoPair.limiter(options, sampleRate);
+		chain.add(limiter);
+
+		List<BlockStage> compiled = new ArrayList<BlockStage>();
+		for (BlockStage stage : chain)
+		{
+			if (!ChainPlan.isNoOp(stage)) compiled.add(stage);
+		}
+		chain = compiled;
+
+		log("Channels in="+channels);
+		log("Sample rate="+sampleRate);
+		log("Block="+blockFrames+" frames ("+StereoPair.samplesToMs(blockFrames, sampleRate)+"ms)");
+		log("Boost="+boost);
+		log("Stages="+chain.size());
+		log("Latency="+limiter.getLatency()+" frames ("+String.format("%.1f", limiter.getLatency()*1000.0/sampleRate)+"ms), plus up to a block of buffering");
+	}
+
+
+	public void process(InputStream in, OutputStream out) throws IOException
+	{
+		DataInputStream input = new DataInputStream(in);
+		byte[] inBytes = new byte[blockFrames*channels*2];
+		byte[] outBytes = new byte[blockFrames*4];
+		float[][] block = new float[2][blockFrames];
+		double blockBudgetNanos = blockFrames * 1e9 / sampleRate;
+		int reportFrames = (int) (REPORT_SECONDS*sampleRate);
+
+		int position = 0;
+		while (true)
+		{
+			int bytes = readBlock(input, inBytes);
+			int frames = bytes / (channels*2);
+			if (frames == 0) break;
+
+			long start = System.nanoTime();
+			decode(inBytes, frames, block);
+			for (BlockStage stage : chain)
+			{
+				stage.process(block, 0, frames, position);
+			}
+			long nanos = System.nanoTime() - start;
+			account(nanos, nanos > blockBudgetNanos * frames / blockFrames);
+
+			write(out, block, frames, outBytes);
+			position += frames;
+
+			if (reportBlocks > 0 && position / reportFrames != (position-frames) / reportFrames)
+			{
+				report(position, blockBudgetNanos);
+			}
+			if (bytes < inBytes.length) break;
+		}
+
+		// The frames still in the limiter's lookahead
+		int frames;
+		while ((frames = limiter.flush(block, 0, blockFrames)) > 0)
+		{
+			write(out, block, frames, outBytes);
+		}
+		out.flush();
+
+		log("------------------------------------------------");
+		log("Stream ended after "+String.format("%.1f", position/sampleRate)+"s");
+		if (totalBlocks > 0)
+		{
+			log("Blocks="+totalBlocks+", processing per block: mean="+ms(totalNanos/totalBlocks)+"ms, max="+ms(maxNanos)+"ms, budget="+ms((long) blockBudgetNanos)+"ms, overruns="+overruns);
+		}
+		StereoPair.logLimiter(limiter);
+	}
+
+
+	// Fills the buffer unless the input ends first, returns the bytes read (a whole number of frames)
+	private int readBlock(DataInputStream input, byte[] buffer) throws IOException
+	{
+		int read = 0;
+		while (read < buffer.length)
+		{
+			int n = input.read(buffer, read, buffer.length-read);
+			if (n < 0) break;
+			read += n;
+		}
+		return read - read % (channels*2);
+	}
+
+
+	private void decode(byte[] bytes, int frames, float[][] block)
+	{
+		for (int i=0;i<frames;i++)
+		{
+			int b = i*channels*2;
+			block[LEFT][i] = (short) ((bytes[b] & 0xff) | (bytes[b+1] << 8)) / 32768.0f;
+			block[RIGHT][i] = (channels == 2) ? (short) ((bytes[b+2] & 0xff) | (bytes[b+3] << 8)) / 32768.0f : block[LEFT][i];
+		}
+	}
+
+
+	private static void write(OutputStream out, float[][] block, int frames, byte[] bytes) throws IOException
+	{
+		for (int i=0;i<frames;i++)
+		{
+			short l = PcmWriter.quantize(block[LEFT][i]);
+			short r = PcmWriter.quantize(block[RIGHT][i]);
+			bytes[4*i] = (byte) l;
+			bytes[4*i+1] = (byte) (l >> 8);
+			bytes[4*i+2] = (byte) r;
+			bytes[4*i+3] = (byte) (r >> 8);
+		}
+		out.write(bytes, 0, frames*4);
+		out.flush();
+	}
+
+
+	private void account(long nanos, boolean overrun)
+	{
+		reportNanos += nanos;
+		reportMaxNanos = Math.max(reportMaxNanos, nanos);
+		reportBlocks++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+		totalBlocks++;
+		if (overrun) overruns++;
+	}
+
+
+	private void report(int position, double blockBudgetNanos)
+	{
+		log(String.format("%.0fs: %d blocks, processing per block mean=%sms max=%sms (budget %sms), %.0fx real time, overruns=%d",
+			position/sampleRate, reportBlocks, ms(reportNanos/reportBlocks), ms(reportMaxNanos), ms((long) blockBudgetNanos),
+			blockBudgetNanos*reportBlocks/Math.max(1, reportNanos), overruns));
+		reportNanos = 0;
+		reportMaxNanos = 0;
+		reportBlocks = 0;
+	}
+
+
+	private static String ms(long nanos)
+	{
+		return String.format("%.3f", nanos/1e6);
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
@@ -0,0 +1,262 @@
+import java.util.Arrays;
+
+// ITU-R BS.1770-4 / EBU R128 loudness, measured as blocks go by. Only the K-weighted energy of each 100ms
+// hop is kept, so the meter can ride along in an analysis or streaming pass and everything is worked out
+// from the hops afterwards, without reading the audio again:
+//
+//   - integrated loudness: 400ms blocks every 100ms, gated at -70 LUFS and then 10 LU below the
+//     loudness of what's left (BS.1770-4)
+//   - loudness range: 3s blocks every 100ms, gated at -70 LUFS and 20 LU below, the spread between
+//     the 10th and 95th percentiles (EBU Tech 3342)
+//   - momentary (400ms) and short-term (3s) maximum
+//
+// Left and right are weighted 1.0 each. Hops are counted from the origin position, so meters that ran
+// over different slices of the same range can be merged.
+public class LoudnessMeter implements Measurement
+{
+	public static final int HOP_MS = 100;
+	public static final int MOMENTARY_HOPS = 4;		// 400ms
+	public static final int SHORT_TERM_HOPS = 30;	// 3s
+	public static final double ABSOLUTE_GATE = -70.0;	// LUFS
+	public static final double RELATIVE_GATE = -10.0;	// LU, integrated
+	public static final double RANGE_GATE = -20.0;		// LU, loudness range
+
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	int hop;
+	int origin;
+	double[] energy = new double[256];	// K-weighted sum of squares per hop, both channels
+	int reached;						// Position after the last frame measured
+
+	// K-weighting: high shelf then high pass, per channel (transposed direct form II)
+	double[][] b = new double[2][3];
+	double[][] a = new double[2][3];
+	double[][] z1 = new double[2][2];	// [channel][section]
+	double[][] z2 = new double[2][2];
+
+	// K-weighting designed for the sample rate (at 48khz these are the BS.1770 coefficients)
+	public LoudnessMeter(int originPosition, float sampleRate)
+	{
+		origin = originPosition;
+		reached = originPosition;
+		hop = StereoPair.msToSamples(HOP_MS, sampleRate);
+
+		// Pre-filter (head effects): high shelf, +4db above about 1.5khz
+		double k = Math.tan(Math.PI*1681.974450955533/sampleRate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10.0, 3.999843853973347/20.0);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1.0 + k/q + k*k;
+		b[0][0] = (vh + vb*k/q + k*k)/a0;
+		b[0][1] = 2.0*(k*k - vh)/a0;
+		b[0][2] = (vh - vb*k/q + k*k)/a0;
+		a[0][1] = 2.0*(k*k - 1.0)/a0;
+		a[0][2] = (1.0 - k/q + k*k)/a0;
+
+		// RLB weighting: high pass at about 38hz
+		k = Math.tan(Math.PI*38.13547087602444/sampleRate);
+		q = 0.5003270373238773;
+		a0 = 1.0 + k/q + k*k;
+		b[1][0] = 1.0;
+		b[1][1] = -2.0;
+		b[1][2] = 1.0;
+		a[1][1] = 2.0*(k*k - 1.0)/a0;
+		a[1][2] = (1.0 - k/q + k*k)/a0;
+	}
+
+
+	public void process(float[][] block, int from, int to, int position)
+	{
+		int pos = position;
+		int i = from;
+		while (i < to)
+		{
+			if (pos < origin)
+			{
+				// Before the first hop, only the filters run
+				int n = Math.min(to-i, origin-pos);
+				weightedSquares(block[LEFT], i, i+n, LEFT);
+				weightedSquares(block[RIGHT], i, i+n, RIGHT);
+				i += n;
+				pos += n;
+				continue;
+			}
+
+			// Up to the end of this hop
+			int h = (pos-origin)/hop;
+			int n = Math.min(to-i, origin + (h+1)*hop - pos);
+			if (h >= energy.length) energy = Arrays.copyOf(energy, Math.max(h+1, energy.length*2));
+			energy[h] += weightedSquares(block[LEFT], i, i+n, LEFT) + weightedSquares(block[RIGHT], i, i+n, RIGHT);
+			i += n;
+			pos += n;
+		}
+		reached = Math.max(reached, pos);
+	}
+
+
+	private double weightedSquares(float[] x, int from, int to, int chan)
+	{
+		double b0 = b[0][0], b1 = b[0][1], b2 = b[0][2], a1 = a[0][1], a2 = a[0][2];
+		double c0 = b[1][0], c1 = b[1][1], c2 = b[1][2], d1 = a[1][1], d2 = a[1][2];
+		double s1 = z1[chan][0], s2 = z2[chan][0];
+		double t1 = z1[chan][1], t2 = z2[chan][1];
+		double sum = 0.0;
+		for (int i=from;i<to;i++)
+		{
+			double v = x[i];
+			double y = b0*v + s1;
+			s1 = b1*v - a1*y + s2;
+			s2 = b2*v - a2*y;
+			double w = c0*y + t1;
+			t1 = c1*y - d1*w + t2;
+			t2 = c2*y - d2*w;
+			sum += w*w;
+		}
+		z1[chan][0] = s1;
+		z2[chan][0] = s2;
+		z1[chan][1] = t1;
+		z2[chan][1] = t2;
+		return sum;
+	}
+
+
+	// Everything is worked out from the hops when asked for
+	public void finish(int end)
+	{
+	}
+
+
+	// Forget the energies but keep the filter state, e.g. after running a warm-up pre-roll
+	public void clearSums()
+	{
+		Arrays.fill(energy, 0.0);
+		reached = origin;
+	}
+
+
+	// Adds the hops another meter with the same origin measured (a later slice of the range)
+	public void merge(LoudnessMeter other)
+	{
+		if (other.energy.length > energy.length) energy = Arrays.copyOf(energy, other.energy.length);
+		for (int h=0;h<other.energy.length;h++)
+		{
+			energy[h] += other.energy[h];
+		}
+		reached = Math.max(reached, other.reached);
+	}
+
+
+	// Hops measured all the way through
+	private int hops()
+	{
+		return Math.min(energy.length, (reached-origin)/hop);
+	}
+
+
+	// Mean square of every window of the given number of hops, one per hop
+	private double[] windows(int length)
+	{
+		int count = Math.max(0, hops()-length+1);
+		double[] z = new double[count];
+		double sum = 0.0;
+		for (int h=0;h<length-1 && h<hops();h++) sum += energy[h];
+		for (int w=0;w<count;w++)
+		{
+			sum += energy[w+length-1];
+			z[w] = Math.max(0.0, sum/(length*hop));
+			sum -= energy[w];
+		}
+		return z;
+	}
+
+
+	public static double loudness(double meanSquare)
+	{
+		return -0.691 + 10.0*Math.log10(meanSquare);
+	}
+
+
+	// Integrated loudness in LUFS, -infinity if nothing gets through the gates
+	public double getIntegrated()
+	{
+		double[] z = windows(MOMENTARY_HOPS);
+		double gate = gatedMean(z, ABSOLUTE_GATE);
+		if (gate == 0.0) return Double.NEGATIVE_INFINITY;
+		return loudness(gatedMean(z, Math.max(ABSOLUTE_GATE, loudness(gate) + RELATIVE_GATE)));
+	}
+
+
+	// Loudness range in LU
+	public double getLoudnessRange()
+	{
+		double[] z = windows(SHORT_TERM_HOPS);
+		double gate = gatedMean(z, ABSOLUTE_GATE);
+		if (gate == 0.0) return 0.0;
+		double threshold = Math.max(ABSOLUTE_GATE, loudness(gate) + RANGE_GATE);
+
+		double[] levels = new double[z.length];
+		int count = 0;
+		for (int w=0;w<z.length;w++)
+		{
+			double l = loudness(z[w]);
+			if (l > threshold) levels[count++] = l;
+		}
+		if (count == 0) return 0.0;
+		Arrays.sort(levels, 0, count);
+		return levels[percentile(count, 0.95)] - levels[percentile(count, 0.10)];
+	}
+
+
+	public double getMomentaryMax()
+	{
+		return max(windows(MOMENTARY_HOPS));
+	}
+
+
+	public double getShortTermMax()
+	{
+		return max(windows(SHORT_TERM_HOPS));
+	}
+
+
+	private static int percentile(int count, double p)
+	{
+		return (int) Math.min(count-1, Math.round(p*(count-1)));
+	}
+
+
+	// Mean of the windows louder than the gate, 0 if there are none
+	private static double gatedMean(double[] z, double gate)
+	{
+		double sum = 0.0;
+		int count = 0;
+		for (int w=0;w<z.length;w++)
+		{
+			if (loudness(z[w]) > gate)
+			{
+				sum += z[w];
+				count++;
+			}
+		}
+		return (count == 0) ? 0.0 : sum/count;
+	}
+
+
+	private static double max(double[] z)
+	{
+		double m = 0.0;
+		for (int w=0;w<z.length;w++)
+		{
+			m = Math.max(m, z[w]);
+		}
+		return loudness(m);
+	}
+
+
+	public void report(String what)
+	{
+		BetterBot.log(String.format(what+" loudness: integrated=%.1f LUFS, range=%.1f LU, short-term max=%.1f LUFS, momentary max=%.1f LUFS",
+			getIntegrated(), getLoudnessRange(), getShortTermMax(), getMomentaryMax()));
+	}
+}
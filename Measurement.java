@@ -0,0 +1,9 @@
+
+// A stage that only reads, measuring something over the whole range (a peak, the phrase list, the peak
+// regions). Its result is ready once the pass it's in has run to the end, so ChainPlan ends a pass after
+// one when a later stage is built from it.
+public interface Measurement extends BlockStage
+{
+	// After the last block, with the position reached
+	public void finish(int end);
+}
@@ -0,0 +1,443 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// A recording with more than two tracks (host, guests, room mic), kept planar: one float[] per track.
+// Instead of being downmixed, each track goes through the chain a mono episode would, set up from its
+// own analysis, and the tracks run as separate fork-join tasks so a 4-8 track session spreads across
+// the cores. The output has the same tracks.
+//
+// Per track, as StereoPair.processChain: normalize, analysis, then DC offset, EQ, rumble filter,
+// normalize, phrase dynamics, boost to target RMS through the lookahead limiter, normalize. Channel
+// balance and ambience only mean something for a stereo pair, so they're left out, and so is the
+// phrase envelope debug channel. Gain is to the RMS target (not --loudness-target), peaks are always
+// held by the limiter, and the EQ is always a bank.
+//
+// Tracks are on the heap, converted to 16-bit at the processing rate (see FrameReader) as they're loaded.
+// BetterBot turns a file away from its header if they wouldn't fit the job's heap share; a stream that
+// doesn't give its length is held to the same limit as it loads.
+public class MultiTrack
+{
+	private static final int LOAD_BLOCK_SIZE = 65536;	// Frames per read when loading
+
+	float[][] tracks;		// [track][frame]
+	int length = 0;
+	float[] restPeak;		// [track], of the frames past maxFrames that weren't loaded
+	int processStart, processEnd;
+	AudioFileFormat.Type fileType;
+	float sampleRate;
+	Options options = new Options();
+
+	// Per track
+	float[] RMS;
+	float[][] bandRMS;
+	float[][] bandMult;
+	float[] overallGainFactor;
+	float[] minGain;
+	int[] framesLimited;
+
+	public MultiTrack(String fileName, int maxFrames, long heapBytes) throws UnsupportedAudioFileException, IOException, Exception
+	{
+		log("Loading file: "+fileName);
+		StageEvent event = StageEvent.begin("load");
+
+		if (fileName.toUpperCase().indexOf(".WAV") > 0)
+		{
+			fileType = AudioFileFormat.Type.WAVE;
+		}
+		else if (fileName.toUpperCase().indexOf(".AIF") > 0)
+		{
+			fileType = AudioFileFormat.Type.AIFF;
+		}
+		else
+		{
+			throw new Exception("Unsupported file format.");
+		}
+
+		AudioInputStream original = AudioSystem.getAudioInputStream(new File(fileName));
+		AudioInputStream ais = original;
+		try
+		{
+			int channels = original.getFormat().getChannels();
+			sampleRate = FrameReader.processingRate(original.getFormat().getSampleRate());
+			AudioFormat converted = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, channels, channels*2, sampleRate, false);
+			ais = AudioSystem.getAudioInputStream(converted, original);
+			log("File format="+fileType+", tracks="+channels+", sample rate="+sampleRate);
+
+			long frameLength = ais.getFrameLength();
+			int capacity = (frameLength > 0) ? (int) Math.min(frameLength, maxFrames) : LOAD_BLOCK_SIZE;
+			tracks = new float[channels][capacity];
+			if (maxFrames < Integer.MAX_VALUE) log("Loading the first "+maxFrames+" frames only");
+
+			// Deinterleave a block at a time, growing the tracks if the stream didn't know its length
+			byte[] bytes = new byte[LOAD_BLOCK_SIZE*channels*2];
+			ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			while (length < maxFrames)
+			{
+				int wanted = Math.min(LOAD_BLOCK_SIZE, maxFrames-length)*channels*2;
+				int read = readFully(ais, bytes, wanted);
+				int frames = read / (channels*2);
+				if (frames == 0) break;
+
+				if ((long) (length+frames)*channels*4 > heapBytes)
+				{
+					throw new Exception("Multitrack file too big for the heap: "+channels+" tracks over "+heapBytes/(1024*1024)+"MB");
+				}
+				if (length+frames > tracks[0].length) grow(length+frames, heapBytes);
+				bb.clear();
+				for (int i=0;i<frames;i++)
+				{
+					for (int c=0;c<channels;c++)
+					{
+						tracks[c][length+i] = bb.getShort() / 32768.0f;
+					}
+				}
+				length += frames;
+				if (read < wanted) break;
+			}
+
+			// Preview and analysis stop loading at maxFrames. The rest is only read for each track's peak,
+			// so the normalize goes by the whole file as it does in full.
+			restPeak = new float[channels];
+			int read;
+			while (length == maxFrames && (read = readFully(ais, bytes, bytes.length)) > 0)
+			{
+				bb.clear();
+				for (int i=0;i<read/(channels*2);i++)
+				{
+					for (int c=0;c<channels;c++)
+					{
+						restPeak[c] = Math.max(restPeak[c], Math.abs(bb.getShort() / 32768.0f));
+					}
+				}
+			}
+		}
+		finally
+		{
+			// Closes the original too
+			ais.close();
+		}
+		event.finish(length);
+		log("Total frames="+length);
+
+		processStart = 0;
+		processEnd = length;
+
+		int n = tracks.length;
+		RMS = new float[n];
+		bandRMS = new float[n][StereoPair.BANDS_HZ.length];
+		bandMult = new float[n][StereoPair.BANDS_HZ.length];
+		overallGainFactor = new float[n];
+		minGain = new float[n];
+		framesLimited = new int[n];
+
+		log("------------------------------------------------");
+	}
+
+
+	// Reads until the buffer has wanted bytes or the stream ends, returns the bytes read
+	private static int readFully(AudioInputStream ais, byte[] bytes, int wanted) throws IOException
+	{
+		int read = 0;
+		while (read < wanted)
+		{
+			int n = ais.read(bytes, read, wanted-read);
+			if (n < 0) break;
+			read += n;
+		}
+		return read;
+	}
+
+
+	private void grow(int frames, long heapBytes)
+	{
+		long limit = Math.min(Integer.MAX_VALUE-8, heapBytes/(tracks.length*4L));
+		int capacity = (int) Math.min(limit, Math.max(frames, tracks[0].length*2L));
+		for (int c=0;c<tracks.length;c++)
+		{
+			float[] t = new float[capacity];
+			System.arraycopy(tracks[c], 0, t, 0, length);
+			tracks[c] = t;
+		}
+	}
+
+
+	public int getLength()
+	{
+		return length;
+	}
+
+
+	public int getTrackCount()
+	{
+		return tracks.length;
+	}
+
+
+	public void setProcessStart(int x)
+	{
+		processStart = (x > length) ? 0 : x;
+	}
+
+
+	public void setProcessEnd(int x)
+	{
+		processEnd = (x > length) ? length : x;
+	}
+
+
+	// Normalizes each track over the process range on its own (and anything past maxFrames)
+	public void normalize() throws Exception
+	{
+		log("Normalizing "+tracks.length+" tracks...");
+		StageEvent event = StageEvent.begin("normalize");
+		forEachTrack(new Track()
+		{
+			public void run(int t) throws IOException
+			{
+				float[][] track = { tracks[t] };
+				Stages.PeakMeter meter = new Stages.PeakMeter();
+				meter.process(track, processStart, processEnd, processStart);
+				float peak = Math.max(meter.getPeak(), restPeak[t]);
+				if (peak > 0.0f) new Stages.Gain(StereoPair.normalizeFactor(peak)).process(track, processStart, processEnd, processStart);
+			}
+		});
+		event.finish((long) (processEnd-processStart)*tracks.length);
+	}
+
+
+	// RMS and band RMS of each track over the process range, then the EQ and gain they call for
+	public void analyze() throws Exception
+	{
+		log("Analyzing RMS and "+StereoPair.BANDS_HZ.length+" frequency bands of "+tracks.length+" tracks on "+ParallelAnalysis.pool.getParallelism()+" threads...");
+
+		StageEvent event = StageEvent.begin("analysis");
+		forEachTrack(new Track()
+		{
+			public void run(int t) throws IOException
+			{
+				Stages.Analysis analysis = new Stages.Analysis(sampleRate);
+				analysis.process(new float[][] { tracks[t] }, processStart, processEnd, processStart);
+				RMS[t] = analysis.getRMS(0);
+				for (int i=0;i<StereoPair.BANDS_HZ.length;i++)
+				{
+					bandRMS[t][i] = analysis.getBandRMS(i);
+				}
+			}
+		});
+		event.finish((long) (processEnd-processStart)*tracks.length);
+
+		for (int t=0;t<tracks.length;t++)
+		{
+			log("------------------------------------------------");
+			log("Track "+t+": RMS="+RMS[t]);
+			if (RMS[t] == 0.0f)
+			{
+				log("Silent, left as it is");
+				continue;
+			}
+			for (int i=0;i<StereoPair.BANDS_HZ.length;i++)
+			{
+				log("Band #"+i+": Band RMS="+bandRMS[t][i]);
+			}
+			StereoPair.calculateBandMultipliers(RMS[t], RMS[t], bandRMS[t], bandMult[t]);
+			overallGainFactor[t] = StereoPair.calculateTargetGain(RMS[t], RMS[t]);
+		}
+		log("Analysis complete.");
+		log("------------------------------------------------");
+	}
+
+
+	// The FULL chain on every track, each as its own task, then one interleaved save
+	public void processChain(String filename) throws Exception
+	{
+		log("Processing "+tracks.length+" tracks on "+ParallelAnalysis.pool.getParallelism()+" threads...");
+		StageEvent event = StageEvent.begin("tracks");
+		forEachTrack(new Track()
+		{
+			public void run(int t) throws IOException
+			{
+				if (RMS[t] > 0.0f) processTrack(t);
+			}
+		});
+		event.finish((long) (processEnd-processStart)*tracks.length);
+
+		for (int t=0;t<tracks.length;t++)
+		{
+			if (RMS[t] > 0.0f) log("Track "+t+": gainFactor="+overallGainFactor[t]+", limited frames="+framesLimited[t]+" min gain="+minGain[t]);
+		}
+
+		log("Saving file: "+ filename);
+		StageEvent saveEvent = StageEvent.begin("save");
+		PcmWriter writer = new PcmWriter(filename, fileType, processEnd-processStart, tracks.length, sampleRate);
+		try
+		{
+			writer.write(tracks, processStart, processEnd);
+			writer.close();
+		}
+		finally
+		{
+			writer.abandon();
+		}
+		saveEvent.finish(processEnd-processStart);
+	}
+
+
+	// The chain of StereoPair.processChain, on one track
+	private void processTrack(int t) throws IOException
+	{
+		final Stages.PeakMeter filterMeter = new Stages.PeakMeter();
+		final Stages.PhraseDetector phraseDetector = new Stages.PhraseDetector(RMS[t], sampleRate);
+		final Stages.PeakMeter boostMeter = new Stages.PeakMeter();
+		Limiter limiter = null;
+
+		List<BlockStage> chain = new ArrayList<BlockStage>();
+		chain.add(new Stages.DCOffset(sampleRate));
+		chain.add(EqBank.create(StereoPair.BANDS_HZ, StereoPair.BANDS_Q, bandMult[t], false, sampleRate));
+		chain.add(BiquadCascade.parse(options.rumbleFilter, StereoPair.FilterType.HIPASS, StereoPair.RUMBLE_HZ, StereoPair.RUMBLE_Q, sampleRate));
+		chain.add(filterMeter);
+		chain.add(new ChainPlan.Deferred("normalize")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.Gain(StereoPair.normalizeFactor(filterMeter.getPeak()));
+			}
+		});
+		chain.add(phraseDetector);
+		chain.add(new ChainPlan.Deferred("phrase dynamics")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.PhraseDynamics(phraseDetector.getPhrases(), false);
+			}
+		});
+		if (overallGainFactor[t] > 1.0f)
+		{
+			limiter = StereoPair.limiter(options, sampleRate);
+			chain.add(new Stages.Gain(overallGainFactor[t]));
+			chain.add(limiter);
+		}
+		chain.add(boostMeter);
+		chain.add(new ChainPlan.Deferred("normalize")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.Gain(StereoPair.normalizeFactor(boostMeter.getPeak()));
+			}
+		});
+
+		new ChainPlan(new TrackSource(t)).run(chain, null);
+		minGain[t] = (limiter != null) ? limiter.getMinGain() : 1.0f;
+		if (limiter != null) framesLimited[t] = limiter.getFramesLimited();
+	}
+
+
+	// Passes in place over the process range of a track. Blocks are copied out so a delaying stage can
+	// hand its frames back behind the ones being read.
+	private class TrackSource implements ChainPlan.Source
+	{
+		int t;
+
+		TrackSource(int track)
+		{
+			t = track;
+		}
+
+		public boolean rereads()
+		{
+			return false;
+		}
+
+		public int run(String name, List<BlockStage> stages, final boolean writeBack, PcmWriter writer) throws IOException
+		{
+			final float[] track = tracks[t];
+			StageEvent event = StageEvent.begin("track "+t+": "+name);
+			StageChain stageChain = new StageChain(stages, "track "+t+": ");
+			StageChain.Output output = new StageChain.Output()
+			{
+				public void write(float[][] block, int from, int to, int position)
+				{
+					if (writeBack) System.arraycopy(block[0], from, track, position, to-from);
+				}
+			};
+
+			float[][] block = new float[1][ChainPlan.BLOCK_SIZE];
+			for (int pos=processStart;pos<processEnd;pos+=ChainPlan.BLOCK_SIZE)
+			{
+				int frames = Math.min(ChainPlan.BLOCK_SIZE, processEnd-pos);
+				System.arraycopy(track, pos, block[0], 0, frames);
+				stageChain.process(block, 0, frames, pos, output);
+			}
+			stageChain.finish(block, output);
+			event.finish(processEnd-processStart);
+			return processEnd;
+		}
+	}
+
+
+	// Work on one track
+	private interface Track
+	{
+		public void run(int t) throws IOException;
+	}
+
+
+	// Runs the work on every track as a separate task on the analysis pool, and waits for them all
+	private void forEachTrack(final Track work) throws Exception
+	{
+		// The pool's threads log for whichever job handed them the work
+		final String tag = BetterBot.getLogTag();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t=0;t<tracks.length;t++)
+		{
+			final int track = t;
+			tasks.add(new Callable<Void>()
+			{
+				public Void call() throws IOException
+				{
+					BetterBot.setLogTag(tag);
+					try
+					{
+						work.run(track);
+					}
+					finally
+					{
+						BetterBot.setLogTag(null);
+					}
+					return null;
+				}
+			});
+		}
+
+		for (Future<Void> f : ParallelAnalysis.pool.invokeAll(tasks))
+		{
+			try
+			{
+				f.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// StereoPair.noiseReduce as a causal gate: it reads the left channel once, sample by sample, and never
+// scans forward. The audio goes through a lookahead ring buffer as long as the minimum gap (750ms), so
+// by the time a sample comes out the gate already knows whether it's part of a gap long enough to turn
+// down, and where that gap ends if the release ramp reaches it.
+//
+// Gaps, ramps and gains are the same as the in-memory scan's, including the quirk that a new gap can't
+// start on the sample just after the end of the last one.
+//
+// process() works in place like any other stage, but what comes out of each block is the audio from
+// getLatency() frames earlier (silence until the lookahead has filled). After the last block, flush()
+// hands back what's still in the buffer.
+public class NoiseGate implements DelayStage
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	float threshold, gainFactor;
+	int attackTimeSamples, releaseTimeSamples, minGapLengthSamples;
+	int latency;
+
+	float[][] ring;		// [channel][latency], frame p in slot p % latency
+
+	int first = -1;		// Position of the first frame in
+	int next;			// Position of the next frame in
+	int out;			// Position of the next frame out
+
+	// Gap detection
+	boolean inGap = false;
+	int gapStart;
+	int scanFrom = 0;	// Where a new gap may start
+	List<Stages.Region> gaps = new ArrayList<Stages.Region>();	// Long gaps not yet all the way out
+	int gapCount = 0;
+
+	public NoiseGate(float sampleRate)
+	{
+		this(StereoPair.NOISE_THRESHOLD, StereoPair.NOISE_ATTACK_MS, StereoPair.NOISE_RELEASE_MS, StereoPair.NOISE_GAIN_FACTOR, StereoPair.NOISE_MIN_GAP_MS, sampleRate);
+	}
+
+	public NoiseGate(float noiseThreshold, int attackTimeMs, int releaseTimeMs, float gain, int minGapLengthMs, float sampleRate)
+	{
+		threshold = noiseThreshold;
+		gainFactor = gain;
+		attackTimeSamples = StereoPair.msToSamples(attackTimeMs, sampleRate);
+		releaseTimeSamples = StereoPair.msToSamples(releaseTimeMs, sampleRate);
+		minGapLengthSamples = StereoPair.msToSamples(minGapLengthMs, sampleRate);
+
+		// Long enough to know a gap is long, and to see its end coming before the release ramp starts
+		latency = Math.max(1, Math.max(minGapLengthSamples, releaseTimeSamples));
+		ring = new float[2][latency];
+	}
+
+
+	// Frames between a sample going in and coming out
+	public int getLatency()
+	{
+		return latency;
+	}
+
+
+	public int getGapCount()
+	{
+		return gapCount;
+	}
+
+
+	public void process(float[][] block, int from, int to, int position)
+	{
+		if (first < 0)
+		{
+			first = position;
+			out = position;
+		}
+
+		for (int i=from;i<to;i++)
+		{
+			int pos = position + (i-from);
+			detect(block[LEFT][i], pos);
+
+			// The slot being filled holds the frame from latency ago
+			int slot = pos % latency;
+			float l = ring[LEFT][slot];
+			float r = ring[RIGHT][slot];
+			ring[LEFT][slot] = block[LEFT][i];
+			ring[RIGHT][slot] = block[RIGHT][i];
+
+			int delayed = pos - latency;
+			if (delayed >= first)
+			{
+				float g = gainAt(delayed);
+				block[LEFT][i] = l*g;
+				block[RIGHT][i] = r*g;
+				out = delayed + 1;
+			}
+			else
+			{
+				block[LEFT][i] = 0.0f;
+				block[RIGHT][i] = 0.0f;
+			}
+			next = pos + 1;
+		}
+	}
+
+
+	// After the last block: writes the frames still in the lookahead to block[..][from..to) and returns
+	// how many, 0 once they're all out. The end of the input ends any gap still open.
+	public int flush(float[][] block, int from, int to)
+	{
+		if (inGap) endGap(next);
+
+		int frames = 0;
+		for (int i=from;i<to && out<next;i++)
+		{
+			int slot = out % latency;
+			float g = gainAt(out);
+			block[LEFT][i] = ring[LEFT][slot]*g;
+			block[RIGHT][i] = ring[RIGHT][slot]*g;
+			out++;
+			frames++;
+		}
+		return frames;
+	}
+
+
+	private void detect(float x, int pos)
+	{
+		if (inGap)
+		{
+			if (Math.abs(x) > threshold) endGap(pos);
+		}
+		else if (pos >= scanFrom && Math.abs(x) < threshold)
+		{
+			inGap = true;
+			gapStart = pos;
+		}
+	}
+
+
+	private void endGap(int endOfGap)
+	{
+		if (endOfGap - gapStart > minGapLengthSamples)
+		{
+			gaps.add(new Stages.Region(gapStart, endOfGap, 1 - gainFactor));
+			gapCount++;
+		}
+		inGap = false;
+		scanFrom = endOfGap + 2;
+	}
+
+
+	// Gain for the frame at pos, which is latency behind the detection, so an open gap that reaches back
+	// to it is already longer than the minimum and doesn't end within the release time
+	private float gainAt(int pos)
+	{
+		while (!gaps.isEmpty() && pos >= gaps.get(0).end) gaps.remove(0);
+
+		if (!gaps.isEmpty() && pos >= gaps.get(0).start)
+		{
+			return gapGain(pos, gaps.get(0).start, gaps.get(0).end);
+		}
+		if (inGap && pos >= gapStart)
+		{
+			return gapGain(pos, gapStart, Integer.MAX_VALUE);
+		}
+		return 1.0f;
+	}
+
+
+	private float gapGain(int j, int startOfGap, int endOfGap)
+	{
+		int startOfAttack = startOfGap;
+		int endOfAttack = startOfGap + attackTimeSamples;
+		int startOfRelease = endOfGap - releaseTimeSamples;
+
+		if (j >= startOfAttack && j <= endOfAttack)
+		{
+			// Attack Phase
+			float percentThroughAttack = (float) (j-startOfAttack)/attackTimeSamples;
+			return 1 - (gainFactor*percentThroughAttack);
+		}
+		else if (j >= startOfRelease && j <= endOfGap)
+		{
+			// Release Phase
+			float percentThroughRelease = (float) (j-startOfRelease)/releaseTimeSamples;
+			return 1 - (gainFactor*(1-percentThroughRelease));
+		}
+
+		// Steady state
+		return 1 - gainFactor;
+	}
+}
@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Samples in fixed-size chunks outside the Java heap, so the heap no longer grows with the episode.
+// Chunks come from direct buffers until the RAM budget is used up, then from a memory-mapped scratch
+// file, which the OS pages in and out as needed. The scratch file is deleted on close.
+public class OffHeapSampleStore implements SampleStore
+{
+	public static final int CHUNK_SHIFT = 18;						// 2^18 frames per chunk (about 6 seconds)
+	public static final int CHUNK_FRAMES = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_FRAMES - 1;
+	private static final long CHUNK_BYTES = (long) CHUNK_FRAMES * 4 * 2;	// Both channels
+
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	long ramBudget;			// Bytes of direct memory before spilling
+	long ramUsed = 0;
+
+	List<FloatBuffer[]> chunks = new ArrayList<FloatBuffer[]>();	// [chunk][channel]
+	int length = 0;
+
+	File spillFile;
+	RandomAccessFile spill;
+	long spillUsed = 0;
+
+	public OffHeapSampleStore(long ramBudgetBytes)
+	{
+		ramBudget = ramBudgetBytes;
+	}
+
+
+	public int getLength()
+	{
+		return length;
+	}
+
+
+	public void reserve(int frames)
+	{
+		while ((long) chunks.size()*CHUNK_FRAMES < frames)
+		{
+			addChunk();
+		}
+	}
+
+
+	private void addChunk()
+	{
+		ByteBuffer bytes = null;
+		if (ramUsed + CHUNK_BYTES <= ramBudget)
+		{
+			try
+			{
+				bytes = ByteBuffer.allocateDirect((int) CHUNK_BYTES);
+				ramUsed += CHUNK_BYTES;
+			}
+			catch (OutOfMemoryError e)
+			{
+				// Hit -XX:MaxDirectMemorySize before the budget, so spill from here on
+				ramBudget = ramUsed;
+			}
+		}
+
+		if (bytes == null)
+		{
+			bytes = spillChunk();
+		}
+
+		FloatBuffer[] chunk = new FloatBuffer[2];
+		bytes.limit(CHUNK_FRAMES*4);
+		chunk[LEFT] = bytes.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		bytes.limit(CHUNK_FRAMES*8).position(CHUNK_FRAMES*4);
+		chunk[RIGHT] = bytes.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		chunks.add(chunk);
+	}
+
+
+	private ByteBuffer spillChunk()
+	{
+		try
+		{
+			if (spill == null)
+			{
+				spillFile = File.createTempFile("betterbot-", ".samples");
+				spillFile.deleteOnExit();
+				spill = new RandomAccessFile(spillFile, "rw");
+				log("Spilling samples to: "+spillFile);
+			}
+			ByteBuffer bytes = spill.getChannel().map(FileChannel.MapMode.READ_WRITE, spillUsed, CHUNK_BYTES);
+			spillUsed += CHUNK_BYTES;
+			return bytes;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	public void append(float[][] block, int frames)
+	{
+		reserve(length + frames);
+		length += frames;
+		write(block, 0, length - frames, frames);
+	}
+
+
+	public float get(int chan, int i)
+	{
+		return chunks.get(i >>> CHUNK_SHIFT)[chan].get(i & CHUNK_MASK);
+	}
+
+
+	public void set(int chan, int i, float x)
+	{
+		chunks.get(i >>> CHUNK_SHIFT)[chan].put(i & CHUNK_MASK, x);
+	}
+
+
+	public void read(float[][] block, int offset, int start, int frames)
+	{
+		while (frames > 0)
+		{
+			FloatBuffer[] chunk = chunks.get(start >>> CHUNK_SHIFT);
+			int pos = start & CHUNK_MASK;
+			int n = Math.min(frames, CHUNK_FRAMES - pos);
+			chunk[LEFT].get(pos, block[LEFT], offset, n);
+			chunk[RIGHT].get(pos, block[RIGHT], offset, n);
+			offset += n;
+			start += n;
+			frames -= n;
+		}
+	}
+
+
+	public void write(float[][] block, int offset, int start, int frames)
+	{
+		while (frames > 0)
+		{
+			FloatBuffer[] chunk = chunks.get(start >>> CHUNK_SHIFT);
+			int pos = start & CHUNK_MASK;
+			int n = Math.min(frames, CHUNK_FRAMES - pos);
+			chunk[LEFT].put(pos, block[LEFT], offset, n);
+			chunk[RIGHT].put(pos, block[RIGHT], offset, n);
+			offset += n;
+			start += n;
+			frames -= n;
+		}
+	}
+
+
+	public void close()
+	{
+		chunks.clear();
+		length = 0;
+		ramUsed = 0;
+		if (spill != null)
+		{
+			try
+			{
+				spill.close();
+			}
+			catch (IOException e)
+			{
+				log("Couldn't close scratch file: "+e.getMessage());
+			}
+			spillFile.delete();
+			spill = null;
+		}
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
@@ -0,0 +1,135 @@
+import java.io.File;
+
+// Optional "--" arguments that come after the mode
+public class Options
+{
+	boolean streaming = false;
+	boolean serialAnalysis = false;
+	boolean keepConverted = false;
+	boolean offHeap = false;
+	boolean unfused = false;
+	String rumbleFilter = "legacy";		// See BiquadCascade.parse
+	boolean serialEq = false;			// Bands one after another instead of the EqBank
+	boolean splitEq = false;			// EqBank channels on separate cores
+	boolean peakReduce = false;			// Zero-crossing peakReduce instead of the Limiter after the boost
+	int lookaheadMs = StereoPair.LIMITER_LOOKAHEAD_MS;
+	float loudnessTarget = 0.0f;		// Integrated LUFS to boost to, 0 = RMS target
+	String analysisCache = new File(new File(System.getProperty("user.home"), ".cache"), "betterbot").getPath();	// null = off
+	int maxLengthMin = BetterBot.MAX_LENGTH_MIN;	// Longer episodes return RETURN_TOO_LONG
+	int ramBudgetMb = 1024;		// Off-heap samples beyond this spill to a scratch file
+	int blockSize = StreamingEngine.DEFAULT_BLOCK_SIZE;
+	int workers = Runtime.getRuntime().availableProcessors();
+
+	public static Options parse(String[] args, int first) throws Exception
+	{
+		Options options = new Options();
+		for (int i=first;i<args.length;i++)
+		{
+			if (args[i].equals("--streaming"))
+			{
+				BetterBot.log("Streaming engine!");
+				options.streaming = true;
+			}
+			else if (args[i].equals("--serial-analysis"))
+			{
+				BetterBot.log("Serial analysis!");
+				options.serialAnalysis = true;
+			}
+			else if (args[i].equals("--keep-converted"))
+			{
+				BetterBot.log("Keeping converted file!");
+				options.keepConverted = true;
+			}
+			else if (args[i].equals("--unfused"))
+			{
+				BetterBot.log("Unfused chain!");
+				options.unfused = true;
+			}
+			else if (args[i].equals("--off-heap"))
+			{
+				BetterBot.log("Off-heap samples!");
+				options.offHeap = true;
+			}
+			else if (args[i].startsWith("--max-length-min="))
+			{
+				options.maxLengthMin = Integer.parseInt(value(args[i]));
+				BetterBot.log("maxLengthMin="+options.maxLengthMin);
+			}
+			else if (args[i].startsWith("--ram-budget="))
+			{
+				options.ramBudgetMb = Integer.parseInt(value(args[i]));
+				BetterBot.log("ramBudgetMb="+options.ramBudgetMb);
+			}
+			else if (args[i].startsWith("--rumble-filter="))
+			{
+				options.rumbleFilter = value(args[i]);
+				BiquadCascade.parse(options.rumbleFilter, StereoPair.FilterType.HIPASS, StereoPair.RUMBLE_HZ, StereoPair.RUMBLE_Q, FrameReader.MIN_SAMPLE_RATE);
+				BetterBot.log("rumbleFilter="+options.rumbleFilter);
+			}
+			else if (args[i].equals("--eq=serial"))
+			{
+				BetterBot.log("Serial EQ!");
+				options.serialEq = true;
+			}
+			else if (args[i].equals("--eq=parallel"))
+			{
+				options.serialEq = false;
+			}
+			else if (args[i].equals("--eq-split-channels"))
+			{
+				BetterBot.log("EQ channels split across cores!");
+				options.splitEq = true;
+			}
+			else if (args[i].equals("--limiter=peak-reduce"))
+			{
+				BetterBot.log("Peak reduce instead of limiter!");
+				options.peakReduce = true;
+			}
+			else if (args[i].equals("--limiter=lookahead"))
+			{
+				options.peakReduce = false;
+			}
+			else if (args[i].startsWith("--lookahead-ms="))
+			{
+				options.lookaheadMs = Integer.parseInt(value(args[i]));
+				BetterBot.log("lookaheadMs="+options.lookaheadMs);
+			}
+			else if (args[i].startsWith("--loudness-target="))
+			{
+				options.loudnessTarget = Float.parseFloat(value(args[i]));
+				BetterBot.log("loudnessTarget="+options.loudnessTarget);
+			}
+			else if (args[i].startsWith("--analysis-cache="))
+			{
+				options.analysisCache = value(args[i]);
+				BetterBot.log("analysisCache="+options.analysisCache);
+			}
+			else if (args[i].equals("--no-analysis-cache"))
+			{
+				BetterBot.log("No analysis cache!");
+				options.analysisCache = null;
+			}
+			else if (args[i].startsWith("--block-size="))
+			{
+				options.blockSize = Integer.parseInt(value(args[i]));
+				BetterBot.log("blockSize="+options.blockSize);
+			}
+			else if (args[i].startsWith("--workers="))
+			{
+				options.workers = Integer.parseInt(value(args[i]));
+				BetterBot.log("workers="+options.workers);
+			}
+			else
+			{
+				throw new Exception("Unknown option: "+args[i]);
+			}
+		}
+		return options;
+	}
+
+
+	private static String value(String arg)
+	{
+		return arg.substring(arg.indexOf('=')+1);
+	}
+}
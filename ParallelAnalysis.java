@@ -0,0 +1,214 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Splits an analysis range into time slices and runs them on a ForkJoinPool, so analysis uses every
+// core instead of one thread per metric.
+//
+// Each slice warms its band filters up over PREROLL_MS of audio before the slice starts, then the
+// partial sums are merged left to right in double precision, so the result doesn't depend on
+// which thread finished first.
+//
+// Accuracy against the serial StereoPair.analyzeSerial():
+//   - peaks are exact.
+//   - RMS, bandRMS and the abs mean / variance are summed in double on both paths (Stages.Analysis keeps
+//     double sums; a float sum drifted by over 3% on quiet material over a 14 minute window), so they
+//     differ only through summation order, below float resolution. On quiet and loud test episodes,
+//     1 to 14 minute windows, the float results came out identical.
+//   - the band filters decay to below 1e-7 of their state within ~35 ms at 150 Hz (the slowest band),
+//     so a 100 ms pre-roll adds no error above float resolution.
+//   - the loudness meter's 38 Hz high pass takes longer to settle, but what's left after 100 ms only
+//     moves the first hop of a slice, far below the 0.1 LU the loudness is reported to.
+public class ParallelAnalysis
+{
+	public static final int SLICE_SIZE = 1 << 18;	// Samples per slice (about 6 seconds at 44.1khz)
+	public static final int PREROLL_MS = 100;		// Filter warm-up before each slice
+	public static final int BLOCK_SIZE = 8192;		// Frames copied out of the sample store at a time
+
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	static ForkJoinPool pool = ForkJoinPool.commonPool();
+	static final Kernels kernels = Kernels.INSTANCE;
+
+
+	public static class Result
+	{
+		int count = 0;
+		double sumL = 0.0, sumR = 0.0;
+		double[] bandSum = new double[StereoPair.BANDS_HZ.length];
+		float[] peak = new float[2];
+		double[] absSum = new double[2];
+		double[] absSquareSum = new double[2];
+		LoudnessMeter loudness;		// With the bands only
+
+		void merge(Result r)
+		{
+			count += r.count;
+			if (loudness != null && r.loudness != null) loudness.merge(r.loudness);
+			sumL += r.sumL;
+			sumR += r.sumR;
+			for (int j=0;j<bandSum.length;j++)
+			{
+				bandSum[j] += r.bandSum[j];
+			}
+			for (int c=0;c<2;c++)
+			{
+				peak[c] = Math.max(peak[c], r.peak[c]);
+				absSum[c] += r.absSum[c];
+				absSquareSum[c] += r.absSquareSum[c];
+			}
+		}
+
+		public float getRMS(int chanNum)
+		{
+			return (float) Math.sqrt((chanNum == LEFT ? sumL : sumR)/count);
+		}
+
+		public float getBandRMS(int band)
+		{
+			return (float) Math.sqrt(bandSum[band]/count);
+		}
+
+		public LoudnessMeter getLoudness()
+		{
+			return loudness;
+		}
+
+		public float getPeak()
+		{
+			return Math.max(peak[LEFT], peak[RIGHT]);
+		}
+
+		public float getAbsMean(int chanNum)
+		{
+			return (float) (absSum[chanNum]/count);
+		}
+
+		public float getAbsVariance(int chanNum)
+		{
+			double mean = absSum[chanNum]/count;
+			return (float) Math.max(0.0, absSquareSum[chanNum]/count - mean*mean);
+		}
+	}
+
+
+	// RMS, bandRMS and peak/mean statistics over [start,end), filtered for the given sample rate
+	public static Result analyze(SampleStore samples, int start, int end, float sampleRate)
+	{
+		return pool.invoke(new SliceTask(samples, start, start, end, sampleRate));
+	}
+
+
+	// Peak and abs statistics only (no band filtering, so the rate doesn't matter)
+	public static Result levels(SampleStore samples, int start, int end)
+	{
+		return pool.invoke(new SliceTask(samples, start, start, end, 0.0f));
+	}
+
+
+	private static class SliceTask extends RecursiveTask<Result>
+	{
+		private static final long serialVersionUID = 1L;
+
+		SampleStore samples;
+		int rangeStart, from, to;
+		float sampleRate;
+		boolean bands;
+
+		// A rate of 0 for levels only
+		SliceTask(SampleStore store, int range, int sliceFrom, int sliceTo, float rate)
+		{
+			samples = store;
+			rangeStart = range;
+			from = sliceFrom;
+			to = sliceTo;
+			sampleRate = rate;
+			bands = (rate > 0.0f);
+		}
+
+		protected Result compute()
+		{
+			if (to-from <= SLICE_SIZE)
+			{
+				return computeSlice();
+			}
+
+			int mid = from + (to-from)/2;
+			SliceTask left = new SliceTask(samples, rangeStart, from, mid, sampleRate);
+			SliceTask right = new SliceTask(samples, rangeStart, mid, to, sampleRate);
+			left.fork();
+			Result r = right.compute();
+			Result l = left.join();
+			l.merge(r);
+			return l;
+		}
+
+		private Result computeSlice()
+		{
+			StageEvent event = StageEvent.begin(bands ? "analysis slice" : "levels slice");
+			Result r = new Result();
+			r.count = to-from;
+			float[][] block = new float[2][BLOCK_SIZE];
+
+			if (bands)
+			{
+				Stages.Analysis analysis = new Stages.Analysis(sampleRate);
+				r.loudness = new LoudnessMeter(rangeStart, sampleRate);
+
+				// Warm the filters up on the audio before the slice (but not before the range)
+				int warmFrom = Math.max(rangeStart, from - StereoPair.msToSamples(PREROLL_MS, sampleRate));
+				for (int pos=warmFrom;pos<from;pos+=BLOCK_SIZE)
+				{
+					int frames = Math.min(BLOCK_SIZE, from-pos);
+					samples.read(block, 0, pos, frames);
+					analysis.process(block, 0, frames, pos);
+					r.loudness.process(block, 0, frames, pos);
+				}
+				analysis.clearSums();
+				r.loudness.clearSums();
+
+				for (int pos=from;pos<to;pos+=BLOCK_SIZE)
+				{
+					int frames = Math.min(BLOCK_SIZE, to-pos);
+					samples.read(block, 0, pos, frames);
+					analysis.process(block, 0, frames, pos);
+					r.loudness.process(block, 0, frames, pos);
+					levels(block, frames, r);
+				}
+				r.sumL = analysis.sumL;
+				r.sumR = analysis.sumR;
+				for (int j=0;j<r.bandSum.length;j++)
+				{
+					r.bandSum[j] = analysis.bandSum[j];
+				}
+			}
+			else
+			{
+				for (int pos=from;pos<to;pos+=BLOCK_SIZE)
+				{
+					int frames = Math.min(BLOCK_SIZE, to-pos);
+					samples.read(block, 0, pos, frames);
+					levels(block, frames, r);
+				}
+			}
+			event.finish(to-from);
+			return r;
+		}
+
+
+		// Adds the peak and abs statistics for block[..][0..frames) to r
+		private void levels(float[][] block, int frames, Result r)
+		{
+			double[] sums = new double[2];
+			for (int c=0;c<2;c++)
+			{
+				r.peak[c] = kernels.peak(block[c], 0, frames, r.peak[c]);
+				sums[0] = r.absSum[c];
+				sums[1] = r.absSquareSum[c];
+				kernels.absSums(block[c], 0, frames, sums);
+				r.absSum[c] = sums[0];
+				r.absSquareSum[c] = sums[1];
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// 16-bit PCM WAV/AIFF file with the sample data memory-mapped straight from disk. WAVs over 4GB can be
+// RF64 (as PcmWriter writes them), with the data size in the ds64 chunk; AudioSystem can't read those.
+// Only the header is parsed by hand; frames are deinterleaved in bulk through a ShortBuffer view,
+// so loading never holds a second copy of the file in a byte[]. A mapping can't be more than 2GB, so
+// the data is mapped in segments of SEGMENT_FRAMES frames and reads cross from one to the next.
+public class PcmFile
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+	private static final int CHUNK_SHORTS = 65536;	// Shorts deinterleaved per bulk get
+	private static final int SEGMENT_SHIFT = 26;		// 2^26 frames per mapping (about 25 minutes)
+	private static final long SEGMENT_FRAMES = 1L << SEGMENT_SHIFT;
+
+	AudioFileFormat.Type fileType;
+	AudioFormat format;
+	int channels;
+	float sampleRate;
+	boolean bigEndian;
+	long dataOffset;		// Byte position of the first frame
+	long frameCount;
+
+	RandomAccessFile file;
+	FileChannel fileChannel;
+	ShortBuffer[] segments;	// Views over the mapped data chunk, one short per sample
+
+	short[] chunk = new short[CHUNK_SHORTS];
+
+	public PcmFile(String fileName) throws UnsupportedAudioFileException, IOException
+	{
+		file = new RandomAccessFile(new File(fileName), "r");
+		fileChannel = file.getChannel();
+
+		try
+		{
+			ByteBuffer id = readBytes(0, 12);
+			String riff = chunkId(id, 0);
+			String form = chunkId(id, 8);
+
+			if ((riff.equals("RIFF") || riff.equals("RF64")) && form.equals("WAVE"))
+			{
+				parseWave();
+			}
+			else if (riff.equals("FORM") && form.equals("AIFF"))
+			{
+				parseAiff();
+			}
+			else
+			{
+				throw new UnsupportedAudioFileException("Not a WAV or AIFF file: "+fileName);
+			}
+
+			if (channels < 1 || channels > 2)
+			{
+				throw new UnsupportedAudioFileException("Only mono or stereo supported.");
+			}
+
+			format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, channels, channels*2, sampleRate, bigEndian);
+
+			// Don't trust a data size that runs past the end of the file (e.g. a header written before the data)
+			long available = (fileChannel.size() - dataOffset) / (channels*2);
+			if (frameCount > available) frameCount = available;
+
+			segments = new ShortBuffer[(int) ((frameCount + SEGMENT_FRAMES - 1) >>> SEGMENT_SHIFT)];
+			for (int i=0;i<segments.length;i++)
+			{
+				long first = (long) i << SEGMENT_SHIFT;
+				long frames = Math.min(SEGMENT_FRAMES, frameCount - first);
+				MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first*channels*2, frames*channels*2);
+				mapped.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+				segments[i] = mapped.asShortBuffer();
+			}
+		}
+		catch (UnsupportedAudioFileException e)
+		{
+			close();
+			throw e;
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+
+	private void parseWave() throws UnsupportedAudioFileException, IOException
+	{
+		fileType = AudioFileFormat.Type.WAVE;
+		bigEndian = false;
+		boolean haveFormat = false;
+		long ds64DataSize = -1;		// From an RF64 ds64 chunk, for a data size of 0xFFFFFFFF
+		long pos = 12;
+		while (pos + 8 <= fileChannel.size())
+		{
+			ByteBuffer header = readBytes(pos, 8).order(ByteOrder.LITTLE_ENDIAN);
+			String id = chunkId(header, 0);
+			long size = header.getInt(4) & 0xffffffffL;
+
+			if (id.equals("ds64"))
+			{
+				// RIFF size, data size, sample count (64 bits each), then a table we don't need
+				ByteBuffer ds64 = readBytes(pos+8, 24).order(ByteOrder.LITTLE_ENDIAN);
+				ds64DataSize = ds64.getLong(8);
+			}
+			else if (id.equals("fmt "))
+			{
+				ByteBuffer fmt = readBytes(pos+8, 16).order(ByteOrder.LITTLE_ENDIAN);
+				int audioFormat = fmt.getShort(0) & 0xffff;
+				channels = fmt.getShort(2);
+				sampleRate = fmt.getInt(4);
+				int bits = fmt.getShort(14);
+
+				// 1 = PCM, 0xFFFE = WAVE_FORMAT_EXTENSIBLE (assumed PCM)
+				if ((audioFormat != 1 && audioFormat != 0xFFFE) || bits != 16)
+				{
+					throw new UnsupportedAudioFileException("Only 16-bit PCM WAV supported.");
+				}
+				haveFormat = true;
+			}
+			else if (id.equals("data"))
+			{
+				if (!haveFormat) throw new UnsupportedAudioFileException("WAV data before fmt chunk.");
+				dataOffset = pos + 8;
+				if (size == 0xffffffffL && ds64DataSize >= 0) size = ds64DataSize;
+				frameCount = size / (channels*2);
+				return;
+			}
+
+			pos += 8 + size + (size & 1);	// Chunks are padded to an even length
+		}
+		throw new UnsupportedAudioFileException("No WAV data chunk.");
+	}
+
+
+	private void parseAiff() throws UnsupportedAudioFileException, IOException
+	{
+		fileType = AudioFileFormat.Type.AIFF;
+		bigEndian = true;
+		boolean haveFormat = false;
+		long pos = 12;
+		while (pos + 8 <= fileChannel.size())
+		{
+			ByteBuffer header = readBytes(pos, 8);
+			String id = chunkId(header, 0);
+			long size = header.getInt(4) & 0xffffffffL;
+
+			if (id.equals("COMM"))
+			{
+				ByteBuffer comm = readBytes(pos+8, 18);
+				channels = comm.getShort(0);
+				frameCount = comm.getInt(2) & 0xffffffffL;
+				int bits = comm.getShort(6);
+				sampleRate = (float) extendedToDouble(comm, 8);
+
+				if (bits != 16)
+				{
+					throw new UnsupportedAudioFileException("Only 16-bit AIFF supported.");
+				}
+				haveFormat = true;
+			}
+			else if (id.equals("SSND"))
+			{
+				if (!haveFormat) throw new UnsupportedAudioFileException("AIFF data before COMM chunk.");
+				ByteBuffer ssnd = readBytes(pos+8, 8);
+				long offset = ssnd.getInt(0) & 0xffffffffL;
+				dataOffset = pos + 16 + offset;
+				return;
+			}
+
+			pos += 8 + size + (size & 1);
+		}
+		throw new UnsupportedAudioFileException("No AIFF sound data chunk.");
+	}
+
+
+	// 80-bit IEEE 754 extended precision, as used for the AIFF sample rate
+	private static double extendedToDouble(ByteBuffer b, int offset)
+	{
+		int exponent = ((b.get(offset) & 0x7f) << 8) | (b.get(offset+1) & 0xff);
+		long mantissa = b.getLong(offset+2);
+		if (exponent == 0 && mantissa == 0) return 0.0;
+		double value = (mantissa >>> 1) * Math.pow(2.0, exponent - 16383 - 62);
+		return ((b.get(offset) & 0x80) != 0) ? -value : value;
+	}
+
+
+	private ByteBuffer readBytes(long pos, int length) throws IOException, UnsupportedAudioFileException
+	{
+		ByteBuffer b = ByteBuffer.allocate(length);
+		while (b.hasRemaining())
+		{
+			if (fileChannel.read(b, pos + b.position()) < 0)
+			{
+				throw new UnsupportedAudioFileException("Truncated header.");
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+
+	private static String chunkId(ByteBuffer b, int offset)
+	{
+		char[] id = new char[4];
+		for (int i=0;i<4;i++)
+		{
+			id[i] = (char) (b.get(offset+i) & 0xff);
+		}
+		return new String(id);
+	}
+
+
+	public AudioFileFormat.Type getFileType()
+	{
+		return fileType;
+	}
+
+
+	public AudioFormat getFormat()
+	{
+		return format;
+	}
+
+
+	public long getFrameLength()
+	{
+		return frameCount;
+	}
+
+
+	// Deinterleaves frames [firstFrame, firstFrame+frames) into dest[..][destOffset..].
+	// Mono files are copied to both channels. Returns the number of frames actually read.
+	public int read(float[][] dest, int destOffset, long firstFrame, int frames)
+	{
+		if (firstFrame >= frameCount) return 0;
+		if (firstFrame + frames > frameCount) frames = (int) (frameCount - firstFrame);
+
+		float[] left = dest[LEFT];
+		float[] right = dest[RIGHT];
+		int framesPerChunk = CHUNK_SHORTS / channels;
+		int out = destOffset;
+		int remaining = frames;
+		long frame = firstFrame;
+
+		while (remaining > 0)
+		{
+			// Up to the end of the chunk buffer or of the segment, whichever comes first
+			int pos = (int) (frame & (SEGMENT_FRAMES-1));
+			int n = (int) Math.min(Math.min(remaining, framesPerChunk), SEGMENT_FRAMES - pos);
+			segments[(int) (frame >>> SEGMENT_SHIFT)].get(pos*channels, chunk, 0, n*channels);
+
+			if (channels == 2)
+			{
+				for (int i=0;i<n;i++)
+				{
+					left[out] = chunk[2*i] / 32768.0f;
+					right[out] = chunk[2*i+1] / 32768.0f;
+					out++;
+				}
+			}
+			else
+			{
+				for (int i=0;i<n;i++)
+				{
+					float tempF = chunk[i] / 32768.0f;
+					left[out] = tempF;
+					right[out] = tempF;
+					out++;
+				}
+			}
+			remaining -= n;
+			frame += n;
+		}
+
+		return frames;
+	}
+
+
+	public void close() throws IOException
+	{
+		segments = null;
+		file.close();
+	}
+}
@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioFileFormat;
+
+// Writes 16-bit WAV/AIFF output a block at a time through a FileChannel, at the rate it was processed
+// at. 44.1khz stereo unless told otherwise (MultiTrack writes all its tracks).
+// The header goes out first with empty sizes and is patched on close, so nothing but one block of
+// bytes is held in memory however long the output is.
+//
+// Samples are saturated to the 16-bit range rather than wrapped, so an over of exactly 1.0 comes out
+// as 32767 instead of flipping to -32768.
+//
+// WAV and AIFF sizes are 32 bits, about 6.7 hours of 16-bit stereo and less with more channels. A WAV expected to be longer is
+// written as RF64 (EBU Tech 3306), which keeps the sizes in a 64-bit ds64 chunk instead; the layout has
+// to be picked before the data, so the writer is told how many frames are coming. AIFF can't go longer.
+//
+// A WAV with more than two channels has a WAVE_FORMAT_EXTENSIBLE fmt chunk, as readers expect of one.
+// Its channel mask is 0: multitrack tracks are separate mics, not speaker positions.
+public class PcmWriter
+{
+	public static final int BLOCK_FRAMES = 8192;	// Frames quantized per write
+
+	private static final int WAV_HEADER_SIZE = 44;			// With a 16 byte fmt chunk
+	private static final int RF64_HEADER_SIZE = 80;
+	private static final int AIFF_HEADER_SIZE = 54;
+	private static final int FMT_SIZE = 16;
+	private static final int FMT_EXTENSIBLE_SIZE = 40;
+	private static final long MAX_CHUNK_SIZE = 0xffffffffL;
+
+	AudioFileFormat.Type fileType;
+	int channels;
+	float sampleRate;
+	FileOutputStream out;
+	FileChannel fileChannel;
+	ByteBuffer byteBuf;
+	boolean rf64;
+	long frameCount = 0;
+
+	public PcmWriter(String fileName, AudioFileFormat.Type type, long expectedFrames) throws IOException
+	{
+		this(fileName, type, expectedFrames, 2, FrameReader.MIN_SAMPLE_RATE);
+	}
+
+
+	public PcmWriter(String fileName, AudioFileFormat.Type type, long expectedFrames, int channelCount, float rate) throws IOException
+	{
+		if (type != AudioFileFormat.Type.WAVE && type != AudioFileFormat.Type.AIFF)
+		{
+			throw new IOException("Unsupported output file type: "+type);
+		}
+		if (expectedFrames > maxFrames(type, channelCount))
+		{
+			throw new IOException("Too long for "+type+": "+expectedFrames+" frames");
+		}
+
+		fileType = type;
+		channels = channelCount;
+		sampleRate = rate;
+		rf64 = (type == AudioFileFormat.Type.WAVE && expectedFrames > classicMaxFrames(wavHeaderSize(channels), channels));
+		if (rf64) BetterBot.log("Writing RF64 (WAV over 4GB)");
+		out = new FileOutputStream(new File(fileName));
+		fileChannel = out.getChannel();
+		byteBuf = ByteBuffer.allocateDirect(BLOCK_FRAMES*channels*2);
+		byteBuf.order(fileType == AudioFileFormat.Type.WAVE ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+		// Placeholder sizes, patched in close()
+		try
+		{
+			writeFully(header());
+		}
+		catch (IOException e)
+		{
+			out.close();
+			throw e;
+		}
+	}
+
+
+	// Quantizes and writes frames block[..][from..to)
+	public void write(float[][] block, int from, int to) throws IOException
+	{
+		int i = from;
+		while (i < to)
+		{
+			int n = Math.min(to-i, BLOCK_FRAMES);
+			byteBuf.clear();
+			for (int k=0;k<n;k++)
+			{
+				for (int c=0;c<channels;c++)
+				{
+					byteBuf.putShort(quantize(block[c][i+k]));
+				}
+			}
+			byteBuf.flip();
+			writeFully(byteBuf);
+			i += n;
+		}
+		frameCount += to-from;
+	}
+
+
+	static short quantize(float x)
+	{
+		float s = x * 32768.0f;
+		if (s >= 32767.0f) return Short.MAX_VALUE;
+		if (s <= -32768.0f) return Short.MIN_VALUE;
+		return (short) s;
+	}
+
+
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+
+
+	// Longest stereo output the file type can hold
+	public static long maxFrames(AudioFileFormat.Type type)
+	{
+		return maxFrames(type, 2);
+	}
+
+
+	public static long maxFrames(AudioFileFormat.Type type, int channels)
+	{
+		if (type == AudioFileFormat.Type.WAVE) return Long.MAX_VALUE/(channels*2);
+		return classicMaxFrames(AIFF_HEADER_SIZE, channels);
+	}
+
+
+	private static int fmtSize(int channels)
+	{
+		return (channels > 2) ? FMT_EXTENSIBLE_SIZE : FMT_SIZE;
+	}
+
+
+	private static int wavHeaderSize(int channels)
+	{
+		return WAV_HEADER_SIZE - FMT_SIZE + fmtSize(channels);
+	}
+
+
+	private static int rf64HeaderSize(int channels)
+	{
+		return RF64_HEADER_SIZE - FMT_SIZE + fmtSize(channels);
+	}
+
+
+	// Frames that fit in a 32-bit FORM/RIFF size after a header of this size
+	private static long classicMaxFrames(int headerSize, int channels)
+	{
+		return (MAX_CHUNK_SIZE - (headerSize - 8))/(channels*2);
+	}
+
+
+	// Patches the header sizes and closes the file
+	public void close() throws IOException
+	{
+		if (!rf64 && frameCount > classicMaxFrames(fileType == AudioFileFormat.Type.WAVE ? wavHeaderSize(channels) : AIFF_HEADER_SIZE, channels))
+		{
+			out.close();
+			throw new IOException("Wrote "+frameCount+" frames, too many for the "+fileType+" header");
+		}
+
+		ByteBuffer header = header();
+		while (header.hasRemaining())
+		{
+			fileChannel.write(header, header.position());
+		}
+		fileChannel.force(false);
+		out.close();
+	}
+
+
+	// Closes the file as it is, without patching the header; for a finally block after an error, and
+	// does nothing once close() has run
+	public void abandon()
+	{
+		try
+		{
+			out.close();
+		}
+		catch (IOException e)
+		{
+			// Already failing
+		}
+	}
+
+
+	// Header for the frames written so far
+	private ByteBuffer header()
+	{
+		long dataBytes = frameCount*channels*2;
+
+		if (rf64)
+		{
+			// Sizes of 0xFFFFFFFF mean "see ds64"
+			int headerSize = rf64HeaderSize(channels);
+			ByteBuffer h = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+			h.put(id("RF64")).putInt(-1).put(id("WAVE"));
+			h.put(id("ds64")).putInt(28);
+			h.putLong(headerSize - 8 + dataBytes);	// RIFF size
+			h.putLong(dataBytes);			// Data size
+			h.putLong(frameCount);			// Sample count
+			h.putInt(0);					// Table length
+			fmt(h);
+			h.put(id("data")).putInt(-1);
+			h.flip();
+			return h;
+		}
+
+		if (fileType == AudioFileFormat.Type.WAVE)
+		{
+			int headerSize = wavHeaderSize(channels);
+			ByteBuffer h = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+			h.put(id("RIFF")).putInt((int) (headerSize - 8 + dataBytes)).put(id("WAVE"));
+			fmt(h);
+			h.put(id("data")).putInt((int) dataBytes);
+			h.flip();
+			return h;
+		}
+
+		ByteBuffer h = ByteBuffer.allocate(AIFF_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+		h.put(id("FORM")).putInt((int) (AIFF_HEADER_SIZE - 8 + dataBytes)).put(id("AIFF"));
+		h.put(id("COMM")).putInt(18);
+		h.putShort((short) channels);
+		h.putInt((int) frameCount);
+		h.putShort((short) 16);				// Bits
+		extended(h, sampleRate);
+		h.put(id("SSND")).putInt((int) (8 + dataBytes));
+		h.putInt(0).putInt(0);				// Offset, block size
+		h.flip();
+		return h;
+	}
+
+
+	private void fmt(ByteBuffer h)
+	{
+		int rate = Math.round(sampleRate);
+		boolean extensible = (channels > 2);
+		h.put(id("fmt ")).putInt(fmtSize(channels));
+		h.putShort((short) (extensible ? 0xfffe : 1));	// WAVE_FORMAT_EXTENSIBLE or PCM
+		h.putShort((short) channels);
+		h.putInt(rate);
+		h.putInt(rate*channels*2);		// Byte rate
+		h.putShort((short) (channels*2));	// Frame size
+		h.putShort((short) 16);			// Bits
+		if (extensible)
+		{
+			h.putShort((short) 22);		// Extension size
+			h.putShort((short) 16);		// Valid bits
+			h.putInt(0);				// Channel mask
+			// KSDATAFORMAT_SUBTYPE_PCM, 00000001-0000-0010-8000-00aa00389b71
+			h.putInt(1).putShort((short) 0).putShort((short) 0x10);
+			h.put(new byte[] { (byte) 0x80, 0x00, 0x00, (byte) 0xaa, 0x00, 0x38, (byte) 0x9b, 0x71 });
+		}
+	}
+
+
+	// The AIFF sample rate, a whole number of hz as an 80-bit extended float (e.g. 44100 is 0x400e ac44...)
+	private static void extended(ByteBuffer h, float sampleRate)
+	{
+		long rate = Math.round(sampleRate);
+		int shift = 63 - Long.numberOfLeadingZeros(rate);
+		h.putShort((short) (16383 + shift));
+		h.putLong(rate << (63 - shift));
+	}
+
+
+	private void writeFully(ByteBuffer b) throws IOException
+	{
+		while (b.hasRemaining())
+		{
+			fileChannel.write(b);
+		}
+	}
+
+
+	private static byte[] id(String s)
+	{
+		byte[] b = new byte[4];
+		for (int i=0;i<4;i++)
+		{
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,26 @@
+// Where StereoPair keeps its samples. Single samples go through get/set; bulk work copies blocks in and
+// out with read/write, so the store can live off the Java heap, or in a file, without StereoPair caring.
+public interface SampleStore
+{
+	// Number of frames stored
+	public int getLength();
+
+	// Hint that about this many frames are coming, so the store can allocate once
+	public void reserve(int frames);
+
+	// Adds block[..][0..frames) to the end
+	public void append(float[][] block, int frames);
+
+	public float get(int chan, int i);
+
+	public void set(int chan, int i, float x);
+
+	// Copies frames [start, start+frames) into block[..][offset..]
+	public void read(float[][] block, int offset, int start, int frames);
+
+	// Copies block[..][offset..offset+frames) over frames [start, start+frames)
+	public void write(float[][] block, int offset, int start, int frames);
+
+	// Frees the storage (and any scratch file)
+	public void close();
+}
@@ -0,0 +1,63 @@
+// Plain loops, and the reference results for VectorKernels.
+public class ScalarKernels implements Kernels
+{
+	public void gain(float[] x, int from, int to, float g)
+	{
+		for (int i=from;i<to;i++)
+		{
+			x[i] = x[i]*g;
+		}
+	}
+
+
+	public void clip(float[] x, int from, int to, float clipAt)
+	{
+		for (int i=from;i<to;i++)
+		{
+			if (x[i] > 0 && x[i]>clipAt) x[i]=clipAt;
+			else if (x[i] < 0 && x[i]<-clipAt) x[i]=-clipAt;
+		}
+	}
+
+
+	public float peak(float[] x, int from, int to, float peak)
+	{
+		for (int i=from;i<to;i++)
+		{
+			float a = Math.abs(x[i]);
+			if (a > peak) peak = a;
+		}
+		return peak;
+	}
+
+
+	public float sumSquares(float[] x, int from, int to, float sum)
+	{
+		for (int i=from;i<to;i++)
+		{
+			sum += Math.pow(x[i],2);
+		}
+		return sum;
+	}
+
+
+	public void absSums(float[] x, int from, int to, double[] sums)
+	{
+		double absSum = sums[0];
+		double absSquareSum = sums[1];
+		for (int i=from;i<to;i++)
+		{
+			float a = Math.abs(x[i]);
+			absSum += a;
+			absSquareSum += a*a;
+		}
+		sums[0] = absSum;
+		sums[1] = absSquareSum;
+	}
+
+
+	public String getName()
+	{
+		return "scalar";
+	}
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs a list of stages over consecutive blocks. One of them may be a DelayStage: the stages after it get
+// the frames it hands back, at the positions those frames came from, and so does the output. Nothing
+// comes out for the first getLatency() frames, and finish() pushes the rest through at the end.
+// Given an event prefix, each stage gets a StageEvent for the frames it went over, committed by finish().
+public class StageChain
+{
+	// Where the processed frames go
+	public interface Output
+	{
+		public void write(float[][] block, int from, int to, int position) throws IOException;
+	}
+
+	List<BlockStage> before = new ArrayList<BlockStage>();
+	List<BlockStage> after = new ArrayList<BlockStage>();
+	DelayStage delay = null;
+
+	StageEvent[] events = null;	// Before then after, if recording stages
+	long[] eventFrames;
+
+	int first = -1;		// Position of the first frame in
+	int next;			// Position of the next frame out
+
+	public StageChain(List<BlockStage> stages)
+	{
+		this(stages, null);
+	}
+
+
+	public StageChain(List<BlockStage> stages, String eventPrefix)
+	{
+		for (BlockStage stage : stages)
+		{
+			if (delay != null)
+			{
+				if (stage instanceof DelayStage)
+				{
+					throw new IllegalArgumentException("Only one delaying stage per chain: "+stage);
+				}
+				after.add(stage);
+			}
+			else
+			{
+				before.add(stage);
+				if (stage instanceof DelayStage) delay = (DelayStage) stage;
+			}
+		}
+
+		if (eventPrefix != null)
+		{
+			events = new StageEvent[stages.size()];
+			eventFrames = new long[stages.size()];
+			for (int i=0;i<events.length;i++)
+			{
+				events[i] = StageEvent.begin(eventPrefix+stages.get(i).getClass().getSimpleName());
+			}
+		}
+	}
+
+
+	public int getLatency()
+	{
+		return (delay == null) ? 0 : delay.getLatency();
+	}
+
+
+	public void process(float[][] block, int from, int to, int position, Output output) throws IOException
+	{
+		if (first < 0)
+		{
+			first = position;
+			next = position;
+		}
+
+		for (int i=0;i<before.size();i++)
+		{
+			run(i, before.get(i), block, from, to, position);
+		}
+
+		// What's in the block now is from latency frames ago, none of it real until the first frame is out
+		int out = position - getLatency();
+		int skip = Math.min(to-from, Math.max(0, first-out));
+		if (from+skip < to) emit(block, from+skip, to, out+skip, output);
+	}
+
+
+	public void finish(float[][] block, Output output) throws IOException
+	{
+		if (delay != null)
+		{
+			int frames;
+			while ((frames = flush(block)) > 0)
+			{
+				emit(block, 0, frames, next, output);
+			}
+		}
+
+		if (events != null)
+		{
+			for (int i=0;i<events.length;i++)
+			{
+				events[i].finish(eventFrames[i]);
+			}
+		}
+	}
+
+
+	private void emit(float[][] block, int from, int to, int position, Output output) throws IOException
+	{
+		for (int i=0;i<after.size();i++)
+		{
+			run(before.size()+i, after.get(i), block, from, to, position);
+		}
+		if (output != null) output.write(block, from, to, position);
+		next = position + (to-from);
+	}
+
+
+	private void run(int i, BlockStage stage, float[][] block, int from, int to, int position)
+	{
+		if (events == null)
+		{
+			stage.process(block, from, to, position);
+			return;
+		}
+		events[i].resume();
+		stage.process(block, from, to, position);
+		events[i].pause();
+		eventFrames[i] += to-from;
+	}
+
+
+	// The delaying stage is the last of the ones before
+	private int flush(float[][] block)
+	{
+		if (events == null) return delay.flush(block, 0, block[0].length);
+		StageEvent event = events[before.size()-1];
+		event.resume();
+		int frames = delay.flush(block, 0, block[0].length);
+		event.pause();
+		return frames;
+	}
+}
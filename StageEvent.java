@@ -0,0 +1,138 @@
+import java.lang.management.ManagementFactory;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder event for one stage or pass of a job: what ran, over how many frames, how fast, and
+// how much it allocated on its thread. The duration is the event's own. Record with e.g.
+//
+//   java -XX:StartFlightRecording=filename=betterbot.jfr BetterBot ...
+//
+// and look at the betterbot.Stage events in JDK Mission Control, or with jfr print --events betterbot.Stage.
+// When no recording is running the event is disabled, and begin/finish do nothing beyond allocating it.
+//
+// A stage in a fused pass runs a block at a time between the others, so its event spans the whole pass;
+// resume/pause around each of its blocks make the throughput and allocation its own, and busy the time
+// it actually took.
+@Name("betterbot.Stage")
+@Label("BetterBot Stage")
+@Category("BetterBot")
+@Description("One stage or pass of a job")
+@StackTrace(false)
+public class StageEvent extends Event
+{
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	@Label("Stage")
+	String stage;
+
+	@Label("Frames")
+	long frames;
+
+	@Label("Throughput")
+	@Description("Frames per second")
+	@Frequency
+	double throughput;
+
+	@Label("Allocated")
+	@Description("Bytes allocated on this thread during the stage")
+	@DataAmount
+	long allocated;
+
+	@Label("Busy")
+	@Description("Time spent in the stage itself, less than the duration for a stage in a fused pass")
+	@Timespan
+	long busy;
+
+	transient long startNanos;
+	transient long startAllocated;
+
+	transient boolean pieces;	// Timed by resume/pause
+	transient long busyNanos;
+	transient long busyAllocated;
+	transient long pieceNanos;
+	transient long pieceAllocated;
+
+	public static StageEvent begin(String stage)
+	{
+		StageEvent e = new StageEvent();
+		if (e.isEnabled())
+		{
+			e.stage = stage;
+			e.startAllocated = allocatedBytes();
+			e.startNanos = System.nanoTime();
+			e.begin();
+		}
+		return e;
+	}
+
+
+	// Starts timing one piece of the stage's work
+	public void resume()
+	{
+		if (!isEnabled()) return;
+		pieces = true;
+		pieceAllocated = allocatedBytes();
+		pieceNanos = System.nanoTime();
+	}
+
+
+	public void pause()
+	{
+		if (!isEnabled()) return;
+		busyNanos += System.nanoTime() - pieceNanos;
+		busyAllocated += allocatedBytes() - pieceAllocated;
+	}
+
+
+	// Ends the event, for a stage that went over this many frames
+	public void finish(long stageFrames)
+	{
+		if (!isEnabled()) return;
+		end();
+		if (shouldCommit())
+		{
+			long nanos = pieces ? busyNanos : System.nanoTime() - startNanos;
+			frames = stageFrames;
+			busy = nanos;
+			throughput = (nanos > 0) ? stageFrames * 1e9 / nanos : 0.0;
+			if (startAllocated < 0) allocated = -1;
+			else allocated = pieces ? busyAllocated : allocatedBytes() - startAllocated;
+			commit();
+		}
+	}
+
+
+	// Bytes allocated by the current thread so far, -1 if the JVM can't tell
+	static long allocatedBytes()
+	{
+		if (THREADS == null) return -1;
+		return THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+
+	private static com.sun.management.ThreadMXBean threads()
+	{
+		try
+		{
+			java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean)
+			{
+				com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+				if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) return t;
+			}
+		}
+		catch (Throwable e)
+		{
+			// No java.management, so no allocation counts
+		}
+		return null;
+	}
+}
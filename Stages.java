@@ -0,0 +1,693 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Block versions of the StereoPair processing stages, for the streaming engine.
+// The arithmetic matches the StereoPair methods step for step, so a file pushed through in blocks
+// comes out the same as one processed in memory.
+//
+// Gain, DCOffset, PeakMeter, Analysis and the phrase stages also take one-channel blocks, for
+// MultiTrack's tracks.
+public class Stages
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	static final Kernels kernels = Kernels.INSTANCE;
+
+
+	public static class Gain implements BlockStage
+	{
+		float g;
+
+		public Gain(float gainFactor)
+		{
+			g = gainFactor;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			for (int c=0;c<block.length;c++)
+			{
+				kernels.gain(block[c], from, to, g);
+			}
+		}
+	}
+
+
+	public static class ChannelGain implements BlockStage
+	{
+		float g;
+		int chanNum;
+
+		public ChannelGain(float gainFactor, int chan)
+		{
+			g = gainFactor;
+			chanNum = chan;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			kernels.gain(block[chanNum], from, to, g);
+		}
+	}
+
+
+	public static class ChannelCopy implements BlockStage
+	{
+		int fromChan, toChan;
+
+		public ChannelCopy(int fromChannel, int toChannel)
+		{
+			fromChan = fromChannel;
+			toChan = toChannel;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			for (int i=from;i<to;i++)
+			{
+				block[toChan][i] = block[fromChan][i];
+			}
+		}
+	}
+
+
+	public static class DCOffset implements BlockStage
+	{
+		float pole;
+		float previousL = 0f;
+		float previousR = 0f;
+		float currentL = 0f;
+		float currentR = 0f;
+
+		public DCOffset(float sampleRate)
+		{
+			pole = StereoPair.dcPole(sampleRate);
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			for (int i=from;i<to;i++)
+			{
+				currentL = pole*currentL + block[LEFT][i] - previousL;
+				previousL = block[LEFT][i];
+				block[LEFT][i] = currentL;
+			}
+			if (block.length == 1) return;
+
+			for (int i=from;i<to;i++)
+			{
+				currentR = pole*currentR + block[RIGHT][i] - previousR;
+				previousR = block[RIGHT][i];
+				block[RIGHT][i] = currentR;
+			}
+		}
+	}
+
+
+	// Same as StereoPair.bandPass: adds the band-passed signal back in scaled by (wetGainFactor-1),
+	// and keeps the sum of squares of the left band signal for bandRMS.
+	public static class BandPass implements BlockStage
+	{
+		float fk, fa1, fa0;
+		float fd1_l = 0f, fd2_l = 0f, fd1_r = 0f, fd2_r = 0f;
+		float wetGainFactor;
+		float sum = 0.0f;
+		int count = 0;
+
+		public BandPass(float freq, float width, float wetGain, float sampleRate)
+		{
+			wetGainFactor = wetGain-1.0f;
+
+			float dampening = width*0.999f + 0.001f;
+			float c = (float) ( 1 / Math.tan( Math.PI*freq / sampleRate ) );
+			float a2 = 1 + c*(c+dampening);
+			fa1 = 2 * (1 - c*c) / a2;
+			fa0 = (1 + c*(c-dampening)) / a2;
+			fk = c*dampening / a2;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			float spl0, spl1, d0_l, d0_r;
+			for (int i=from;i<to;i++)
+			{
+				spl0 = block[LEFT][i];
+				spl1 = block[RIGHT][i];
+				d0_l = fk*spl0 - (fa1*fd1_l + fa0*fd2_l);
+				d0_r = fk*spl1 - (fa1*fd1_r + fa0*fd2_r);
+				spl0 = d0_l - fd2_l;
+				spl1 = d0_r - fd2_r;
+				fd2_l = fd1_l;
+				fd2_r = fd1_r;
+				fd1_l = d0_l;
+				fd1_r = d0_r;
+
+				block[LEFT][i] = block[LEFT][i] + spl0*wetGainFactor;
+				block[RIGHT][i] = block[RIGHT][i] + spl1*wetGainFactor;
+
+				sum += Math.pow(spl0,2);
+			}
+			count += to-from;
+		}
+
+		public float getRMS()
+		{
+			return (float) Math.sqrt(sum/count);
+		}
+	}
+
+
+	// RMS of both channels plus the RMS of every analysis band, in one read-only pass. Each sample is read
+	// once and updates both RMS sums and all the band filters together. Only the left band output goes into
+	// bandRMS, so the right channel is never band filtered. A one-channel block counts as both channels.
+	// Sums of squares are kept in double. They used to be float, added in the same order as the old
+	// per-channel and per-band StereoPair scans and giving the same results, but a float sum drifts by
+	// several percent over a quiet 14 minute window, so the serial, streaming and sliced analyses didn't
+	// agree. The RMS and band RMS changed slightly with it, on purpose.
+	public static class Analysis implements Measurement
+	{
+		double sumL = 0.0;
+		double sumR = 0.0;
+		int count = 0;
+
+		int bandCount = StereoPair.BANDS_HZ.length;
+		float[] fk = new float[bandCount];
+		float[] fa1 = new float[bandCount];
+		float[] fa0 = new float[bandCount];
+		float[] fd1 = new float[bandCount];
+		float[] fd2 = new float[bandCount];
+		double[] bandSum = new double[bandCount];
+
+		public Analysis(float sampleRate)
+		{
+			for (int j=0;j<bandCount;j++)
+			{
+				BandPass band = new BandPass(StereoPair.BANDS_HZ[j], StereoPair.BANDS_Q[j], 1.0f, sampleRate);
+				fk[j] = band.fk;
+				fa1[j] = band.fa1;
+				fa0[j] = band.fa0;
+			}
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			float[] left = block[LEFT];
+			float[] right = (block.length > 1) ? block[RIGHT] : left;
+
+			for (int i=from;i<to;i++)
+			{
+				float x = left[i];
+				sumL += Math.pow(x,2);
+				sumR += Math.pow(right[i],2);
+
+				for (int j=0;j<bandCount;j++)
+				{
+					float d0 = fk[j]*x - (fa1[j]*fd1[j] + fa0[j]*fd2[j]);
+					float spl = d0 - fd2[j];
+					fd2[j] = fd1[j];
+					fd1[j] = d0;
+					bandSum[j] += Math.pow(spl,2);
+				}
+			}
+			count += to-from;
+		}
+
+		public void finish(int end)
+		{
+		}
+
+		// Forget the sums but keep the filter state, e.g. after running a warm-up pre-roll
+		public void clearSums()
+		{
+			sumL = 0.0;
+			sumR = 0.0;
+			count = 0;
+			for (int j=0;j<bandCount;j++)
+			{
+				bandSum[j] = 0.0;
+			}
+		}
+
+		public float getRMS(int chanNum)
+		{
+			return (float) Math.sqrt((chanNum == LEFT ? sumL : sumR)/count);
+		}
+
+		public float getBandRMS(int band)
+		{
+			return (float) Math.sqrt(bandSum[band]/count);
+		}
+	}
+
+
+	public static class Ambience implements BlockStage
+	{
+		private static final float AMBIENCE_DELAY_GAIN = 0.125f;
+
+		int delay;
+		float[] delayL, delayR;
+		int firstPosition = -1;
+
+		public Ambience(float sampleRate)
+		{
+			delay = StereoPair.msToSamples(15, sampleRate);
+			delayL = new float[delay];
+			delayR = new float[delay];
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			if (firstPosition < 0) firstPosition = position;
+
+			for (int i=from;i<to;i++)
+			{
+				int pos = position + (i-from);
+				int slot = pos % delay;
+
+				float mid = (block[LEFT][i] + block[RIGHT][i]) * 0.5f;
+				float side = (block[LEFT][i] - block[RIGHT][i]) * 0.5f;
+
+				// Only samples we've seen are in the delay line
+				if (pos>delay && pos-delay>=firstPosition)
+				{
+					float delayedMid = (delayL[slot] + delayR[slot]) * 0.5f;
+					side = side + (delayedMid*AMBIENCE_DELAY_GAIN);
+				}
+
+				block[LEFT][i] = mid + side;
+				block[RIGHT][i] = mid - side;
+				delayL[slot] = block[LEFT][i];
+				delayR[slot] = block[RIGHT][i];
+			}
+		}
+	}
+
+
+	public static class PeakMeter implements Measurement
+	{
+		float largestFloatLeft = 0.0f;
+		float largestFloatRight = 0.0f;
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			largestFloatLeft = kernels.peak(block[LEFT], from, to, largestFloatLeft);
+			if (block.length > 1) largestFloatRight = kernels.peak(block[RIGHT], from, to, largestFloatRight);
+		}
+
+		public void finish(int end)
+		{
+		}
+
+		public float getPeak()
+		{
+			return Math.max(largestFloatLeft, largestFloatRight);
+		}
+	}
+
+
+	public static class Region
+	{
+		int start, end;
+		float gain;
+
+		public Region(int regionStart, int regionEnd, float regionGain)
+		{
+			start = regionStart;
+			end = regionEnd;
+			gain = regionGain;
+		}
+	}
+
+
+	// First half of StereoPair.phraseDynamics: walks the left channel once and records every phrase
+	// (start, end, gain) exactly as the in-memory search would find them. Needs finish() at the end.
+	public static class PhraseDetector implements Measurement
+	{
+		private static final int SEEK = 0;
+		private static final int PHRASE = 1;
+
+		float attackThreshold, releaseThreshold, targetRMS;
+		int minGapLengthSamples, minPhraseLengthSamples;
+		List<Region> phrases = new ArrayList<Region>();
+
+		int state = SEEK;
+		int seekFrom = -1;
+		int phraseStart, gapStart, pointsCounted;
+		float sum;
+
+		public PhraseDetector(float RMSL, float sampleRate)
+		{
+			attackThreshold = RMSL * StereoPair.PHRASE_ATTACK_RATIO;
+			releaseThreshold = RMSL * StereoPair.PHRASE_RELEASE_RATIO;
+			targetRMS = RMSL * StereoPair.PHRASE_TARGET_RATIO;
+			minGapLengthSamples = StereoPair.msToSamples(StereoPair.PHRASE_MIN_GAP_MS, sampleRate);
+			minPhraseLengthSamples = StereoPair.msToSamples(StereoPair.PHRASE_MIN_LENGTH_MS, sampleRate);
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			if (seekFrom < 0) seekFrom = position;
+
+			for (int i=from;i<to;i++)
+			{
+				int pos = position + (i-from);
+				float x = block[LEFT][i];
+
+				if (state == SEEK)
+				{
+					if (pos >= seekFrom && Math.abs(x) > attackThreshold)
+					{
+						state = PHRASE;
+						phraseStart = pos;
+						gapStart = pos + minPhraseLengthSamples;
+						sum = 0.0f;
+						pointsCounted = 0;
+					}
+					else
+					{
+						continue;
+					}
+				}
+
+				// Gap samples are below the release threshold, so they never count towards the phrase RMS
+				if (x > attackThreshold)
+				{
+					pointsCounted++;
+					sum += Math.pow(x,2);
+				}
+
+				if (pos >= gapStart)
+				{
+					if (Math.abs(x) > releaseThreshold)
+					{
+						gapStart = pos + 2;
+					}
+					else if (pos - gapStart == minGapLengthSamples)
+					{
+						endPhrase(gapStart);
+						seekFrom = gapStart + 2;
+						state = SEEK;
+					}
+				}
+			}
+		}
+
+		public void finish(int end)
+		{
+			if (state == PHRASE)
+			{
+				endPhrase(end);
+			}
+			else if (seekFrom >= 0 && seekFrom < end)
+			{
+				// No more signal, so ramp back to unity gain at the end
+				sum = 0.0f;
+				pointsCounted = 0;
+				phraseStart = end;
+				endPhrase(end);
+			}
+		}
+
+		private void endPhrase(int phraseEnd)
+		{
+			if (pointsCounted == 0) pointsCounted++;
+			float phraseRMS = (float) Math.sqrt(sum/pointsCounted);
+			float gainFactor = Math.max(StereoPair.PHRASE_MIN_GAIN,Math.min(StereoPair.PHRASE_MAX_GAIN,targetRMS/phraseRMS));
+			if (phraseRMS == 0.0f) gainFactor = 1.0f;
+
+			if (gainFactor > 1)
+			{
+				gainFactor = ((gainFactor-1))*StereoPair.PHRASE_STRENGTH + 1;
+			}
+			else
+			{
+				gainFactor = 1 - ((1-gainFactor))*StereoPair.PHRASE_STRENGTH;
+			}
+
+			phrases.add(new Region(phraseStart, phraseEnd, gainFactor));
+		}
+
+		public List<Region> getPhrases()
+		{
+			return phrases;
+		}
+	}
+
+
+	// Second half of StereoPair.phraseDynamics: ramps between the gains of the detected phrases.
+	public static class PhraseDynamics implements BlockStage
+	{
+		List<Region> phrases;
+		boolean debug;
+		int index = 0;
+
+		public PhraseDynamics(List<Region> detectedPhrases, boolean debugEnvelope)
+		{
+			phrases = detectedPhrases;
+			debug = debugEnvelope;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			float range = StereoPair.PHRASE_MAX_GAIN-StereoPair.PHRASE_MIN_GAIN;
+
+			for (int i=from;i<to;i++)
+			{
+				int pos = position + (i-from);
+
+				while (index < phrases.size() && pos >= phrases.get(index).end) index++;
+
+				if (index == phrases.size())
+				{
+					if (debug && block.length > 1) block[RIGHT][i] = 0.0f;
+					continue;
+				}
+
+				Region phrase = phrases.get(index);
+				float modifiedGainFactor;
+				if (pos < phrase.start)
+				{
+					int previousPhraseEnd = (index > 0) ? phrases.get(index-1).end : 0;
+					float previousPhraseGain = (index > 0) ? phrases.get(index-1).gain : 1.0f;
+					int rampTimeSamples = phrase.start-previousPhraseEnd;
+					float percentThroughRamp = (float) (pos-previousPhraseEnd)/rampTimeSamples;
+					modifiedGainFactor = previousPhraseGain+(percentThroughRamp*(phrase.gain-previousPhraseGain));
+				}
+				else
+				{
+					modifiedGainFactor = phrase.gain;
+				}
+
+				block[LEFT][i] = block[LEFT][i]*modifiedGainFactor;
+				if (block.length == 1) continue;
+				block[RIGHT][i] = block[RIGHT][i]*modifiedGainFactor;
+
+				if (debug)
+				{
+					// Show envelope on right channel
+					block[RIGHT][i] = (modifiedGainFactor-1)/range;
+					if (block[RIGHT][i] < 0) block[RIGHT][i] *= 2;
+				}
+			}
+		}
+	}
+
+
+	// First half of StereoPair.peakReduce for one channel: records each zero-crossing to zero-crossing
+	// region around a sample above threshold, with the gain that brings its peak down to threshold,
+	// region for region as the in-memory version finds them. That one rescans from the sample that ends
+	// each region and measures each peak top on the signal earlier regions have already reduced, so the
+	// samples since the last crossing (or the start of the open region) are kept, and the top is taken
+	// over them with the gains of the regions overlapping it applied in order.
+	public static class PeakDetector implements Measurement
+	{
+		float threshold;
+		int chanNum;
+		List<Region> regions = new ArrayList<Region>();
+
+		boolean first = true;
+		float previous;
+		int lastCross = 0;		// Latest p where samples p-1 and p cross (0 for none), as the in-memory search
+		int crossBefore = 0;	// The one before that
+
+		boolean inPeak = false;
+		int regionStart, trigger;
+
+		float[] history = new float[1024];	// Samples from historyStart on
+		int historyStart = 0;
+		int historyEnd = 0;
+
+		public PeakDetector(float peakThreshold, int chan)
+		{
+			threshold = peakThreshold;
+			chanNum = chan;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			for (int i=from;i<to;i++)
+			{
+				int pos = position + (i-from);
+				float x = block[chanNum][i];
+				if (first) historyStart = historyEnd = pos;
+				keep(x);
+				boolean crossing = !first && ((x > 0 && previous < 0) || (x < 0 && previous > 0));
+
+				if (inPeak && crossing && pos-1 >= trigger+1)
+				{
+					// The region ends at pos-1, where the search picks up again
+					endRegion(pos-1);
+					if (Math.abs(previous) > threshold)
+					{
+						startRegion(pos-1, (lastCross == pos-1) ? crossBefore : lastCross);
+					}
+				}
+
+				if (!inPeak && Math.abs(x) > threshold)
+				{
+					startRegion(pos, lastCross);
+				}
+
+				if (crossing)
+				{
+					crossBefore = lastCross;
+					lastCross = pos;
+					if (!inPeak) forget(crossBefore);
+				}
+
+				previous = x;
+				first = false;
+			}
+		}
+
+		public void finish(int end)
+		{
+			if (inPeak) endRegion(end);
+		}
+
+		private void startRegion(int at, int start)
+		{
+			inPeak = true;
+			trigger = at;
+			regionStart = start;
+		}
+
+		// Gain for [regionStart, regionEnd), from its top as reduced by the regions before it
+		private void endRegion(int regionEnd)
+		{
+			int firstOverlap = regions.size();
+			while (firstOverlap > 0 && regions.get(firstOverlap-1).end > regionStart) firstOverlap--;
+
+			float max = 0.0f;
+			for (int p=Math.max(regionStart, historyStart);p<regionEnd;p++)
+			{
+				float y = history[p-historyStart];
+				for (int j=firstOverlap;j<regions.size();j++)
+				{
+					Region r = regions.get(j);
+					if (p >= r.start && p < r.end) y = y*r.gain;
+				}
+				max = Math.max(max, Math.abs(y));
+			}
+
+			regions.add(new Region(regionStart, regionEnd, Math.abs(threshold/max)));
+			inPeak = false;
+		}
+
+		private void keep(float x)
+		{
+			if (historyEnd-historyStart == history.length)
+			{
+				history = Arrays.copyOf(history, history.length*2);
+			}
+			history[historyEnd-historyStart] = x;
+			historyEnd++;
+		}
+
+		// Drops the samples before a position no region can start before any more
+		private void forget(int before)
+		{
+			int drop = Math.min(before, historyEnd) - historyStart;
+			if (drop <= 0) return;
+			System.arraycopy(history, drop, history, 0, historyEnd-historyStart-drop);
+			historyStart += drop;
+		}
+
+		public List<Region> getRegions()
+		{
+			return regions;
+		}
+	}
+
+
+	// Second half of StereoPair.peakReduce: applies the region gains found by a PeakDetector.
+	public static class PeakReduce implements BlockStage
+	{
+		List<Region> regions;
+		int chanNum;
+		int lo = 0;
+		int hi = 0;
+
+		public PeakReduce(List<Region> detectedRegions, int chan)
+		{
+			regions = detectedRegions;
+			chanNum = chan;
+		}
+
+		public void process(float[][] block, int from, int to, int position)
+		{
+			for (int i=from;i<to;i++)
+			{
+				int pos = position + (i-from);
+
+				// Region starts and ends both only move forward, so the active ones are regions[lo..hi)
+				while (hi < regions.size() && regions.get(hi).start <= pos) hi++;
+				while (lo < hi && regions.get(lo).end <= pos) lo++;
+
+				for (int j=lo;j<hi;j++)
+				{
+					if (pos < regions.get(j).end)
+					{
+						block[chanNum][i] = block[chanNum][i]*regions.get(j).gain;
+					}
+				}
+			}
+		}
+	}
+
+
+	public static BlockStage channelBalance(float RMSL, float RMSR)
+	{
+		if (RMSL < StereoPair.SILENT_THRESHOLD && !(RMSR < StereoPair.SILENT_THRESHOLD))
+		{
+			return new ChannelCopy(RIGHT,LEFT);
+		}
+		else if (RMSR < StereoPair.SILENT_THRESHOLD && !(RMSL < StereoPair.SILENT_THRESHOLD))
+		{
+			return new ChannelCopy(LEFT,RIGHT);
+		}
+		else if (RMSR < RMSL)
+		{
+			return new ChannelGain(RMSL/RMSR,RIGHT);
+		}
+		else
+		{
+			return new ChannelGain(RMSR/RMSL,LEFT);
+		}
+	}
+
+
+	// Returns null if the band gain is within tolerance and the band should be skipped
+	public static BlockStage bandGain(float freq, float width, float wetGainFactor, float sampleRate)
+	{
+		wetGainFactor = Math.min(Math.max(wetGainFactor,StereoPair.MIN_BAND_GAIN),StereoPair.MAX_BAND_GAIN);
+
+		if (Math.abs(1-wetGainFactor) < StereoPair.EQ_TOLERANCE)
+		{
+			return null;
+		}
+		return new BandPass(freq, width, wetGainFactor, sampleRate);
+	}
+}
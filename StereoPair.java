@@ -1,32 +1,56 @@
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 public class StereoPair
 {
 	private static final float AMP_DB = 8.65617025f;
-	private static final float SILENT_THRESHOLD = 0.02f;
+	static final float SILENT_THRESHOLD = 0.02f;
 	private static final float MAX_VOLUME = (float) Math.pow(2,-0.2/6);
 	public static enum FilterType { LOWPASS, HIPASS };
 	private static final int LEFT = 0;
 	private static final int RIGHT = 1;
-
-	private static final float RMS_TARGET = StereoPair.dbToAmp(-21.0f);
-
-	private static final float EQ_TOLERANCE = 0.02f;  // If band multiplier less than this, don't actually apply EQ.
-
-	private static final float MAX_BAND_GAIN = 1.5f;
-	private static final float MIN_BAND_GAIN = 0.5f;
+	private static final int LOAD_BLOCK_SIZE = 65536;	// Frames per read when converting on load
+	private static final int KERNEL_BLOCK_SIZE = 8192;	// Frames copied out of the store for the Kernels loops
+
+	static final Kernels kernels = Kernels.INSTANCE;
+
+	public static final float RUMBLE_HZ = 75.0f;
+	public static final float RUMBLE_Q = 0.1f;		// For the legacy sections
+
+	static final float RMS_TARGET = StereoPair.dbToAmp(-21.0f);
+
+	static final float EQ_TOLERANCE = 0.02f;  // If band multiplier less than this, don't actually apply EQ.
+
+	static final float MAX_BAND_GAIN = 1.5f;
+	static final float MIN_BAND_GAIN = 0.5f;
+
+	// Phrase dynamics tuning
+	static final float PHRASE_STRENGTH = 1.0f;
+	static final float PHRASE_ATTACK_RATIO = 0.75f;	// Of RMSL
+	static final float PHRASE_RELEASE_RATIO = 0.4f;	// Of RMSL
+	static final float PHRASE_TARGET_RATIO = 2.5f;	// Of RMSL
+	static final float PHRASE_MAX_GAIN = 2.0f;	 // Boost 200% at the most
+	static final float PHRASE_MIN_GAIN = 0.5f; // Cut to 50% at the most
+	static final int PHRASE_MIN_GAP_MS = 200;
+	static final int PHRASE_MIN_LENGTH_MS = 750;
+	static final boolean PHRASE_DEBUG = true;	// Show gain envelope on right channel
+
+	// Noise reduction tuning // TODO: Add to config file
+	static final float NOISE_THRESHOLD = 0.08f;
+	static final int NOISE_ATTACK_MS = 200;		// How fast sound fades out
+	static final int NOISE_RELEASE_MS = 10;		// How fast sound fades back in
+	static final float NOISE_GAIN_FACTOR = 0.25f;	// 1.0 = total silence, 0.0 = No gain reduction
+	static final int NOISE_MIN_GAP_MS = 750;
+
+	// Limiter after the boost to target RMS
+	static final float LIMITER_CEILING = 1.0f;
+	static final int LIMITER_LOOKAHEAD_MS = 5;
+	static final int LIMITER_RELEASE_MS = 100;
 														//VOCAL ROOT		MUD				RADIO		SENSITIVE	SILBILANCE	AIR
 	public static final float[] BANDS_HZ =				{ 150.f,			400.0f,			1500.0f,	4000.0f,	8000.0f,	14000.0f	};
 	public static final float[] BANDS_Q =				{ 1.0f,				1.0f,			1.0f,		1.0f,		1.0f,		1.0f		};
@@ -34,7 +58,9 @@ public class StereoPair
 	//public static final float[] BANDS_TARGET_RATIO =	{ 0.51586f,			0.66732f,		0.45527f,	0.25961f,	0.16588f,	0.08076f	};
 	public static final float[] BANDS_TARGET_RATIO =	{ 0.5f,				0.5f,			0.35f,		0.35f,		0.15f,		0.08076f	};
 
-	float[][] channel;
+	SampleStore samples;
+	FeatureIndex[] index = new FeatureIndex[2];	// Search index per channel, while a dynamics stage runs
+	Options options = new Options();	// Engine choices (rumble filter, EQ topology)
 	int processStart, processEnd;
 	AudioFileFormat.Type fileType;
 
@@ -42,12 +68,29 @@ public class StereoPair
 	float[] bandMult = new float[BANDS_HZ.length];
 	float[] bandRMS = new float[BANDS_HZ.length];
 	float overallGainFactor = 1.0f;
+	LoudnessMeter loudness;		// Of the analysis range
 
 	AudioFormat format;
+	float sampleRate;		// What the file is processed at, its own rate unless that's below 44.1khz
 
 	public StereoPair(String fileName) throws UnsupportedAudioFileException, IOException, Exception
+	{
+		this(fileName, new HeapSampleStore());
+	}
+
+
+	public StereoPair(String fileName, SampleStore store) throws UnsupportedAudioFileException, IOException, Exception
+	{
+		this(fileName, store, Integer.MAX_VALUE);
+	}
+
+
+	// Loads only the first maxFrames frames, the rest of the file isn't decoded at all
+	public StereoPair(String fileName, SampleStore store, int maxFrames) throws UnsupportedAudioFileException, IOException, Exception
 	{
 		log("Loading file: "+fileName);
+		StageEvent event = StageEvent.begin("load");
+		samples = store;
 
 		if (fileName.toUpperCase().indexOf(".WAV") > 0)
 		{
@@ -63,83 +106,97 @@ public class StereoPair
 		}
 		log("File format="+fileType);
 
-		// Get input file as audio stream
-		File inputFile = new File(fileName);
-		AudioInputStream ais = AudioSystem.getAudioInputStream(inputFile);
-		format = ais.getFormat();
-
-		// Create buffer to hold bytes from clip
-		int bytesPerFrame = ais.getFormat().getFrameSize(); // How many bytes per frame?
-		log("Bytes per frame="+bytesPerFrame);
-		int totalFrames = (int) ais.getFrameLength();		// How many frames total?
-		log("Total frames="+totalFrames);
-		int bufferSize = totalFrames * bytesPerFrame;		// Size buffer large enough to hold entire file (wise?)
-		log("Buffer size="+bufferSize);
-		byte[] audioBytes = new byte[bufferSize];
-
-		// Read bytes from audiostream into buffer
-		ais.read(audioBytes,0,bufferSize);
-
-		ByteBuffer bb = ByteBuffer.wrap(audioBytes);
-		if (format.isBigEndian())
-		{
-			log("BIG ENDIAN");
-			bb.order(ByteOrder.BIG_ENDIAN);
-		}
-		else
+		FrameReader reader = new FrameReader(fileName, LOAD_BLOCK_SIZE);
+		try
 		{
-			log("LITTLE ENDIAN");
-			bb.order(ByteOrder.LITTLE_ENDIAN);
-		}
-
-		int outputArrayLength = totalFrames;
-
-		log("outputArrayLength="+outputArrayLength);
-
-		channel = new float[2][];
-		channel[LEFT] = new float[outputArrayLength];
-		channel[RIGHT] = new float[outputArrayLength];
-		int leftCount = 0;
-		int rightCount = 0;
-
-		int i=0;
-		while (bb.hasRemaining())
-		{
-			short tempS = bb.getShort();
-			float tempF = (float) (tempS / 32768.0f);
-
-			// Alternate values from left and right
-			if (i % 2 == 0)
+			format = reader.getFormat();
+			sampleRate = format.getSampleRate();
+			log("Sample rate="+sampleRate);
+			if (!reader.isMapped())
 			{
-				channel[LEFT][leftCount++] = tempF;
+				log("Converting to "+sampleRate+"hz, 16-bit, stereo while loading...");
 			}
-			else if (i % 2 == 1)
+
+			// Read blocks into the store, which grows if a converted stream doesn't know its length
+			long frameLength = reader.getFrameLength();
+			if (frameLength > 0) samples.reserve((int) Math.min(frameLength, maxFrames));
+			if (maxFrames < Integer.MAX_VALUE) log("Loading the first "+maxFrames+" frames only");
+
+			float[][] block = new float[2][LOAD_BLOCK_SIZE];
+			int frames;
+			while (samples.getLength() < maxFrames && (frames = reader.read(block, Math.min(LOAD_BLOCK_SIZE, maxFrames-samples.getLength()))) > 0)
 			{
-				channel[RIGHT][rightCount++] = tempF;
+				samples.append(block, frames);
 			}
-			i++;
 		}
-		log("i="+i);
+		finally
+		{
+			reader.close();
+		}
+		event.finish(samples.getLength());
+		log("Total frames="+samples.getLength());
 
 		processStart = 0;
-		processEnd = channel[LEFT].length;
+		processEnd = samples.getLength();
 
 		log("------------------------------------------------");
 	}
 
 
+	public int getLength()
+	{
+		return samples.getLength();
+	}
+
+
+	// Frees the sample store
+	public void close()
+	{
+		samples.close();
+	}
+
+
 	public void debugLine(float g)
 	{
-		int end=secondsToSamples(1);
+		int end=secondsToSamples(1, sampleRate);
 		for (int i=0;i<end;i++)
 		{
-			channel[LEFT][i] = g;
-			channel[RIGHT][i] = g;
+			samples.set(LEFT, i, g);
+			samples.set(RIGHT, i, g);
 		}
 	}
 
 
 	public void calculateTargetGain()
+	{
+		if (options.loudnessTarget != 0.0f)
+		{
+			overallGainFactor = calculateLoudnessGain(loudness, options.loudnessTarget);
+		}
+		else
+		{
+			overallGainFactor = calculateTargetGain(RMSL, RMSR);
+		}
+	}
+
+
+	// Gain that brings the integrated loudness up to the target (in LUFS), instead of RMS up to RMS_TARGET
+	public static float calculateLoudnessGain(LoudnessMeter loudness, float target)
+	{
+		double integrated = loudness.getIntegrated();
+		log("Integrated loudness="+integrated);
+		log("LOUDNESS TARGET="+target+" LUFS");
+		if (integrated < target && !Double.isInfinite(integrated))
+		{
+			float gainFactor = (float) Math.pow(10.0, (target-integrated)/20.0);
+			log("Loudness below target, loudness gainFactor = "+gainFactor);
+			return gainFactor;
+		}
+		return 1.0f;
+	}
+
+
+	public static float calculateTargetGain(float RMSL, float RMSR)
 	{
 		// Use whichever channel is louder to calculate
 		float RMS = Math.max(RMSL, RMSR);
@@ -147,21 +204,107 @@ public class StereoPair
 		log("RMS TARGET="+RMS_TARGET+" ("+ampToDb(RMS_TARGET)+"db)");
 		if (RMS < RMS_TARGET)
 		{
-			overallGainFactor = RMS_TARGET/RMS;
-			log("RMS below target, RMS gainFactor = "+overallGainFactor);
+			float gainFactor = RMS_TARGET/RMS;
+			log("RMS below target, RMS gainFactor = "+gainFactor);
+			return gainFactor;
 		}
+		return 1.0f;
 	}
 
 
-	public void analyzeBand(int i)
+	// RMS for both channels and every band, split into time slices across all cores.
+	// See ParallelAnalysis for how closely this matches analyzeSerial().
+	public void analyze()
 	{
-		log("Band #"+i+": Analyzing frequency band="+BANDS_HZ[i]);
-		bandRMS[i] = bandRMS(BANDS_HZ[i], BANDS_Q[i]);
-		log("Band #"+i+": Band RMS="+bandRMS[i]);
+		log("Analyzing RMS and "+BANDS_HZ.length+" frequency bands on "+ParallelAnalysis.pool.getParallelism()+" threads...");
+
+		StageEvent event = StageEvent.begin("analysis");
+		ParallelAnalysis.Result analysis = ParallelAnalysis.analyze(samples, processStart, processEnd, sampleRate);
+		event.finish(processEnd-processStart);
+
+		loudness = analysis.getLoudness();
+		loudness.report("Input");
+		RMSL = analysis.getRMS(LEFT);
+		RMSR = analysis.getRMS(RIGHT);
+		log("RMS for channel "+LEFT+"="+RMSL);
+		log("RMS for channel "+RIGHT+"="+RMSR);
+
+		for (int i=0;i<BANDS_HZ.length;i++)
+		{
+			bandRMS[i] = analysis.getBandRMS(i);
+			log("Band #"+i+": Band RMS="+bandRMS[i]);
+		}
+	}
+
+
+	// RMS for both channels and every band, in a single read-only pass over the process range
+	public void analyzeSerial()
+	{
+		log("Analyzing RMS and "+BANDS_HZ.length+" frequency bands...");
+
+		StageEvent event = StageEvent.begin("analysis");
+		Stages.Analysis analysis = new Stages.Analysis(sampleRate);
+		loudness = new LoudnessMeter(processStart, sampleRate);
+		float[][] block = new float[2][LOAD_BLOCK_SIZE];
+		for (int pos=processStart;pos<processEnd;pos+=LOAD_BLOCK_SIZE)
+		{
+			int frames = Math.min(LOAD_BLOCK_SIZE, processEnd-pos);
+			samples.read(block, 0, pos, frames);
+			analysis.process(block, 0, frames, pos);
+			loudness.process(block, 0, frames, pos);
+		}
+		event.finish(processEnd-processStart);
+
+		loudness.report("Input");
+		RMSL = analysis.getRMS(LEFT);
+		RMSR = analysis.getRMS(RIGHT);
+		log("RMS for channel "+LEFT+"="+RMSL);
+		log("RMS for channel "+RIGHT+"="+RMSR);
+
+		for (int i=0;i<BANDS_HZ.length;i++)
+		{
+			bandRMS[i] = analysis.getBandRMS(i);
+			log("Band #"+i+": Band RMS="+bandRMS[i]);
+		}
+	}
+
+
+	// What the analysis found, for the AnalysisCache
+	public AnalysisCache.Entry getAnalysis()
+	{
+		AnalysisCache.Entry e = new AnalysisCache.Entry();
+		e.RMSL = RMSL;
+		e.RMSR = RMSR;
+		e.bandRMS = bandRMS.clone();
+		e.bandMult = bandMult.clone();
+		e.overallGainFactor = overallGainFactor;
+		e.loudness = (loudness != null) ? loudness.getIntegrated() : Double.NEGATIVE_INFINITY;
+		return e;
+	}
+
+
+	// Takes the results of an earlier analysis instead of running one
+	public void setAnalysis(AnalysisCache.Entry e)
+	{
+		RMSL = e.RMSL;
+		RMSR = e.RMSR;
+		bandRMS = e.bandRMS.clone();
+		bandMult = e.bandMult.clone();
+		overallGainFactor = e.overallGainFactor;
+		log("RMS for channel "+LEFT+"="+RMSL);
+		log("RMS for channel "+RIGHT+"="+RMSR);
+		log("Input integrated loudness="+e.loudness);
+		log("RMS gainFactor="+overallGainFactor);
 	}
 
 
 	public void calculateBandMultipliers()
+	{
+		calculateBandMultipliers(RMSL, RMSR, bandRMS, bandMult);
+	}
+
+
+	public static void calculateBandMultipliers(float RMSL, float RMSR, float[] bandRMS, float[] bandMult)
 	{
 		// For analysis, use the louder channel
 		float RMS = Math.max(RMSL, RMSR);
@@ -183,48 +326,35 @@ public class StereoPair
 	}
 
 
-	public void save(String filename) throws IOException, LineUnavailableException, UnsupportedAudioFileException
+	public void save(String filename) throws IOException
 	{
-		int leftCount = 0;
-		int rightCount = 0;
-		float tempF = 0.0f;
-		short tempS = 0;
-		ByteBuffer byteBuf = ByteBuffer.allocate((processEnd-processStart)*4);
-
-		if (format.isBigEndian())
-			byteBuf.order(ByteOrder.BIG_ENDIAN);
-		else
-			byteBuf.order(ByteOrder.LITTLE_ENDIAN);
+		log("Saving file: "+ filename);
 
-		for (int j=0;j<(processEnd-processStart)*2;j++)
+		// Quantized and written a block at a time, so the output is never held in memory
+		StageEvent event = StageEvent.begin("save");
+		PcmWriter writer = new PcmWriter(filename, fileType, processEnd-processStart, 2, sampleRate);
+		try
 		{
-			if (j % 2 == 0)
-			{
-				tempF = channel[LEFT][processStart+leftCount];
-				leftCount++;
-			}
-			else if (j % 2 == 1)
+			float[][] block = new float[2][LOAD_BLOCK_SIZE];
+			for (int pos=processStart;pos<processEnd;pos+=LOAD_BLOCK_SIZE)
 			{
-				tempF = channel[RIGHT][processStart+rightCount];
-				rightCount++;
+				int frames = Math.min(LOAD_BLOCK_SIZE, processEnd-pos);
+				samples.read(block, 0, pos, frames);
+				writer.write(block, 0, frames);
 			}
-			tempS = (short) (tempF * 32768.0f);
-			byteBuf.putShort(tempS);
+			writer.close();
 		}
-
-		log("Saving file: "+ filename);
-
-		AudioFormat outputFormat = new AudioFormat(format.getEncoding(), 44100.0f, 16, 2, 4, 44100.0f, format.isBigEndian());
-
-		InputStream byteArray = new ByteArrayInputStream(byteBuf.array());
-		AudioInputStream aisOut = new AudioInputStream(byteArray, outputFormat, (long) (processEnd-processStart));
-		AudioSystem.write(aisOut, fileType, new File(filename));
+		finally
+		{
+			writer.abandon();
+		}
+		event.finish(processEnd-processStart);
 	}
 
 
 	public void setProcessStart(int x)
 	{
-		if (x > channel[LEFT].length)
+		if (x > samples.getLength())
 		{
 			processStart = 0;
 		}
@@ -237,9 +367,9 @@ public class StereoPair
 
 	public void setProcessEnd(int x)
 	{
-		if (x > channel[LEFT].length)
+		if (x > samples.getLength())
 		{
-			processEnd = channel[LEFT].length;
+			processEnd = samples.getLength();
 		}
 		else
 		{
@@ -248,60 +378,62 @@ public class StereoPair
 	}
 
 
-	public void log(String s)
+	public static void log(String s)
 	{
-		//System.out.println(System.currentTimeMillis()+": "+s);
-		System.out.println(s);
+		BetterBot.log(s);
 	}
 
 
-	public int samplesToMs(int samples)
+	// Times and frame counts at the given sample rate (see FrameReader.processingRate)
+	public static int samplesToMs(int samples, float sampleRate)
 	{
-		return (int) ((samples/44100.0f)*1000.0f);
+		return (int) ((samples/sampleRate)*1000.0f);
 	}
 
 
-	public int msToSamples(int ms)
+	public static int msToSamples(int ms, float sampleRate)
 	{
-		return (int) ((ms/1000.0f)*44100.0f);
+		return (int) ((ms/1000.0f)*sampleRate);
 	}
 
-	public int secondsToSamples(int seconds)
+	public static int secondsToSamples(int seconds, float sampleRate)
 	{
-		return (int) (seconds*44100.0f);
+		return (int) (seconds*sampleRate);
 	}
 
-	public int minToSamples(int min)
+	public static int minToSamples(int min, float sampleRate)
 	{
-		return (int) (min*60.0f*44100.0f);
+		return (int) (min*60.0f*sampleRate);
 	}
 
 	public void addAmbience()
 	{
 		log("Adding stereo ambience...");
+		StageEvent event = StageEvent.begin("addAmbience");
 
 		// If mono, inject delayed signal directly to side channel
 
-		int AMBIENCE_DELAY_TIME = msToSamples(15);
+		int AMBIENCE_DELAY_TIME = msToSamples(15, sampleRate);
 		float AMBIENCE_DELAY_GAIN = 0.125f;
 
 		for (int i=processStart;i<processEnd;i++)
 		{
 			// Convert to mid/side
-			float mid = (channel[LEFT][i] + channel[RIGHT][i]) * 0.5f;
-			float side = (channel[LEFT][i] - channel[RIGHT][i]) * 0.5f;
+			float mid = (samples.get(LEFT, i) + samples.get(RIGHT, i)) * 0.5f;
+			float side = (samples.get(LEFT, i) - samples.get(RIGHT, i)) * 0.5f;
 
 			// Add delayed signal to side channel
 			if (i>AMBIENCE_DELAY_TIME)
 			{
-				float delayedMid = (channel[LEFT][i-AMBIENCE_DELAY_TIME] + channel[RIGHT][i-AMBIENCE_DELAY_TIME]) * 0.5f;
+				float delayedMid = (samples.get(LEFT, i-AMBIENCE_DELAY_TIME) + samples.get(RIGHT, i-AMBIENCE_DELAY_TIME)) * 0.5f;
 				side = side + (delayedMid*AMBIENCE_DELAY_GAIN);
 			}
 
 			// Convert back to L/R
-			channel[LEFT][i] = mid + side;
-			channel[RIGHT][i] = mid - side;
+			samples.set(LEFT, i, mid + side);
+			samples.set(RIGHT, i, mid - side);
 		}
+		event.finish(processEnd-processStart);
 	}
 
 
@@ -313,22 +445,12 @@ public class StereoPair
 
 	private float calcPeakThreshold(int chanNum)
 	{
-		float sum = 0;
-		for (int i=processStart;i<processEnd;i++)
-		{
-			sum += Math.abs(channel[chanNum][i]);
-		}
+		ParallelAnalysis.Result levels = ParallelAnalysis.levels(samples, processStart, processEnd);
 
-		float mean = sum / (processEnd-processStart);
+		float mean = levels.getAbsMean(chanNum);
 		log("mean="+mean);
 
-		float sum2 = 0;
-		for (int i=processStart;i<processEnd;i++)
-		{
-			sum2 += Math.pow(Math.abs(channel[chanNum][i]) - mean, 2);
-		}
-
-		float variance = sum2 / (processEnd-processStart);
+		float variance = levels.getAbsVariance(chanNum);
 		log("variance="+variance);
 
 		float standardDeviation = (float) Math.sqrt(variance);
@@ -340,76 +462,26 @@ public class StereoPair
 
 	public void peakReduce(float threshold)
 	{
+		StageEvent event = StageEvent.begin("peakReduce");
 		peakReduce(threshold, LEFT);
 		peakReduce(threshold, RIGHT);
+		event.finish(processEnd-processStart);
 		log("------------------------------------------------");
 	}
 
 
-	public void noiseReduce()
+	// Turns the gaps between speech down, with the NoiseGate
+	public void noiseReduce() throws IOException
 	{
 		log("------------------------------------------------");
 		log("Processing noise reduction...");
 
-		// Tuneable parameters // TODO: Add to config file
-		float threshold = 0.08f;
-		int attackTimeMs = 200; // How fast sound fades out
-		int releaseTimeMs = 10; // How fast sound fades back in
-		float gainFactor = 0.25f;  // 1.0 = total silence, 0.0 = No gain reduction
-		int minGapLengthMs = 750;
-
-		int attackTimeSamples = msToSamples(attackTimeMs);
-		int releaseTimeSamples = msToSamples(releaseTimeMs);
-		int minGapLengthSamples = msToSamples(minGapLengthMs);
-
-		int gapCount = 0;
-		for (int i=processStart;i<processEnd;i++)
-		{
-			if (Math.abs(channel[LEFT][i]) < threshold)
-			{
-				int startOfGap = i;
-				int endOfGap = findSampleAboveThresholdAfter(threshold,i,LEFT);
-				int gapLength = endOfGap - startOfGap;
+		StageEvent event = StageEvent.begin("noiseReduce");
+		NoiseGate gate = new NoiseGate(sampleRate);
+		applyStage(gate);
+		event.finish(processEnd-processStart);
 
-				if (gapLength > minGapLengthSamples)
-				{
-					gapCount++;
-
-					int startOfAttack = startOfGap;
-					int endOfAttack = startOfGap + attackTimeSamples;
-					int startOfRelease = endOfGap - releaseTimeSamples;
-					int endOfRelease = endOfGap;
-
-					for (int j=startOfGap;j<endOfGap;j++)
-					{
-						float modifiedGainFactor = gainFactor;
-						if (j >= startOfAttack && j <= endOfAttack)
-						{
-							// Attack Phase
-							float percentThroughAttack = (float) (j-startOfAttack)/attackTimeSamples;
-							modifiedGainFactor = 1 - (gainFactor*percentThroughAttack);
-						}
-						else if (j >= startOfRelease && j <= endOfRelease)
-						{
-							// Release Phase
-							float percentThroughRelease = (float) (j-startOfRelease)/releaseTimeSamples;
-							modifiedGainFactor = 1 - (gainFactor*(1-percentThroughRelease));
-						}
-						else
-						{
-							// Steady state
-							modifiedGainFactor = 1 - gainFactor;
-						}
-
-						//Apply gain to sample
-						channel[LEFT][j] = channel[LEFT][j]*modifiedGainFactor;
-						channel[RIGHT][j] = channel[RIGHT][j]*modifiedGainFactor;
-					}
-				}
-				i = endOfGap + 1;
-			}
-		}
-		log("Noise gaps processed="+gapCount);
+		log("Noise gaps processed="+gate.getGapCount());
 		log("------------------------------------------------");
 
 	}
@@ -419,31 +491,33 @@ public class StereoPair
 	{
 		log("------------------------------------------------");
 		log("Processing phrase dynamics...");
+		StageEvent event = StageEvent.begin("phraseDynamics");
 
-		boolean debug = true;
+		boolean debug = PHRASE_DEBUG;
 
-		float strength = 1.0f;
+		float strength = PHRASE_STRENGTH;
 
-		float attackThreshold = RMSL * 0.75f;
-		float releaseThreshold = RMSL * 0.4f;
-		float targetRMS = RMSL * 2.5f;
-		float maxGainFactor = 2.0f;	 // Boost 200% at the most
-		float minGainFactor = 0.5f; // Cut to 50% at the most
-		int minGapLengthMs = 200;
-		int minPhraseLengthMs = 750;
+		float attackThreshold = RMSL * PHRASE_ATTACK_RATIO;
+		float releaseThreshold = RMSL * PHRASE_RELEASE_RATIO;
+		float targetRMS = RMSL * PHRASE_TARGET_RATIO;
+		float maxGainFactor = PHRASE_MAX_GAIN;
+		float minGainFactor = PHRASE_MIN_GAIN;
+		int minGapLengthMs = PHRASE_MIN_GAP_MS;
+		int minPhraseLengthMs = PHRASE_MIN_LENGTH_MS;
 
-		int minGapLengthSamples = msToSamples(minGapLengthMs);
-		int minPhraseLengthSamples = msToSamples(minPhraseLengthMs);
+		int minGapLengthSamples = msToSamples(minGapLengthMs, sampleRate);
+		int minPhraseLengthSamples = msToSamples(minPhraseLengthMs, sampleRate);
 
 		if (debug)
 		{
 			// Clear right channel
 			for (int i=processStart;i<processEnd;i++)
 			{
-				channel[RIGHT][i] = 0.0f;
+				samples.set(RIGHT, i, 0.0f);
 			}
 		}
 
+		buildIndex(LEFT, false);
 		int previousPhraseEnd = 0;
 		float previousPhraseGain = 1.0f;
 
@@ -480,14 +554,14 @@ public class StereoPair
 				float modifiedGainFactor = previousPhraseGain+(percentThroughRamp*(gainFactor-previousPhraseGain));
 
 				//Apply gain to sample
-				channel[LEFT][j] = channel[LEFT][j]*modifiedGainFactor;
-				channel[RIGHT][j] = channel[RIGHT][j]*modifiedGainFactor;
+				samples.set(LEFT, j, samples.get(LEFT, j)*modifiedGainFactor);
+				samples.set(RIGHT, j, samples.get(RIGHT, j)*modifiedGainFactor);
 
 				if (debug)
 				{
 					// Show envelope on right channel
-					channel[RIGHT][j] = (modifiedGainFactor-1)/(maxGainFactor-minGainFactor);
-					if (channel[RIGHT][j] < 0) channel[RIGHT][j] *= 2;
+					samples.set(RIGHT, j, (modifiedGainFactor-1)/(maxGainFactor-minGainFactor));
+					if (samples.get(RIGHT, j) < 0) samples.set(RIGHT, j, samples.get(RIGHT, j)*2);
 				}
 			}
 
@@ -495,14 +569,14 @@ public class StereoPair
 			for (int j=startOfPhrase;j<endOfPhrase;j++)
 			{
 				//Apply gain to sample
-				channel[LEFT][j] = channel[LEFT][j]*gainFactor;
-				channel[RIGHT][j] = channel[RIGHT][j]*gainFactor;
+				samples.set(LEFT, j, samples.get(LEFT, j)*gainFactor);
+				samples.set(RIGHT, j, samples.get(RIGHT, j)*gainFactor);
 
 				if (debug)
 				{
 					// Show envelope on right channel
-					channel[RIGHT][j] = (gainFactor-1)/(maxGainFactor-minGainFactor);
-					if (channel[RIGHT][j] < 0) channel[RIGHT][j] *= 2;
+					samples.set(RIGHT, j, (gainFactor-1)/(maxGainFactor-minGainFactor));
+					if (samples.get(RIGHT, j) < 0) samples.set(RIGHT, j, samples.get(RIGHT, j)*2);
 				}
 			}
 
@@ -511,11 +585,28 @@ public class StereoPair
 
 			i = endOfPhrase + 1;
 		}
+		clearIndex();
+		event.finish(processEnd-processStart);
 
 		log("------------------------------------------------");
 	}
 
 
+	// Indexes one channel of the process range for the searches below. Built per operation, since each
+	// one runs on the signal the operation before it left.
+	private void buildIndex(int chanNum, boolean withZeroCrossings)
+	{
+		index[chanNum] = new FeatureIndex(samples, chanNum, processStart, processEnd, withZeroCrossings);
+	}
+
+
+	private void clearIndex()
+	{
+		index[LEFT] = null;
+		index[RIGHT] = null;
+	}
+
+
 	private int findNextGapAfter(int minGapLength, float threshold, int start, int chanNum)
 	{
 		for (int i=start;i<processEnd;i++)
@@ -539,10 +630,12 @@ public class StereoPair
 
 	private int findSampleAboveThresholdAfter(float threshold, int start, int chanNum)
 	{
+		if (index[chanNum] != null) return index[chanNum].nextAbove(threshold, start);
+
 		int loc = processEnd;
 		for (int i=start;i<processEnd;i++)
 		{
-			if (Math.abs(channel[chanNum][i]) > threshold)
+			if (Math.abs(samples.get(chanNum, i)) > threshold)
 			{
 				loc = i;
 				break;
@@ -556,14 +649,19 @@ public class StereoPair
 	public void logPeaks(float threshold)
 	{
 		int chanNum=LEFT;
-		int MINUMUM_DISTANCE = msToSamples(100);
+		int MINUMUM_DISTANCE = msToSamples(100, sampleRate);
 
 
 		log("Begin logging peaks");
+		buildIndex(chanNum, true);
 		for (int i=processStart;i<processEnd;i++)
 		{
+			// Skip to the next sample above threshold
+			i = findSampleAboveThresholdAfter(threshold,i,chanNum);
+			if (i >= processEnd) break;
+
 			// If sample value above theshold...
-			if (Math.abs(channel[chanNum][i]) > threshold)
+			if (Math.abs(samples.get(chanNum, i)) > threshold)
 			{
 				// Get position of previous zero-crossing
 				int startPeakLoc = findZeroCrossBefore(i,chanNum);
@@ -573,9 +671,9 @@ public class StereoPair
 
 				// Get position and value of peak top
 				int peakTopLoc = findPeakBetween(startPeakLoc,endPeakLoc,chanNum);
-				float peakTopValue = channel[chanNum][peakTopLoc];
+				float peakTopValue = samples.get(chanNum, peakTopLoc);
 
-				int peakTopLocMs = samplesToMs(peakTopLoc);
+				int peakTopLocMs = samplesToMs(peakTopLoc, sampleRate);
 
 				log(""+peakTopLocMs);
 
@@ -583,6 +681,7 @@ public class StereoPair
 				i=endPeakLoc+MINUMUM_DISTANCE-1;
 			}
 		}
+		clearIndex();
 		log("End logging peaks");
 	}
 
@@ -590,10 +689,15 @@ public class StereoPair
 	private void peakReduce(float threshold, int chanNum)
 	{
 		int peaksReduced = 0;
+		buildIndex(chanNum, true);
 		for (int i=processStart;i<processEnd;i++)
 		{
+			// Skip to the next sample above threshold
+			i = findSampleAboveThresholdAfter(threshold,i,chanNum);
+			if (i >= processEnd) break;
+
 			// If sample value above theshold...
-			if (Math.abs(channel[chanNum][i]) > threshold)
+			if (Math.abs(samples.get(chanNum, i)) > threshold)
 			{
 				peaksReduced++;
 
@@ -605,7 +709,7 @@ public class StereoPair
 
 				// Get position and value of peak top
 				int peakTopLoc = findPeakBetween(startPeakLoc,endPeakLoc,chanNum);
-				float peakTopValue = channel[chanNum][peakTopLoc];
+				float peakTopValue = samples.get(chanNum, peakTopLoc);
 
 				// Calculate required gain
 				float gainFactor = Math.abs(threshold/peakTopValue);
@@ -613,7 +717,7 @@ public class StereoPair
 				// Apply gain to the peak range
 				for (int j=startPeakLoc;j<endPeakLoc;j++)
 				{
-					channel[chanNum][j] = channel[chanNum][j]*gainFactor;
+					samples.set(chanNum, j, samples.get(chanNum, j)*gainFactor);
 				}
 
 				// Skip ahead to end of peak
@@ -621,6 +725,7 @@ public class StereoPair
 			}
 		}
 
+		clearIndex();
 		log("Peaks reduced="+peaksReduced);
 	}
 
@@ -631,9 +736,9 @@ public class StereoPair
 		int maxLoc = 0;
 		for (int i=start;i<end;i++)
 		{
-			if (Math.abs(channel[chanNum][i]) > max)
+			if (Math.abs(samples.get(chanNum, i)) > max)
 			{
-				max = Math.abs(channel[chanNum][i]);
+				max = Math.abs(samples.get(chanNum, i));
 				maxLoc = i;
 			}
 		}
@@ -644,16 +749,21 @@ public class StereoPair
 
 	public int findZeroCrossBefore(int start, int chanNum)
 	{
+		if (index[chanNum] != null && index[chanNum].zeroCrossings != null)
+		{
+			return index[chanNum].zeroCrossBefore(start, processStart);
+		}
+
 		int zeroCross = 0;
 		for (int i=start-1;i>processStart;i--)
 		{
-			if (channel[chanNum][i] > 0 && channel[chanNum][i-1] < 0)
+			if (samples.get(chanNum, i) > 0 && samples.get(chanNum, i-1) < 0)
 			{
 				zeroCross = i;
 				break;
 			}
 
-			if (channel[chanNum][i] < 0 && channel[chanNum][i-1] > 0)
+			if (samples.get(chanNum, i) < 0 && samples.get(chanNum, i-1) > 0)
 			{
 				zeroCross = i;
 				break;
@@ -666,16 +776,21 @@ public class StereoPair
 
 	public int findZeroCrossAfter(int start, int chanNum)
 	{
+		if (index[chanNum] != null && index[chanNum].zeroCrossings != null)
+		{
+			return index[chanNum].zeroCrossAfter(start, processEnd);
+		}
+
 		int zeroCross = 0;
 		for (int i=start+1;i<processEnd-1;i++)
 		{
-			if (channel[chanNum][i] > 0 && channel[chanNum][i+1] < 0)
+			if (samples.get(chanNum, i) > 0 && samples.get(chanNum, i+1) < 0)
 			{
 				zeroCross = i;
 				break;
 			}
 
-			if (channel[chanNum][i] < 0 && channel[chanNum][i+1] > 0)
+			if (samples.get(chanNum, i) < 0 && samples.get(chanNum, i+1) > 0)
 			{
 				zeroCross = i;
 				break;
@@ -689,66 +804,77 @@ public class StereoPair
 
 
 	public void normalize()
+	{
+		normalize(getPeakLevel());
+	}
+
+
+	// Normalizes by a peak measured elsewhere (e.g. over the whole file, when only part is loaded)
+	public void normalize(float peak)
 	{
 		log("Normalizing...");
 
-		float stereoPeak = getPeakLevel();
-		float normalizeFactor = Math.abs(MAX_VOLUME/stereoPeak);
+		StageEvent event = StageEvent.begin("normalize");
+		float normalizeFactor = normalizeFactor(peak);
+		scale(normalizeFactor, LEFT, RIGHT);
+		event.finish(processEnd-processStart);
+	}
+
 
-		for (int i=processStart;i<processEnd;i++)
-		{
-			channel[LEFT][i] = channel[LEFT][i]*normalizeFactor;
-			channel[RIGHT][i] = channel[RIGHT][i]*normalizeFactor;
-		}
+	public static float normalizeFactor(float stereoPeak)
+	{
+		return Math.abs(MAX_VOLUME/stereoPeak);
 	}
 
 
 	public void gain(float g)
 	{
 		log("Applying process: Gain: "+g);
-		for (int i=processStart;i<processEnd;i++)
-		{
-			channel[LEFT][i] = channel[LEFT][i]*g;
-			channel[RIGHT][i] = channel[RIGHT][i]*g;
-		}
+		scale(g, LEFT, RIGHT);
 	}
 
 
 	public void gain(float g, int chanNum)
 	{
 		log("Applying process: Gain");
-		for (int i=processStart;i<processEnd;i++)
-		{
-			channel[chanNum][i] = channel[chanNum][i]*g;
-		}
+		scale(g, chanNum, chanNum);
 	}
 
 
-	public float getPeakLevel()
+	// Multiplies the process range of the given channels by g, a block at a time
+	private void scale(float g, int firstChan, int lastChan)
 	{
-		float largestFloatLeft=0.0f;
-		float largestFloatRight=0.0f;
-		for (int i=processStart;i<processEnd;i++)
+		float[][] block = new float[2][KERNEL_BLOCK_SIZE];
+		for (int pos=processStart;pos<processEnd;pos+=KERNEL_BLOCK_SIZE)
 		{
-			if (Math.abs(channel[LEFT][i])>largestFloatLeft) largestFloatLeft = Math.abs(channel[LEFT][i]);
-			if (Math.abs(channel[RIGHT][i])>largestFloatRight) largestFloatRight = Math.abs(channel[RIGHT][i]);
+			int frames = Math.min(KERNEL_BLOCK_SIZE, processEnd-pos);
+			samples.read(block, 0, pos, frames);
+			for (int c=firstChan;c<=lastChan;c++)
+			{
+				kernels.gain(block[c], 0, frames, g);
+			}
+			samples.write(block, 0, pos, frames);
 		}
+	}
 
-		float stereoPeak = Math.max(largestFloatLeft, largestFloatRight);
-		return stereoPeak;
+
+	public float getPeakLevel()
+	{
+		return ParallelAnalysis.levels(samples, processStart, processEnd).getPeak();
 	}
 
 
 	public void clipper(float clipAt)
 	{
 		log("Applying process: Clipper");
-		for (int i=processStart;i<processEnd;i++)
+		float[][] block = new float[2][KERNEL_BLOCK_SIZE];
+		for (int pos=processStart;pos<processEnd;pos+=KERNEL_BLOCK_SIZE)
 		{
-			if (channel[LEFT][i] > 0 && channel[LEFT][i]>clipAt) channel[LEFT][i]=clipAt;
-			else if (channel[LEFT][i] < 0 && channel[LEFT][i]<-clipAt) channel[LEFT][i]=-clipAt;
-
-			if (channel[RIGHT][i] > 0 && channel[RIGHT][i]>clipAt) channel[RIGHT][i]=clipAt;
-			else if (channel[RIGHT][i] < 0 && channel[RIGHT][i]<-clipAt) channel[RIGHT][i]=-clipAt;
+			int frames = Math.min(KERNEL_BLOCK_SIZE, processEnd-pos);
+			samples.read(block, 0, pos, frames);
+			kernels.clip(block[LEFT], 0, frames, clipAt);
+			kernels.clip(block[RIGHT], 0, frames, clipAt);
+			samples.write(block, 0, pos, frames);
 		}
 	}
 
@@ -758,8 +884,8 @@ public class StereoPair
 		log("Applying process: Jiggle");
 		for (int i=processStart;i<processEnd;i++)
 		{
-			channel[LEFT][i] = channel[LEFT][i] + random(-g/2,g/2);
-			channel[RIGHT][i] = channel[RIGHT][i] + random(-g/2,g/2);
+			samples.set(LEFT, i, samples.get(LEFT, i) + random(-g/2,g/2));
+			samples.set(RIGHT, i, samples.get(RIGHT, i) + random(-g/2,g/2));
 		}
 	}
 
@@ -770,59 +896,73 @@ public class StereoPair
 	}
 
 
-	public void lowPass(float freqHz, float q)
+	public void lowPass(float freqHz, float q) throws IOException
 	{
 		filter(freqHz,q,FilterType.LOWPASS);
 	}
 
 
-	public void hiPass(float freqHz, float q)
+	public void hiPass(float freqHz, float q) throws IOException
 	{
 		filter(freqHz,q,FilterType.HIPASS);
 	}
 
 
-	public void filter(float freqHz, float q, FilterType f)
+	public void filter(float freqHz, float q, FilterType f) throws IOException
 	{
-		float fd0left = 0f, fd0right = 0f, fd1left = 0f, fd1right = 0f, fd2left = 0f, fd2right = 0f;
+		StageEvent event = StageEvent.begin((f == FilterType.HIPASS ? "hiPass " : "lowPass ")+freqHz+"hz");
+		applyStage(BiquadCascade.legacy(f, freqHz, q, 1, sampleRate));
+		event.finish(processEnd-processStart);
+	}
 
-		float damp = (float) (0.01+q*20);
-		float c = (float) (1/Math.tan(Math.PI*freqHz/44100.0f));
-		float staticFK = 1 / (1 + c*(c+damp));
-		float staticFA1 = 2 * (1 - c*c) * staticFK;
-		float staticFA0 = (1 + c*(c-damp)) * staticFK;
 
-		for (int i=processStart;i<processEnd;i++)
-		{
-			// Calculate value for current slot, based on current sample value and values in previous two slots
-			fd0left = (staticFK*channel[LEFT][i]) - (staticFA1*fd1left) - (staticFA0*fd2left);
-			fd0right = (staticFK*channel[RIGHT][i]) - (staticFA1*fd1right) - (staticFA0*fd2right);
+	// Steep hiPass to remove low rumble, in one pass (by default the same as hiPass(75, 0.1f) three times)
+	public void rumbleFilter() throws IOException
+	{
+		BiquadCascade cascade = rumbleFilterStage();
+		log("Applying process: Rumble filter: "+cascade);
+		StageEvent event = StageEvent.begin("rumbleFilter");
+		applyStage(cascade);
+		event.finish(processEnd-processStart);
+	}
 
-			// New sample value is sum of current slot plus all previous slots
-			if (f == FilterType.HIPASS)
-			{
-				channel[LEFT][i] = channel[LEFT][i] - (fd0left + fd1left + fd1left + fd2left);
-				channel[RIGHT][i] = channel[RIGHT][i] - (fd0right + fd1right + fd1right + fd2right);
-			}
-			else if (f == FilterType.LOWPASS)
+
+	public BiquadCascade rumbleFilterStage()
+	{
+		return BiquadCascade.parse(options.rumbleFilter, FilterType.HIPASS, RUMBLE_HZ, RUMBLE_Q, sampleRate);
+	}
+
+
+	// Runs a stage over the process range, a block at a time
+	private void applyStage(BlockStage stage) throws IOException
+	{
+		List<BlockStage> stages = new ArrayList<BlockStage>();
+		stages.add(stage);
+		StageChain chain = new StageChain(stages);
+
+		// A DelayStage hands frames back behind the ones being read, which are done with by then
+		StageChain.Output output = new StageChain.Output()
+		{
+			public void write(float[][] block, int from, int to, int position)
 			{
-				channel[LEFT][i] = fd0left + fd1left + fd1left + fd2left;
-				channel[RIGHT][i] = fd0right + fd1right + fd1right + fd2right;
+				samples.write(block, from, position, to-from);
 			}
+		};
 
-			// Shift value to next slot
-			fd2left = fd1left;
-			fd2right = fd1right;
-
-			// Shift value to next slot
-			fd1left = fd0left;
-			fd1right = fd0right;
+		float[][] block = new float[2][KERNEL_BLOCK_SIZE];
+		for (int pos=processStart;pos<processEnd;pos+=KERNEL_BLOCK_SIZE)
+		{
+			int frames = Math.min(KERNEL_BLOCK_SIZE, processEnd-pos);
+			samples.read(block, 0, pos, frames);
+			chain.process(block, 0, frames, pos, output);
 		}
+		chain.finish(block, output);
 	}
 
 
 	public void channelBalance()
 	{
+		StageEvent event = StageEvent.begin("channelBalance");
 		log("RMS channel[LEFT]="+RMSL);
 		log("RMS channel[RIGHT]="+RMSR);
 
@@ -855,6 +995,7 @@ public class StereoPair
 				gain(gainFactor,LEFT);
 			}
 		}
+		event.finish(processEnd-processStart);
 	}
 
 
@@ -870,31 +1011,16 @@ public class StereoPair
 	}
 
 
-	public float RMS(int chanNum)
-	{
-		log("Calculating RMS for channel:"+chanNum);
-
-		float sum = 0.0f;
-		for (int i=processStart;i<processEnd;i++)
-		{
-			sum += Math.pow(channel[chanNum][i],2);
-		}
-
-		float tempRMS = (float) Math.sqrt(sum/(processEnd-processStart));
-		log("RMS for channel "+ chanNum + "="+tempRMS);
-		return tempRMS;
-	}
-
 	public float RMSAboveNoise(int chanNum,int start,int end, float noiseFloor)
 	{
 		float sum = 0.0f;
 		int pointsCounted = 0;
 		for (int i=start;i<end;i++)
 		{
-			if (channel[chanNum][i] > noiseFloor)
+			if (samples.get(chanNum, i) > noiseFloor)
 			{
 				pointsCounted++;
-				sum += Math.pow(channel[chanNum][i],2);
+				sum += Math.pow(samples.get(chanNum, i),2);
 			}
 		}
 
@@ -907,9 +1033,13 @@ public class StereoPair
 
 	public void copyChan(int fromChan, int toChan)
 	{
-		for (int i=processStart;i<processEnd;i++)
+		float[][] block = new float[2][KERNEL_BLOCK_SIZE];
+		for (int pos=processStart;pos<processEnd;pos+=KERNEL_BLOCK_SIZE)
 		{
-			channel[toChan][i] = channel[fromChan][i];
+			int frames = Math.min(KERNEL_BLOCK_SIZE, processEnd-pos);
+			samples.read(block, 0, pos, frames);
+			System.arraycopy(block[fromChan], 0, block[toChan], 0, frames);
+			samples.write(block, 0, pos, frames);
 		}
 	}
 
@@ -918,13 +1048,23 @@ public class StereoPair
 	{
 		for (int i=start;i<end;i++)
 		{
-			log(i + "=" + channel[LEFT][i] + " / " + channel[RIGHT][i]);
+			log(i + "=" + samples.get(LEFT, i) + " / " + samples.get(RIGHT, i));
 		}
 	}
 
 
+	// The DC blocker's pole: 0.999 at 44.1khz, a cutoff of about 7hz, and the same time constant at
+	// other rates, so 48k or 96k material gets the same filter rather than a lower corner
+	public static float dcPole(float sampleRate)
+	{
+		return (float) Math.pow(0.999, 44100.0/sampleRate);
+	}
+
+
 	public void removeDCOffset()
 	{
+		StageEvent event = StageEvent.begin("removeDCOffset");
+		float pole = dcPole(sampleRate);
 		float previousL = 0f;
 		float previousR = 0f;
 		float currentL = 0f;
@@ -932,32 +1072,34 @@ public class StereoPair
 
 		for (int i=processStart;i<processEnd;i++)
 		{
-			currentL = 0.999f*currentL + channel[LEFT][i] - previousL;
-			previousL = channel[LEFT][i];
-			channel[LEFT][i] = currentL;
+			currentL = pole*currentL + samples.get(LEFT, i) - previousL;
+			previousL = samples.get(LEFT, i);
+			samples.set(LEFT, i, currentL);
 
-			currentR = 0.999f*currentR + channel[RIGHT][i] - previousR;
-			previousR = channel[RIGHT][i];
-			channel[RIGHT][i] = currentR;
+			currentR = pole*currentR + samples.get(RIGHT, i) - previousR;
+			previousR = samples.get(RIGHT, i);
+			samples.set(RIGHT, i, currentR);
 		}
+		event.finish(processEnd-processStart);
 	}
 
 
 	public void limiter(float thresholdDb)
 	{
 		log("Limiting at threshold: "+thresholdDb);
+		StageEvent event = StageEvent.begin("limiter");
 
 		double gain = 1;
 		double dc = Math.pow(10,-30);
 		double currentMaxLevel = 0;
 		double thresh = Math.exp(thresholdDb/AMP_DB);
 		double t = 0;
-		double b = -Math.exp(-62.83185307 / 44100.0f);
+		double b = -Math.exp(-62.83185307 / sampleRate);
 		double a = 1.0 + b;
 
 		for (int i=processStart;i<processEnd;i++)
 		{
-			currentMaxLevel = Math.max(Math.abs(channel[LEFT][i]), Math.abs(channel[RIGHT][i]));
+			currentMaxLevel = Math.max(Math.abs(samples.get(LEFT, i)), Math.abs(samples.get(RIGHT, i)));
 			t = a*currentMaxLevel - b*t + dc;
 			currentMaxLevel = Math.max(Math.sqrt(t-dc), currentMaxLevel);
 			if (currentMaxLevel > thresh)
@@ -968,27 +1110,59 @@ public class StereoPair
 			{
 				gain = thresh;
 			}
-			channel[LEFT][i] /= gain;
-			channel[RIGHT][i] /= gain;
+			samples.set(LEFT, i, (float) (samples.get(LEFT, i)/gain));
+			samples.set(RIGHT, i, (float) (samples.get(RIGHT, i)/gain));
 		}
+		event.finish(processEnd-processStart);
 	}
 
 
-	public void eqBalance()
+	public void eqBalance() throws IOException
 	{
-		for (int i=0;i<BANDS_HZ.length;i++)
+		StageEvent event = StageEvent.begin("eqBalance");
+		if (!options.serialEq)
 		{
-			log("----------------------------------------------");
-			log("Processing band #"+i);
-			log("Band FREQ="+BANDS_HZ[i]);
-			bandGain(BANDS_HZ[i], BANDS_Q[i], bandMult[i]);
+			List<BlockStage> eq = new ArrayList<BlockStage>();
+			addEqStages(eq, bandMult, options, sampleRate);
+			for (BlockStage stage : eq)
+			{
+				applyStage(stage);
+			}
+		}
+		else
+		{
+			for (int i=0;i<BANDS_HZ.length;i++)
+			{
+				log("----------------------------------------------");
+				log("Processing band #"+i);
+				log("Band FREQ="+BANDS_HZ[i]);
+				bandGain(BANDS_HZ[i], BANDS_Q[i], bandMult[i]);
+			}
 		}
+		event.finish(processEnd-processStart);
 	}
 
 
-	public float bandRMS(float freq, float width)
+	// The EQ as block stages: one EqBank for all the bands, or one BandPass per band with --eq=serial.
+	// Bands within tolerance are left out.
+	public static void addEqStages(List<BlockStage> chain, float[] bandMult, Options options, float sampleRate)
 	{
-		return bandPass(freq, width, 1.0f, processStart, processEnd);
+		if (options.serialEq)
+		{
+			for (int i=0;i<BANDS_HZ.length;i++)
+			{
+				BlockStage band = Stages.bandGain(BANDS_HZ[i], BANDS_Q[i], bandMult[i], sampleRate);
+				if (band != null) chain.add(band);
+			}
+			return;
+		}
+
+		EqBank bank = EqBank.create(BANDS_HZ, BANDS_Q, bandMult, options.splitEq, sampleRate);
+		if (bank != null)
+		{
+			log("EQ bank with "+bank.getBands()+" active bands"+(options.splitEq ? ", channels split across cores" : ""));
+			chain.add(bank);
+		}
 	}
 
 
@@ -1024,7 +1198,7 @@ public class StereoPair
 		log("Using wetGainFactor="+wetGainFactor);
 
 		dampening=width*0.999f + 0.001f;
-		c = (float) ( 1 / Math.tan( Math.PI*freq / 44100.0f ) );
+		c = (float) ( 1 / Math.tan( Math.PI*freq / sampleRate ) );
 		a2 = 1 + c*(c+dampening);
 		fa1 = 2 * (1 - c*c) / a2;
 		fa0 = (1 + c*(c-dampening)) / a2;
@@ -1032,8 +1206,8 @@ public class StereoPair
 
 		for (int i=start;i<end;i++)
 		{
-			spl0 = channel[LEFT][i];
-			spl1 = channel[RIGHT][i];
+			spl0 = samples.get(LEFT, i);
+			spl1 = samples.get(RIGHT, i);
 			d0_l = fk*spl0 - (fa1*fd1_l + fa0*fd2_l);
 			d0_r = fk*spl1 - (fa1*fd1_r + fa0*fd2_r);
 			spl0 = d0_l - fd2_l;
@@ -1043,8 +1217,8 @@ public class StereoPair
 			fd1_l = d0_l;
 			fd1_r = d0_r;
 
-			channel[LEFT][i] = channel[LEFT][i] + spl0*wetGainFactor;
-			channel[RIGHT][i] = channel[RIGHT][i] + spl1*wetGainFactor;
+			samples.set(LEFT, i, samples.get(LEFT, i) + spl0*wetGainFactor);
+			samples.set(RIGHT, i, samples.get(RIGHT, i) + spl1*wetGainFactor);
 
 			sum += Math.pow(spl0,2);
 		}
@@ -1053,18 +1227,128 @@ public class StereoPair
 	}
 
 
-	public void boostToTargetRMS()
+	public void boostToTargetRMS() throws IOException
 	{
+		StageEvent event = StageEvent.begin("boostToTargetRMS");
 		if (overallGainFactor > 1.0f)
 		{
 			gain(overallGainFactor);
-			peakReduce(1.0f);
+			if (options.peakReduce)
+			{
+				peakReduce(LIMITER_CEILING);
+			}
+			else
+			{
+				Limiter limiter = limiter(options, sampleRate);
+				applyStage(limiter);
+				logLimiter(limiter);
+			}
 		}
 		else
 		{
 			log("RMS above target.	No gain required.");
 		}
 		normalize();
+		event.finish(processEnd-processStart);
+	}
+
+
+	public static Limiter limiter(Options options, float sampleRate)
+	{
+		return new Limiter(LIMITER_CEILING, options.lookaheadMs, LIMITER_RELEASE_MS, sampleRate);
+	}
+
+
+	public static void logLimiter(Limiter limiter)
+	{
+		log("Limited frames="+limiter.getFramesLimited()+" min gain="+limiter.getMinGain());
+	}
+
+
+	// The FULL processing chain (removeDCOffset through boostToTargetRMS and save) as fused passes.
+	// Gives the same output as calling the methods one by one, in about a third of the passes.
+	public void processChain(boolean addAmbience, String filename) throws IOException
+	{
+		final Stages.PeakMeter filterMeter = new Stages.PeakMeter();
+		final Stages.PhraseDetector phraseDetector = new Stages.PhraseDetector(RMSL, sampleRate);
+		final Stages.PeakMeter boostMeter = new Stages.PeakMeter();
+		LoudnessMeter outputLoudness = new LoudnessMeter(processStart, sampleRate);
+		Limiter limiter = null;
+
+		List<BlockStage> chain = new ArrayList<BlockStage>();
+		chain.add(new Stages.DCOffset(sampleRate));
+		chain.add(Stages.channelBalance(RMSL, RMSR));
+		addEqStages(chain, bandMult, options, sampleRate);
+		chain.add(rumbleFilterStage());
+		chain.add(filterMeter);
+		chain.add(new ChainPlan.Deferred("normalize")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.Gain(normalizeFactor(filterMeter.getPeak()));
+			}
+		});
+		chain.add(phraseDetector);
+		chain.add(new ChainPlan.Deferred("phrase dynamics")
+		{
+			protected BlockStage build()
+			{
+				log("Phrases="+phraseDetector.getPhrases().size());
+				return new Stages.PhraseDynamics(phraseDetector.getPhrases(), PHRASE_DEBUG);
+			}
+		});
+		chain.add(addAmbience ? new Stages.Ambience(sampleRate) : null);
+		if (overallGainFactor > 1.0f)
+		{
+			log("RMS gainFactor="+overallGainFactor);
+			chain.add(new Stages.Gain(overallGainFactor));
+			if (options.peakReduce)
+			{
+				// Regions depend on each other, so the exact in-memory version runs on its own
+				chain.add(new ChainPlan.Step("peak reduce")
+				{
+					public void run()
+					{
+						peakReduce(LIMITER_CEILING);
+					}
+				});
+			}
+			else
+			{
+				limiter = limiter(options, sampleRate);
+				chain.add(limiter);
+			}
+		}
+		else
+		{
+			log("RMS above target.	No gain required.");
+		}
+		chain.add(boostMeter);
+		chain.add(new ChainPlan.Deferred("normalize")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.Gain(normalizeFactor(boostMeter.getPeak()));
+			}
+		});
+		chain.add(outputLoudness);
+
+		log("Saving file: "+ filename);
+		ChainPlan plan = new ChainPlan(samples, processStart, processEnd);
+		PcmWriter writer = new PcmWriter(filename, fileType, processEnd-processStart, 2, sampleRate);
+		try
+		{
+			plan.run(chain, writer);
+			writer.close();
+		}
+		finally
+		{
+			writer.abandon();
+		}
+		if (limiter != null) logLimiter(limiter);
+		outputLoudness.report("Output");
+
+		plan.report();
 	}
 
 }
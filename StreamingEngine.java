@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// Runs the same analysis and FULL processing chain as BetterBot.main, but pulls the file through
+// in fixed-size blocks instead of loading it into a StereoPair, so memory depends on the block
+// size rather than the length of the episode.
+//
+// Stages that need to see the whole file first (normalize, phraseDynamics, peakReduce) are split
+// into a measuring pass and an applying pass by ChainPlan. Every pass re-reads the input and re-runs
+// the chain up to that point, so nothing but the block, the filter state and the phrase/peak lists is
+// kept.
+public class StreamingEngine
+{
+	public static final int DEFAULT_BLOCK_SIZE = 8192;	// Frames per block
+
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+
+	String fileName;
+	int blockSize;
+	AudioFormat format;
+	float sampleRate;
+	AudioFileFormat.Type fileType;
+	int length;
+	boolean truncated;	// Decoding stops at maxFrames, and the file may go on
+
+	float RMSL, RMSR;
+	float[] bandMult = new float[StereoPair.BANDS_HZ.length];
+	float[] bandRMS = new float[StereoPair.BANDS_HZ.length];
+	float overallGainFactor = 1.0f;
+	LoudnessMeter loudness;		// Of the analysis range
+
+	float inputGain = 1.0f;		// Normalize before analysis
+	Options options = new Options();	// Engine choices (rumble filter, EQ topology)
+
+	public StreamingEngine(String file, int frames) throws Exception
+	{
+		this(file, frames, Integer.MAX_VALUE);
+	}
+
+
+	// Treats the file as ending after maxFrames, so nothing past that is decoded
+	public StreamingEngine(String file, int frames, int maxFrames) throws Exception
+	{
+		fileName = file;
+		blockSize = frames;
+
+		if (fileName.toUpperCase().indexOf(".WAV") > 0)
+		{
+			fileType = AudioFileFormat.Type.WAVE;
+		}
+		else if (fileName.toUpperCase().indexOf(".AIF") > 0)
+		{
+			fileType = AudioFileFormat.Type.AIFF;
+		}
+		else
+		{
+			throw new Exception("Unsupported file format.");
+		}
+
+		FrameReader reader = new FrameReader(fileName, blockSize);
+		long frameLength;
+		try
+		{
+			format = reader.getFormat();
+			sampleRate = format.getSampleRate();
+			frameLength = reader.getFrameLength();
+			if (frameLength < 0)
+			{
+				// Converted stream of unknown length, so count it (as far as we'll go)
+				float[][] block = new float[2][blockSize];
+				int framesRead;
+				frameLength = 0;
+				while (frameLength < maxFrames && (framesRead = reader.read(block, (int) Math.min(blockSize, maxFrames-frameLength))) > 0)
+				{
+					frameLength += framesRead;
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		length = (int) Math.min(frameLength, maxFrames);
+		truncated = (frameLength >= maxFrames);
+		if (maxFrames < Integer.MAX_VALUE) log("Decoding the first "+maxFrames+" frames only");
+
+		log("Streaming file: "+fileName);
+		log("Total frames="+length);
+		log("Sample rate="+sampleRate);
+		log("Block size="+blockSize);
+	}
+
+
+	public int getLength()
+	{
+		return length;
+	}
+
+
+	public void analyze(int start, int end) throws Exception
+	{
+		// Normalize first (over the whole file), hashing the audio up to the end of the analysis for the
+		// cache on the way. If decoding stopped early, the peak takes a read through the rest.
+		Stages.PeakMeter meter = new Stages.PeakMeter();
+		AnalysisCache.ContentHash hash = new AnalysisCache.ContentHash(clampEnd(end));
+		runPass("input peak", 0, length, stages(meter, hash));
+		float peak = truncated ? FrameReader.peak(fileName) : meter.getPeak();
+		inputGain = StereoPair.normalizeFactor(peak);
+		log("Input normalize factor="+inputGain);
+
+		AnalysisCache cache = null;
+		String cacheKey = null;
+		if (options.analysisCache != null)
+		{
+			cache = new AnalysisCache(options.analysisCache);
+			cacheKey = AnalysisCache.key(hash.getHash(), peak, "streaming", clampStart(start), clampEnd(end), sampleRate, options);
+			AnalysisCache.Entry cached = cache.load(cacheKey);
+			if (cached != null)
+			{
+				log("Analysis found in cache: "+cacheKey);
+				RMSL = cached.RMSL;
+				RMSR = cached.RMSR;
+				bandRMS = cached.bandRMS;
+				bandMult = cached.bandMult;
+				overallGainFactor = cached.overallGainFactor;
+				log("RMS for channel 0="+RMSL);
+				log("RMS for channel 1="+RMSR);
+				log("Input integrated loudness="+cached.loudness);
+				log("RMS gainFactor="+overallGainFactor);
+				return;
+			}
+		}
+
+		Stages.Analysis analysis = new Stages.Analysis(sampleRate);
+		loudness = new LoudnessMeter(clampStart(start), sampleRate);
+		runPass("analysis", clampStart(start), clampEnd(end), stages(new Stages.Gain(inputGain), analysis, loudness));
+		loudness.report("Input");
+
+		RMSL = analysis.getRMS(LEFT);
+		RMSR = analysis.getRMS(RIGHT);
+		log("RMS for channel 0="+RMSL);
+		log("RMS for channel 1="+RMSR);
+		for (int i=0;i<bandRMS.length;i++)
+		{
+			bandRMS[i] = analysis.getBandRMS(i);
+			log("Band #"+i+": Band RMS="+bandRMS[i]);
+		}
+
+		log("Streaming analysis complete.");
+		log("------------------------------------------------");
+
+		if (options.loudnessTarget != 0.0f)
+		{
+			overallGainFactor = StereoPair.calculateLoudnessGain(loudness, options.loudnessTarget);
+		}
+		else
+		{
+			overallGainFactor = StereoPair.calculateTargetGain(RMSL, RMSR);
+		}
+		StereoPair.calculateBandMultipliers(RMSL, RMSR, bandRMS, bandMult);
+
+		if (cache != null)
+		{
+			AnalysisCache.Entry e = new AnalysisCache.Entry();
+			e.RMSL = RMSL;
+			e.RMSR = RMSR;
+			e.bandRMS = bandRMS.clone();
+			e.bandMult = bandMult.clone();
+			e.overallGainFactor = overallGainFactor;
+			e.loudness = loudness.getIntegrated();
+			cache.save(cacheKey, e);
+		}
+	}
+
+
+	public void process(int start, int end, final boolean addAmbience, String outputFile) throws Exception
+	{
+		final int from = clampStart(start);
+		final int to = clampEnd(end);
+
+		final Stages.PeakMeter chainMeter = new Stages.PeakMeter();
+		final Stages.PhraseDetector phraseDetector = new Stages.PhraseDetector(RMSL, sampleRate);
+		final Stages.PeakDetector leftDetector = new Stages.PeakDetector(1.0f, LEFT);
+		final Stages.PeakDetector rightDetector = new Stages.PeakDetector(1.0f, RIGHT);
+		final Stages.PeakMeter finalMeter = new Stages.PeakMeter();
+		final LoudnessMeter outputLoudness = new LoudnessMeter(from, sampleRate);
+		final Limiter[] limiter = new Limiter[1];	// The latest one built
+
+		if (overallGainFactor > 1.0f && !options.peakReduce)
+		{
+			log("Limiter after boost, lookahead="+options.lookaheadMs+"ms");
+		}
+		else if (overallGainFactor <= 1.0f)
+		{
+			log("RMS above target.	No gain required.");
+		}
+
+		// Fresh stages (with fresh filter state) for the FULL chain each pass, around the same measurements
+		ChainPlan.Chain chain = new ChainPlan.Chain()
+		{
+			public void add(List<BlockStage> chain)
+			{
+				chain.add(new Stages.Gain(inputGain));
+				chain.add(new Stages.DCOffset(sampleRate));
+				chain.add(Stages.channelBalance(RMSL, RMSR));
+				StereoPair.addEqStages(chain, bandMult, options, sampleRate);
+				chain.add(BiquadCascade.parse(options.rumbleFilter, StereoPair.FilterType.HIPASS, StereoPair.RUMBLE_HZ, StereoPair.RUMBLE_Q, sampleRate));
+				chain.add(chainMeter);
+				chain.add(new ChainPlan.Deferred("normalize")
+				{
+					protected BlockStage build()
+					{
+						return new Stages.Gain(StereoPair.normalizeFactor(chainMeter.getPeak()));
+					}
+				});
+				chain.add(phraseDetector);
+				chain.add(new ChainPlan.Deferred("phrase dynamics")
+				{
+					protected BlockStage build()
+					{
+						return new Stages.PhraseDynamics(phraseDetector.getPhrases(), StereoPair.PHRASE_DEBUG);
+					}
+				});
+				if (addAmbience) chain.add(new Stages.Ambience(sampleRate));
+				if (overallGainFactor > 1.0f)
+				{
+					chain.add(new Stages.Gain(overallGainFactor));
+					if (options.peakReduce)
+					{
+						chain.add(leftDetector);
+						chain.add(rightDetector);
+						chain.add(new ChainPlan.Deferred("peak reduce")
+						{
+							protected BlockStage build()
+							{
+								return new Stages.PeakReduce(leftDetector.getRegions(), LEFT);
+							}
+						});
+						chain.add(new ChainPlan.Deferred("peak reduce")
+						{
+							protected BlockStage build()
+							{
+								return new Stages.PeakReduce(rightDetector.getRegions(), RIGHT);
+							}
+						});
+					}
+					else
+					{
+						limiter[0] = StereoPair.limiter(options, sampleRate);
+						chain.add(limiter[0]);
+					}
+				}
+				chain.add(finalMeter);
+				chain.add(new ChainPlan.Deferred("normalize")
+				{
+					protected BlockStage build()
+					{
+						return new Stages.Gain(StereoPair.normalizeFactor(finalMeter.getPeak()));
+					}
+				});
+				chain.add(outputLoudness);
+			}
+		};
+
+		ChainPlan.Source source = new ChainPlan.Source()
+		{
+			public boolean rereads()
+			{
+				return true;
+			}
+
+			public int run(String name, List<BlockStage> stages, boolean writeBack, PcmWriter writer) throws IOException
+			{
+				return runPass(name, from, to, stages, writer);
+			}
+		};
+
+		log("Saving file: "+ outputFile);
+		PcmWriter writer = new PcmWriter(outputFile, fileType, to-from, 2, sampleRate);
+		try
+		{
+			new ChainPlan(source).run(chain, writer);
+			writer.close();
+		}
+		finally
+		{
+			writer.abandon();
+		}
+		log("Phrases="+phraseDetector.getPhrases().size());
+		if (overallGainFactor > 1.0f && options.peakReduce) log("Peaks reduced="+leftDetector.getRegions().size()+" / "+rightDetector.getRegions().size());
+		if (limiter[0] != null) StereoPair.logLimiter(limiter[0]);
+		outputLoudness.report("Output");
+	}
+
+
+	private List<BlockStage> stages(BlockStage... stages)
+	{
+		List<BlockStage> list = new ArrayList<BlockStage>();
+		for (BlockStage stage : stages)
+		{
+			list.add(stage);
+		}
+		return list;
+	}
+
+
+	// Push [start,end) through the stages, returns the position reached
+	private int runPass(String name, int start, int end, List<BlockStage> chain) throws IOException
+	{
+		return runPass(name, start, end, chain, null);
+	}
+
+
+	// As above, also writing each processed block to the output if there is one
+	private int runPass(String name, int start, int end, List<BlockStage> chain, final PcmWriter writer) throws IOException
+	{
+		StageEvent event = StageEvent.begin("streaming pass: "+name);
+		FrameReader reader;
+		try
+		{
+			reader = new FrameReader(fileName, blockSize);
+		}
+		catch (UnsupportedAudioFileException e)
+		{
+			// It opened when the engine was made
+			throw new IOException(e);
+		}
+		float[][] block = new float[2][blockSize];
+
+		StageChain stageChain = new StageChain(chain, "streaming: ");
+		StageChain.Output output = null;
+		if (writer != null)
+		{
+			output = new StageChain.Output()
+			{
+				public void write(float[][] block, int from, int to, int position) throws IOException
+				{
+					writer.write(block, from, to);
+				}
+			};
+		}
+
+		int position = start;
+		try
+		{
+			reader.skipFrames(start);
+			while (position < end)
+			{
+				int frames = reader.read(block, Math.min(blockSize, end-position));
+				if (frames <= 0) break;
+
+				stageChain.process(block, 0, frames, position, output);
+				position += frames;
+			}
+			stageChain.finish(block, output);
+		}
+		finally
+		{
+			reader.close();
+		}
+		event.finish(position-start);
+		return position;
+	}
+
+
+	private int clampStart(int x)
+	{
+		return (x > length) ? 0 : x;
+	}
+
+
+	private int clampEnd(int x)
+	{
+		return (x > length) ? length : x;
+	}
+
+
+	private static void log(String s)
+	{
+		BetterBot.log(s);
+	}
+}
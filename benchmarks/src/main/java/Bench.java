@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+
+// What the JMH benchmarks run. JMH won't generate code for a class in the default package, and a class
+// in a named package can't see the ones in the default package, so the benchmarks (betterbot.bench) get
+// at StereoPair through these static methods, looked up as method handles. Pairs go back and forth as
+// Object.
+public class Bench
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+	private static final int BLOCK_SIZE = 8192;
+	private static final long SEED = 20130101L;
+
+
+	// The log goes to stdout, which JMH would otherwise print for every invocation
+	public static void quiet()
+	{
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+
+
+	// Writes seconds of a generated signal to a temporary WAV file and returns its name:
+	//
+	//   - speech: noise shaped into syllables and phrases, with pauses at the noise floor, so phrase
+	//     detection, the noise gate and the limiter all have something to do
+	//   - noise:  steady white noise at -20db
+	//   - tone:   440hz sine at -6db
+	public static String generate(String signal, int seconds) throws IOException
+	{
+		File file = File.createTempFile("betterbot-bench-"+signal+"-"+seconds+"s-", ".wav");
+		file.deleteOnExit();
+
+		Random random = new Random(SEED);
+		int frames = StereoPair.secondsToSamples(seconds, FrameReader.MIN_SAMPLE_RATE);
+		float[][] block = new float[2][BLOCK_SIZE];
+
+		// Speech state: a phrase of syllables or a pause, counted down in frames
+		boolean talking = false;
+		int remaining = 0;
+		float lowL = 0.0f, lowR = 0.0f;
+
+		PcmWriter writer = new PcmWriter(file.getPath(), AudioFileFormat.Type.WAVE, frames);
+		for (int pos=0;pos<frames;pos+=BLOCK_SIZE)
+		{
+			int n = Math.min(BLOCK_SIZE, frames-pos);
+			for (int i=0;i<n;i++)
+			{
+				int p = pos+i;
+				float l, r;
+				if (signal.equals("tone"))
+				{
+					l = r = 0.5f * (float) Math.sin(2.0*Math.PI*440.0*p/44100.0);
+				}
+				else if (signal.equals("noise"))
+				{
+					l = 0.1f * (2.0f*random.nextFloat() - 1.0f);
+					r = 0.1f * (2.0f*random.nextFloat() - 1.0f);
+				}
+				else if (signal.equals("speech"))
+				{
+					if (remaining-- <= 0)
+					{
+						talking = !talking;
+						remaining = StereoPair.msToSamples(talking ? 2000 + random.nextInt(4000) : 300 + random.nextInt(1200), FrameReader.MIN_SAMPLE_RATE);
+					}
+
+					// Low passed noise for a voice, 4hz syllables, and a floor of -60db in the pauses
+					lowL += 0.2f * ((2.0f*random.nextFloat() - 1.0f) - lowL);
+					lowR += 0.2f * ((2.0f*random.nextFloat() - 1.0f) - lowR);
+					float syllable = (float) Math.abs(Math.sin(2.0*Math.PI*4.0*p/44100.0));
+					float level = talking ? 0.9f*syllable : 0.001f;
+					l = level * lowL;
+					r = level * (0.8f*lowR + 0.2f*lowL);
+				}
+				else
+				{
+					throw new IllegalArgumentException("Unknown signal: "+signal);
+				}
+				block[LEFT][i] = l;
+				block[RIGHT][i] = r;
+			}
+			writer.write(block, 0, n);
+		}
+		writer.close();
+		return file.getPath();
+	}
+
+
+	// Loads a file into a heap store and analyzes it, as the in-memory FULL chain does before processing
+	public static Object load(String fileName) throws Exception
+	{
+		StereoPair s = new StereoPair(fileName);
+		s.normalize();
+		s.analyzeSerial();
+		s.calculateTargetGain();
+		s.calculateBandMultipliers();
+		return s;
+	}
+
+
+	// Load alone, for the load benchmark and for working copies
+	public static Object loadOnly(String fileName) throws Exception
+	{
+		return new StereoPair(fileName);
+	}
+
+
+	// Puts the original's samples and analysis back into the working copy, before each invocation
+	public static void reset(Object working, Object original)
+	{
+		StereoPair to = (StereoPair) working;
+		StereoPair from = (StereoPair) original;
+		float[][] block = new float[2][BLOCK_SIZE];
+		for (int pos=0;pos<from.getLength();pos+=BLOCK_SIZE)
+		{
+			int n = Math.min(BLOCK_SIZE, from.getLength()-pos);
+			from.samples.read(block, 0, pos, n);
+			to.samples.write(block, 0, pos, n);
+		}
+		to.setAnalysis(from.getAnalysis());
+		to.fileType = from.fileType;
+		to.processStart = 0;
+		to.processEnd = to.getLength();
+	}
+
+
+	// One kernel over the whole pair, in place
+	public static void run(String kernel, Object pair) throws Exception
+	{
+		StereoPair s = (StereoPair) pair;
+		if (kernel.equals("filter"))
+		{
+			s.filter(StereoPair.RUMBLE_HZ, StereoPair.RUMBLE_Q, StereoPair.FilterType.HIPASS);
+		}
+		else if (kernel.equals("bandPass"))
+		{
+			s.bandPass(StereoPair.BANDS_HZ[0], 0.5f, 1.5f, s.processStart, s.processEnd);
+		}
+		else if (kernel.equals("removeDCOffset"))
+		{
+			s.removeDCOffset();
+		}
+		else if (kernel.equals("limiter"))
+		{
+			s.limiter(-1.0f);
+		}
+		else if (kernel.equals("lookaheadLimiter"))
+		{
+			// The boost the FULL chain would do, then the limiter after it
+			s.overallGainFactor = Math.max(s.overallGainFactor, 2.0f);
+			s.boostToTargetRMS();
+		}
+		else if (kernel.equals("normalize"))
+		{
+			s.normalize();
+		}
+		else if (kernel.equals("phraseDynamics"))
+		{
+			s.phraseDynamics();
+		}
+		else if (kernel.equals("save"))
+		{
+			File file = File.createTempFile("betterbot-bench-save-", ".wav");
+			s.save(file.getPath());
+			file.delete();
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown kernel: "+kernel);
+		}
+	}
+
+
+	// The whole job on a file, as BetterBot runs it: load, analyze, process and save
+	public static int full(String inputFile, boolean streaming) throws Exception
+	{
+		File output = File.createTempFile("betterbot-bench-full-", ".wav");
+		try
+		{
+			Options options = new Options();
+			options.streaming = streaming;
+			options.analysisCache = null;
+			return BetterBot.runJob(new Job(inputFile, output.getPath(), BetterBot.Mode.FULL, options));
+		}
+		finally
+		{
+			output.delete();
+		}
+	}
+
+
+	public static void close(Object pair)
+	{
+		if (pair != null) ((StereoPair) pair).close();
+	}
+}
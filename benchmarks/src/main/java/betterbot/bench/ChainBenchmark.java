@@ -0,0 +1,67 @@
+package betterbot.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole files: loading into a StereoPair, and the FULL job end to end (load, analyze, process, save)
+// in memory and streaming. The analysis cache is off, so every run does all the work.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ChainBenchmark
+{
+	@Param({"10", "120", "600"})
+	int seconds;
+
+	@Param({"speech"})		// Or noise, tone
+	String signal;
+
+	String file;
+
+	@Setup(Level.Trial)
+	public void generate() throws Throwable
+	{
+		Targets.QUIET.invokeExact();
+		file = (String) Targets.GENERATE.invokeExact(signal, seconds);
+	}
+
+	@Benchmark
+	public void load() throws Throwable
+	{
+		Object pair = (Object) Targets.LOAD_ONLY.invokeExact(file);
+		Targets.CLOSE.invokeExact(pair);
+	}
+
+	@Benchmark
+	public int full() throws Throwable
+	{
+		return check((int) Targets.FULL.invokeExact(file, false));
+	}
+
+	@Benchmark
+	public int fullStreaming() throws Throwable
+	{
+		return check((int) Targets.FULL.invokeExact(file, true));
+	}
+
+	private static int check(int result)
+	{
+		if (result != 0) throw new IllegalStateException("FULL job returned "+result);
+		return result;
+	}
+}
@@ -0,0 +1,69 @@
+package betterbot.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One StereoPair kernel over a whole generated episode, in place on the heap store. The samples and
+// analysis are put back before every invocation (outside the timing), so each run sees the same input.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class KernelBenchmark
+{
+	@Param({"filter", "bandPass", "removeDCOffset", "limiter", "lookaheadLimiter", "normalize", "phraseDynamics", "save"})
+	String kernel;
+
+	@Param({"10", "120", "600"})
+	int seconds;
+
+	@Param({"speech"})		// Or noise, tone
+	String signal;
+
+	String file;
+	Object original;
+	Object working;
+
+	@Setup(Level.Trial)
+	public void load() throws Throwable
+	{
+		Targets.QUIET.invokeExact();
+		file = (String) Targets.GENERATE.invokeExact(signal, seconds);
+		original = (Object) Targets.LOAD.invokeExact(file);
+		working = (Object) Targets.LOAD_ONLY.invokeExact(file);
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() throws Throwable
+	{
+		Targets.RESET.invokeExact(working, original);
+	}
+
+	@Benchmark
+	public void kernel() throws Throwable
+	{
+		Targets.RUN.invokeExact(kernel, working);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Throwable
+	{
+		Targets.CLOSE.invokeExact(working);
+		Targets.CLOSE.invokeExact(original);
+	}
+}
@@ -0,0 +1,45 @@
+package betterbot.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// Method handles for the static methods of Bench, which is in the default package with the rest of
+// BetterBot and can't be named from here. Held in static finals, so the JIT treats them as constants
+// and a call costs the same as a direct one.
+final class Targets
+{
+	static final MethodHandle QUIET;
+	static final MethodHandle GENERATE;
+	static final MethodHandle LOAD;
+	static final MethodHandle LOAD_ONLY;
+	static final MethodHandle RESET;
+	static final MethodHandle RUN;
+	static final MethodHandle FULL;
+	static final MethodHandle CLOSE;
+
+	static
+	{
+		try
+		{
+			Class<?> bench = Class.forName("Bench");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			QUIET = lookup.findStatic(bench, "quiet", MethodType.methodType(void.class));
+			GENERATE = lookup.findStatic(bench, "generate", MethodType.methodType(String.class, String.class, int.class));
+			LOAD = lookup.findStatic(bench, "load", MethodType.methodType(Object.class, String.class));
+			LOAD_ONLY = lookup.findStatic(bench, "loadOnly", MethodType.methodType(Object.class, String.class));
+			RESET = lookup.findStatic(bench, "reset", MethodType.methodType(void.class, Object.class, Object.class));
+			RUN = lookup.findStatic(bench, "run", MethodType.methodType(void.class, String.class, Object.class));
+			FULL = lookup.findStatic(bench, "full", MethodType.methodType(int.class, String.class, boolean.class));
+			CLOSE = lookup.findStatic(bench, "close", MethodType.methodType(void.class, Object.class));
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Targets()
+	{
+	}
+}
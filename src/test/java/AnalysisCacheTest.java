@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.jupiter.api.Test;
+
+// Entries read back to the same bits, other keys miss, the key follows the audio and the settings, a job
+// run from the cache gives the same bytes as one that analyzed, and a directory others can write to
+// isn't used
+public class AnalysisCacheTest
+{
+	@Test
+	void hitsAndMisses() throws Exception
+	{
+		AnalysisCache cache = new AnalysisCache(Files.createTempDirectory("betterbot-test-cache-").toString());
+		AnalysisCache.Entry e = entry();
+		cache.save(key(1L), e);
+
+		AnalysisCache.Entry loaded = cache.load(key(1L));
+		assertNotNull(loaded);
+		assertEquals(Float.floatToIntBits(e.RMSL), Float.floatToIntBits(loaded.RMSL));
+		assertEquals(Float.floatToIntBits(e.RMSR), Float.floatToIntBits(loaded.RMSR));
+		assertArrayEquals(e.bandRMS, loaded.bandRMS, 0.0f);
+		assertArrayEquals(e.bandMult, loaded.bandMult, 0.0f);
+		assertEquals(Float.floatToIntBits(e.overallGainFactor), Float.floatToIntBits(loaded.overallGainFactor));
+		assertEquals(e.loudness, loaded.loudness, 0.0);
+
+		assertNull(cache.load(key(2L)));
+	}
+
+
+	@Test
+	void keyFollowsAudioAndSettings()
+	{
+		Options options = new Options();
+		String key = AnalysisCache.key(1L, 0.5f, "parallel", 0, 1000, 44100.0f, options);
+		assertEquals(key, AnalysisCache.key(1L, 0.5f, "parallel", 0, 1000, 44100.0f, options));
+		assertNotEquals(key, AnalysisCache.key(2L, 0.5f, "parallel", 0, 1000, 44100.0f, options));
+		assertNotEquals(key, AnalysisCache.key(1L, 0.6f, "parallel", 0, 1000, 44100.0f, options));
+		assertNotEquals(key, AnalysisCache.key(1L, 0.5f, "serial", 0, 1000, 44100.0f, options));
+		assertNotEquals(key, AnalysisCache.key(1L, 0.5f, "parallel", 0, 1001, 44100.0f, options));
+		options.loudnessTarget = -16.0f;
+		assertNotEquals(key, AnalysisCache.key(1L, 0.5f, "parallel", 0, 1000, 44100.0f, options));
+	}
+
+
+	// The first run fills the cache, the second reads it, and both give the output of an uncached run
+	@Test
+	void cachedJobMatches() throws Exception
+	{
+		String input = TestSignals.speech(6L, 75, 0.1f, 7);
+		String directory = Files.createTempDirectory("betterbot-test-cache-").toString();
+		byte[] expected = Files.readAllBytes(Paths.get(TestSignals.full(input, "--no-analysis-cache")));
+		byte[] filling = Files.readAllBytes(Paths.get(TestSignals.full(input, "--analysis-cache="+directory)));
+		assertEquals(1, new File(directory).list().length);
+		byte[] cached = Files.readAllBytes(Paths.get(TestSignals.full(input, "--analysis-cache="+directory)));
+		assertArrayEquals(expected, filling);
+		assertArrayEquals(expected, cached);
+	}
+
+
+	@Test
+	void newDirectoryIsPrivate() throws Exception
+	{
+		Path parent = Files.createTempDirectory("betterbot-test-cache-");
+		assumeTrue(Files.getFileAttributeView(parent, PosixFileAttributeView.class) != null, "no POSIX permissions");
+		Path directory = parent.resolve("a").resolve("b");
+		AnalysisCache cache = new AnalysisCache(directory.toString());
+		cache.save(key(1L), entry());
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+		assertNotNull(cache.load(key(1L)));
+	}
+
+
+	@Test
+	void ignoresWritableDirectory() throws Exception
+	{
+		Path directory = Files.createTempDirectory("betterbot-test-cache-");
+		assumeTrue(Files.getFileAttributeView(directory, PosixFileAttributeView.class) != null, "no POSIX permissions");
+		AnalysisCache cache = new AnalysisCache(directory.toString());
+		cache.save(key(1L), entry());
+		assertTrue(cache.isPrivate());
+
+		Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxrwxrwx"));
+		assertNull(cache.load(key(1L)));
+		Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxrwx---"));
+		assertNull(cache.load(key(1L)));
+	}
+
+
+	private static String key(long contentHash)
+	{
+		return AnalysisCache.key(contentHash, 0.5f, "parallel", 0, 1000, 44100.0f, new Options());
+	}
+
+
+	private static AnalysisCache.Entry entry()
+	{
+		AnalysisCache.Entry e = new AnalysisCache.Entry();
+		e.RMSL = 0.1f/3.0f;
+		e.RMSR = (float) Math.PI/100.0f;
+		for (int i=0;i<e.bandRMS.length;i++)
+		{
+			e.bandRMS[i] = 1.0f/(7.0f+i);
+			e.bandMult[i] = 1.0f + i/11.0f;
+		}
+		e.overallGainFactor = 2.3478425f;
+		e.loudness = -25.71234;
+		return e;
+	}
+}
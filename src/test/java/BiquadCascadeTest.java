@@ -0,0 +1,160 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+// The legacy cascade gives the bits of the original filter section run once per section, the designed
+// ones have the response they're designed for (measured on sines), and none of them care how the signal
+// is cut into blocks
+public class BiquadCascadeTest
+{
+	private static final float RATE = 44100.0f;
+	private static final float CUTOFF = 75.0f;
+
+	@Test
+	void legacyMatchesSectionPasses() throws Exception
+	{
+		for (StereoPair.FilterType type : StereoPair.FilterType.values())
+		{
+			float[][] x = noise(1L, 50000);
+			float[][] expected = TestSignals.copy(x);
+			for (int k=0;k<3;k++)
+			{
+				TestSignals.run(BiquadCascade.legacy(type, CUTOFF, 0.1f, 1, RATE), expected, expected[0].length);
+			}
+			TestSignals.run(BiquadCascade.legacy(type, CUTOFF, 0.1f, 3, RATE), x, x[0].length);
+			assertBits(expected, x, type.toString());
+		}
+	}
+
+
+	@Test
+	void blockSizeDoesNotMatter() throws Exception
+	{
+		String[] specs = { "legacy", "butterworth:4", "butterworth:3", "linkwitz-riley:4" };
+		Random random = new Random(2L);
+		for (String spec : specs)
+		{
+			float[][] whole = noise(3L, 30000);
+			float[][] blocks = TestSignals.copy(whole);
+			TestSignals.run(BiquadCascade.parse(spec, StereoPair.FilterType.HIPASS, CUTOFF, 0.1f, RATE), whole, whole[0].length);
+			TestSignals.run(BiquadCascade.parse(spec, StereoPair.FilterType.HIPASS, CUTOFF, 0.1f, RATE), blocks, 1 + random.nextInt(1000));
+			assertBits(whole, blocks, spec);
+		}
+	}
+
+
+	// -3db at the cutoff, -24db an octave below it for the fourth order, and flat well above
+	@Test
+	void butterworthResponse() throws Exception
+	{
+		assertEquals(-3.01, gainDb(BiquadCascade.butterworth(StereoPair.FilterType.HIPASS, CUTOFF, 4, RATE), CUTOFF), 0.1);
+		assertEquals(-24.1, gainDb(BiquadCascade.butterworth(StereoPair.FilterType.HIPASS, CUTOFF, 4, RATE), CUTOFF/2), 0.3);
+		assertEquals(0.0, gainDb(BiquadCascade.butterworth(StereoPair.FilterType.HIPASS, CUTOFF, 4, RATE), 1000.0f), 0.05);
+		assertEquals(-3.01, gainDb(BiquadCascade.butterworth(StereoPair.FilterType.LOWPASS, 1000.0f, 3, RATE), 1000.0f), 0.1);
+		assertEquals(0.0, gainDb(BiquadCascade.butterworth(StereoPair.FilterType.LOWPASS, 1000.0f, 3, RATE), 100.0f), 0.05);
+	}
+
+
+	// -6db at the cutoff, and the low and high outputs add up to the input level at any frequency
+	@Test
+	void linkwitzRileyResponse() throws Exception
+	{
+		assertEquals(-6.02, gainDb(BiquadCascade.linkwitzRiley(StereoPair.FilterType.HIPASS, CUTOFF, 4, RATE), CUTOFF), 0.1);
+		assertEquals(-6.02, gainDb(BiquadCascade.linkwitzRiley(StereoPair.FilterType.LOWPASS, CUTOFF, 4, RATE), CUTOFF), 0.1);
+
+		float[] frequencies = { 40.0f, CUTOFF, 150.0f, 600.0f };
+		for (float f : frequencies)
+		{
+			float[][] low = sine(f, 2*(int) RATE);
+			float[][] high = TestSignals.copy(low);
+			TestSignals.run(BiquadCascade.linkwitzRiley(StereoPair.FilterType.LOWPASS, CUTOFF, 4, RATE), low, 4096);
+			TestSignals.run(BiquadCascade.linkwitzRiley(StereoPair.FilterType.HIPASS, CUTOFF, 4, RATE), high, 4096);
+			for (int i=0;i<low[0].length;i++)
+			{
+				low[0][i] += high[0][i];
+				low[1][i] += high[1][i];
+			}
+			assertEquals(0.0, db(settledPeak(low)), 0.05, f+"hz");
+		}
+	}
+
+
+	@Test
+	void rejectsOddLinkwitzRiley()
+	{
+		assertThrows(IllegalArgumentException.class, new Executable()
+		{
+			public void execute()
+			{
+				BiquadCascade.parse("linkwitz-riley:3", StereoPair.FilterType.HIPASS, CUTOFF, 0.1f, RATE);
+			}
+		});
+	}
+
+
+	// Level of a full scale sine through the filter, once it has settled
+	private static double gainDb(BiquadCascade cascade, float freqHz) throws Exception
+	{
+		float[][] x = sine(freqHz, 2*(int) RATE);
+		TestSignals.run(cascade, x, 4096);
+		return db(settledPeak(x));
+	}
+
+
+	private static float[][] sine(float freqHz, int length)
+	{
+		float[][] x = new float[2][length];
+		for (int i=0;i<length;i++)
+		{
+			x[0][i] = x[1][i] = (float) Math.sin(2.0*Math.PI*freqHz*i/RATE);
+		}
+		return x;
+	}
+
+
+	// Peak over the second half
+	private static float settledPeak(float[][] x)
+	{
+		float peak = 0.0f;
+		for (int i=x[0].length/2;i<x[0].length;i++)
+		{
+			peak = Math.max(peak, Math.abs(x[0][i]));
+		}
+		return peak;
+	}
+
+
+	private static double db(float level)
+	{
+		return 20.0*Math.log10(level);
+	}
+
+
+	private static float[][] noise(long seed, int length)
+	{
+		Random random = new Random(seed);
+		float[][] x = new float[2][length];
+		for (int i=0;i<length;i++)
+		{
+			x[0][i] = (float) (random.nextGaussian()*0.3);
+			x[1][i] = (float) (random.nextGaussian()*0.3);
+		}
+		return x;
+	}
+
+
+	private static void assertBits(float[][] expected, float[][] actual, String what)
+	{
+		for (int c=0;c<2;c++)
+		{
+			for (int i=0;i<expected[c].length;i++)
+			{
+				assertEquals(Float.floatToIntBits(expected[c][i]), Float.floatToIntBits(actual[c][i]), what+", channel "+c+", frame "+i);
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// ChainPlan ends its passes where the stages need it to, each stage in a pass gets its own StageEvent, and
+// the fused FULL chain gives the same bytes as the --unfused one, with the limiter and with
+// --limiter=peak-reduce
+public class ChainPlanTest
+{
+	static String quiet;	// Needs a boost, so the limiter and peak reduce run
+	static String loud;		// Peaks near full scale, with clicks
+
+	@BeforeAll
+	static void generate() throws Exception
+	{
+		quiet = TestSignals.speech(1L, 75, 0.1f, 7);
+		loud = TestSignals.speech(2L, 75, 1.0f, 5);
+	}
+
+
+	@Test
+	void splitsAfterMeasurements()
+	{
+		final Stages.PeakMeter meter = new Stages.PeakMeter();
+		BlockStage gain = new ChainPlan.Deferred("normalize")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.Gain(StereoPair.normalizeFactor(meter.getPeak()));
+			}
+		};
+		BlockStage dc = new Stages.DCOffset(44100.0f);
+		BlockStage ambience = new Stages.Ambience(44100.0f);
+		List<List<BlockStage>> passes = ChainPlan.split(list(dc, meter, ambience, gain, new Stages.PeakMeter()));
+		assertEquals(2, passes.size());
+		assertEquals(list(dc, meter, ambience), passes.get(0));
+		assertEquals(gain, passes.get(1).get(0));
+
+		// Nothing measured yet, so nothing to wait for
+		assertEquals(1, ChainPlan.split(list(gain, dc, meter)).size());
+	}
+
+
+	@Test
+	void splitsAroundStepsAndDelays()
+	{
+		BlockStage step = new ChainPlan.Step("step")
+		{
+			public void run()
+			{
+			}
+		};
+		BlockStage dc = new Stages.DCOffset(44100.0f);
+		Limiter first = new Limiter(0.9f, 100, 10, 44100.0f);
+		Limiter second = new Limiter(0.9f, 100, 10, 44100.0f);
+		List<List<BlockStage>> passes = ChainPlan.split(list(dc, step, dc, first, dc, second));
+		assertEquals(4, passes.size());
+		assertEquals(list(step), passes.get(1));
+		assertEquals(list(dc, first, dc), passes.get(2));
+		assertSame(second, passes.get(3).get(0));
+	}
+
+
+	// One event per stage and one per pass, the stages busy for part of the pass
+	@Test
+	void recordsEachStage() throws Exception
+	{
+		int length = 50000;
+		Random random = new Random(3L);
+		float[][] frames = new float[2][length];
+		for (int i=0;i<length;i++)
+		{
+			frames[0][i] = (float) (random.nextGaussian()*0.1);
+			frames[1][i] = (float) (random.nextGaussian()*0.1);
+		}
+		SampleStore store = new HeapSampleStore();
+		store.append(frames, length);
+
+		final Stages.PeakMeter meter = new Stages.PeakMeter();
+		BlockStage gain = new ChainPlan.Deferred("normalize")
+		{
+			protected BlockStage build()
+			{
+				return new Stages.Gain(StereoPair.normalizeFactor(meter.getPeak()));
+			}
+		};
+
+		File file = File.createTempFile("betterbot-test-", ".jfr");
+		file.deleteOnExit();
+		Recording recording = new Recording();
+		recording.enable("betterbot.Stage");
+		recording.start();
+		new ChainPlan(store, 0, length).run(list(new Stages.DCOffset(44100.0f), meter, gain), null);
+		recording.stop();
+		recording.dump(file.toPath());
+		recording.close();
+
+		List<String> stages = new ArrayList<String>();
+		long passBusy = 0;
+		long stageBusy = 0;
+		for (RecordedEvent e : RecordingFile.readAllEvents(file.toPath()))
+		{
+			String stage = e.getString("stage");
+			assertEquals(length, e.getLong("frames"), stage);
+			if (stage.startsWith("pass: "))
+			{
+				passBusy += e.getLong("busy");
+			}
+			else
+			{
+				assertTrue(e.getLong("busy") <= e.getDuration().toNanos(), stage);
+				stageBusy += e.getLong("busy");
+			}
+			stages.add(stage);
+		}
+		assertEquals(list("DCOffset", "PeakMeter", "pass: DCOffset, PeakMeter", "Gain", "pass: normalize"), stages);
+		assertTrue(stageBusy <= passBusy);
+	}
+
+
+	@Test
+	void unfusedMatchesFused() throws Exception
+	{
+		assertUnfusedSame(quiet);
+		assertUnfusedSame(loud);
+	}
+
+
+	@Test
+	void unfusedMatchesFusedWithPeakReduce() throws Exception
+	{
+		assertUnfusedSame(quiet, "--limiter=peak-reduce");
+		assertUnfusedSame(loud, "--limiter=peak-reduce");
+	}
+
+
+	private static void assertUnfusedSame(String input, String... options) throws Exception
+	{
+		List<String> fused = new ArrayList<String>();
+		fused.add("--no-analysis-cache");
+		for (String option : options)
+		{
+			fused.add(option);
+		}
+		List<String> unfused = new ArrayList<String>(fused);
+		unfused.add("--unfused");
+
+		byte[] expected = Files.readAllBytes(Paths.get(TestSignals.full(input, fused.toArray(new String[0]))));
+		byte[] actual = Files.readAllBytes(Paths.get(TestSignals.full(input, unfused.toArray(new String[0]))));
+		assertArrayEquals(expected, actual, input);
+	}
+
+
+	private static List<BlockStage> list(BlockStage... stages)
+	{
+		List<BlockStage> list = new ArrayList<BlockStage>();
+		for (BlockStage stage : stages)
+		{
+			list.add(stage);
+		}
+		return list;
+	}
+
+
+	private static List<String> list(String... names)
+	{
+		List<String> list = new ArrayList<String>();
+		for (String name : names)
+		{
+			list.add(name);
+		}
+		return list;
+	}
+}
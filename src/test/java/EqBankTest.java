@@ -0,0 +1,139 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// EqBank against the bands worked out one by one from the same input and added in band order, and
+// against bandGain with a single band, in blocks of any size and with the channels split or not
+public class EqBankTest
+{
+	private static final float RATE = 44100.0f;
+	private static final int TRIALS = 40;
+
+	@Test
+	void matchesSummedBands() throws Exception
+	{
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			float[] multipliers = new float[StereoPair.BANDS_HZ.length];
+			for (int i=0;i<multipliers.length;i++)
+			{
+				// Some bands within tolerance, some past the gain limits
+				multipliers[i] = (random.nextInt(4) == 0) ? 1.0f : 0.2f + 2.0f*random.nextFloat();
+			}
+			EqBank bank = EqBank.create(StereoPair.BANDS_HZ, StereoPair.BANDS_Q, multipliers, seed % 2 == 0, RATE);
+			if (bank == null) continue;
+
+			float[][] x = noise(seed, 5000 + random.nextInt(30000));
+			float[][] expected = summedBands(x, multipliers);
+			TestSignals.run(bank, x, 1 + random.nextInt(3000));
+			assertSame(expected, x, "seed "+seed);
+		}
+	}
+
+
+	@Test
+	void singleBandMatchesBandGain() throws Exception
+	{
+		for (int band=0;band<StereoPair.BANDS_HZ.length;band++)
+		{
+			float[] multipliers = new float[StereoPair.BANDS_HZ.length];
+			Arrays.fill(multipliers, 1.0f);
+			multipliers[band] = 1.6f;
+
+			float[][] x = noise(band, 20000);
+			float[][] expected = TestSignals.copy(x);
+			TestSignals.run(Stages.bandGain(StereoPair.BANDS_HZ[band], StereoPair.BANDS_Q[band], multipliers[band], RATE), expected, 4096);
+			TestSignals.run(EqBank.create(StereoPair.BANDS_HZ, StereoPair.BANDS_Q, multipliers, false, RATE), x, 4096);
+			assertSame(expected, x, "band "+band);
+		}
+	}
+
+
+	// A MultiTrack track goes through as the left channel would
+	@Test
+	void oneChannelIsLeft()
+	{
+		float[] multipliers = { 0.5f, 1.5f, 1.0f, 0.8f, 1.3f, 2.0f };
+		float[][] stereo = noise(7L, 20000);
+		float[][] mono = { stereo[0].clone() };
+		EqBank.create(StereoPair.BANDS_HZ, StereoPair.BANDS_Q, multipliers, false, RATE).process(stereo, 0, 20000, 0);
+		EqBank.create(StereoPair.BANDS_HZ, StereoPair.BANDS_Q, multipliers, false, RATE).process(mono, 0, 20000, 0);
+		for (int i=0;i<20000;i++)
+		{
+			assertEquals(stereo[0][i], mono[0][i], 0.0f, "frame "+i);
+		}
+	}
+
+
+	@Test
+	void nothingToDo()
+	{
+		float[] multipliers = { 1.0f, 1.0f, 1.0f + StereoPair.EQ_TOLERANCE/2, 1.0f, 1.0f, 1.0f };
+		assertNull(EqBank.create(StereoPair.BANDS_HZ, StereoPair.BANDS_Q, multipliers, false, RATE));
+	}
+
+
+	// Each active band filtered from the input with the StereoPair.bandPass filter, the wet signals added
+	// in band order
+	private static float[][] summedBands(float[][] x, float[] multipliers)
+	{
+		float[][] y = TestSignals.copy(x);
+		for (int c=0;c<2;c++)
+		{
+			float[] d1 = new float[multipliers.length];
+			float[] d2 = new float[multipliers.length];
+			Stages.BandPass[] bands = new Stages.BandPass[multipliers.length];
+			for (int b=0;b<multipliers.length;b++)
+			{
+				bands[b] = (Stages.BandPass) Stages.bandGain(StereoPair.BANDS_HZ[b], StereoPair.BANDS_Q[b], multipliers[b], RATE);
+			}
+
+			for (int i=0;i<x[c].length;i++)
+			{
+				float v = x[c][i];
+				float out = v;
+				for (int b=0;b<bands.length;b++)
+				{
+					if (bands[b] == null) continue;
+					float d0 = bands[b].fk*v - (bands[b].fa1*d1[b] + bands[b].fa0*d2[b]);
+					out = out + (d0 - d2[b])*bands[b].wetGainFactor;
+					d2[b] = d1[b];
+					d1[b] = d0;
+				}
+				y[c][i] = out;
+			}
+		}
+		return y;
+	}
+
+
+	private static float[][] noise(long seed, int length)
+	{
+		Random random = new Random(seed);
+		float[][] x = new float[2][length];
+		for (int i=0;i<length;i++)
+		{
+			x[0][i] = (float) (random.nextGaussian()*0.3);
+			x[1][i] = (float) (random.nextGaussian()*0.3);
+		}
+		return x;
+	}
+
+
+	// Same values (a negative zero may come out positive)
+	private static void assertSame(float[][] expected, float[][] actual, String what)
+	{
+		for (int c=0;c<2;c++)
+		{
+			for (int i=0;i<expected[c].length;i++)
+			{
+				assertEquals(expected[c][i], actual[c][i], 0.0f, what+", channel "+c+", frame "+i);
+			}
+		}
+	}
+}
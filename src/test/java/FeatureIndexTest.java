@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// The index answers the searches exactly as the linear scans StereoPair falls back to without one: next
+// sample above a threshold, and zero crossings before and after, from every kind of position, on signals
+// with runs of zeros and long quiet stretches
+public class FeatureIndexTest
+{
+	private static final int TRIALS = 30;
+
+	@Test
+	void matchesLinearScans() throws Exception
+	{
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			int length = 1000 + random.nextInt(40000);
+			float[][] frames = new float[2][length];
+			for (int i=0;i<length;i++)
+			{
+				for (int c=0;c<2;c++)
+				{
+					double x;
+					if (seed % 3 == 0) x = random.nextGaussian()*0.3;
+					else if (seed % 3 == 1) x = (random.nextInt(3) == 0) ? 0.0 : Math.sin(i*0.01)*random.nextDouble();
+					else x = ((i/5000) % 2 == 0) ? random.nextGaussian()*0.001 : random.nextGaussian()*0.6;
+					frames[c][i] = (float) x;
+				}
+			}
+
+			StereoPair s = new StereoPair(TestSignals.write(frames));
+			if (seed % 2 == 1)
+			{
+				s.processStart = random.nextInt(length/4);
+				s.processEnd = length - random.nextInt(length/4);
+			}
+
+			for (int chan=0;chan<2;chan++)
+			{
+				FeatureIndex index = new FeatureIndex(s.samples, chan, s.processStart, s.processEnd, true);
+				for (int k=0;k<300;k++)
+				{
+					int from = s.processStart + random.nextInt(s.processEnd-s.processStart);
+					if (k == 0) from = s.processStart;
+					if (k == 1) from = s.processEnd-1;
+					float threshold = (k % 3 == 0) ? 0.0f : random.nextFloat()*0.8f;
+					String what = "seed "+seed+", channel "+chan+", from "+from;
+
+					s.index[chan] = null;
+					int before = s.findZeroCrossBefore(from, chan);
+					int after = s.findZeroCrossAfter(from, chan);
+
+					s.index[chan] = index;
+					assertEquals(nextAbove(s, threshold, from, chan), index.nextAbove(threshold, from), what+", threshold "+threshold);
+					assertEquals(before, s.findZeroCrossBefore(from, chan), what+", crossing before");
+					assertEquals(after, s.findZeroCrossAfter(from, chan), what+", crossing after");
+				}
+			}
+		}
+	}
+
+
+	// As StereoPair.findSampleAboveThresholdAfter without an index
+	private static int nextAbove(StereoPair s, float threshold, int from, int chan)
+	{
+		for (int i=from;i<s.processEnd;i++)
+		{
+			if (Math.abs(s.samples.get(chan, i)) > threshold) return i;
+		}
+		return s.processEnd;
+	}
+}
@@ -0,0 +1,154 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.Test;
+
+// Files are processed at their own rate, or 44.1khz if that's lower: 16-bit files at 44.1khz and up are
+// mapped as they are, lower rates are converted up, a job's output keeps the processing rate, and the DC
+// blocker has the same time constant at any rate
+public class FrameReaderTest
+{
+	@Test
+	void processingRate()
+	{
+		assertEquals(44100.0f, FrameReader.processingRate(22050.0f), 0.0f);
+		assertEquals(44100.0f, FrameReader.processingRate(32000.0f), 0.0f);
+		assertEquals(44100.0f, FrameReader.processingRate(44100.0f), 0.0f);
+		assertEquals(48000.0f, FrameReader.processingRate(48000.0f), 0.0f);
+		assertEquals(96000.0f, FrameReader.processingRate(96000.0f), 0.0f);
+	}
+
+
+	@Test
+	void mapsAtOwnRate() throws Exception
+	{
+		int[] channelCounts = { 1, 2 };
+		for (int channels : channelCounts)
+		{
+			int length = 30000;
+			float[][] frames = PcmWriterTest.ramp(channels, length);
+			String file = write(frames, 48000.0f);
+
+			FrameReader reader = new FrameReader(file, 4096);
+			assertTrue(reader.isMapped());
+			assertEquals(48000.0f, reader.getFormat().getSampleRate(), 0.0f);
+			assertEquals(length, reader.getFrameLength());
+			float[][] read = readAll(reader, length);
+			for (int i=0;i<length;i++)
+			{
+				for (int c=0;c<2;c++)
+				{
+					// Mono comes out on both channels
+					float expected = PcmWriter.quantize(frames[Math.min(c, channels-1)][i])/32768.0f;
+					assertEquals(expected, read[c][i], 0.0f, channels+" channels, channel "+c+", frame "+i);
+				}
+			}
+		}
+	}
+
+
+	// Two seconds of a 1khz sine at 22.05khz come out at 44.1khz, twice the frames, still 1khz
+	@Test
+	void convertsLowerRateUp() throws Exception
+	{
+		int length = 2*22050;
+		float[][] frames = new float[2][length];
+		for (int i=0;i<length;i++)
+		{
+			frames[0][i] = frames[1][i] = (float) (0.5*Math.sin(2.0*Math.PI*1000.0*i/22050.0));
+		}
+		String file = write(frames, 22050.0f);
+
+		FrameReader reader = new FrameReader(file, 4096);
+		assertFalse(reader.isMapped());
+		assertEquals(44100.0f, reader.getFormat().getSampleRate(), 0.0f);
+		float[][] read = readAll(reader, 2*length + 100);
+		assertEquals(2*length, read[0].length, 8.0);
+
+		// Rising zero crossings over the middle second, away from the ends
+		int crossings = 0;
+		for (int i=22050;i<66150;i++)
+		{
+			if (read[0][i-1] < 0.0f && read[0][i] >= 0.0f) crossings++;
+		}
+		assertEquals(1000, crossings, 2.0);
+	}
+
+
+	@Test
+	void jobKeepsRate() throws Exception
+	{
+		float[][] speech = load(TestSignals.speech(5L, 20, 0.1f, 7));
+		float[] rates = { 48000.0f, 22050.0f };
+		for (float rate : rates)
+		{
+			String input = write(speech, rate);
+			AudioFileFormat header = AudioSystem.getAudioFileFormat(new File(TestSignals.full(input, "--no-analysis-cache")));
+			assertEquals(FrameReader.processingRate(rate), header.getFormat().getSampleRate(), 0.0f);
+			long frames = (long) (speech[0].length*FrameReader.processingRate(rate)/rate);
+			assertEquals(frames, header.getFrameLength(), 8.0, rate+"hz");
+		}
+	}
+
+
+	// The DC blocker's decay over a second is the same at any rate
+	@Test
+	void dcTimeConstant()
+	{
+		assertEquals(0.999f, StereoPair.dcPole(44100.0f), 0.0f);
+		double second = Math.pow(0.999, 44100.0);
+		float[] rates = { 48000.0f, 88200.0f, 96000.0f };
+		for (float rate : rates)
+		{
+			assertEquals(second, Math.pow(StereoPair.dcPole(rate), rate), second*0.01, rate+"hz");
+		}
+	}
+
+
+	private static String write(float[][] frames, float rate) throws Exception
+	{
+		File file = File.createTempFile("betterbot-test-rate-", ".wav");
+		file.deleteOnExit();
+		PcmWriter writer = new PcmWriter(file.getPath(), AudioFileFormat.Type.WAVE, frames[0].length, frames.length, rate);
+		writer.write(frames, 0, frames[0].length);
+		writer.close();
+		return file.getPath();
+	}
+
+
+	private static float[][] load(String file) throws Exception
+	{
+		PcmFile pcm = new PcmFile(file);
+		float[][] frames = new float[2][(int) pcm.getFrameLength()];
+		pcm.read(frames, 0, 0, frames[0].length);
+		pcm.close();
+		return frames;
+	}
+
+
+	// Up to capacity frames, the arrays as long as what was read
+	private static float[][] readAll(FrameReader reader, int capacity) throws Exception
+	{
+		float[][] all = new float[2][capacity];
+		float[][] block = new float[2][4096];
+		int position = 0;
+		int n;
+		while ((n = reader.read(block, Math.min(4096, capacity-position))) > 0)
+		{
+			System.arraycopy(block[0], 0, all[0], position, n);
+			System.arraycopy(block[1], 0, all[1], position, n);
+			position += n;
+		}
+		reader.close();
+		all[0] = Arrays.copyOf(all[0], position);
+		all[1] = Arrays.copyOf(all[1], position);
+		return all;
+	}
+}
@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// The server only takes requests with its token and without an Origin header, keeps jobs inside its
+// roots and the analysis cache where it put it, and runs a job that passes all that
+public class JobServerTest
+{
+	static Path root;
+	static JobServer server;
+	static HttpClient client = HttpClient.newHttpClient();
+
+	@BeforeAll
+	static void start() throws Exception
+	{
+		root = Files.createTempDirectory("betterbot-test-root-");
+		List<File> roots = new ArrayList<File>();
+		roots.add(root.toFile());
+		server = new JobServer(0, new String[] { "--no-analysis-cache" }, 1, roots);
+	}
+
+
+	@AfterAll
+	static void stop() throws Exception
+	{
+		send(request("/shutdown").header(JobServer.TOKEN_HEADER, server.token).POST(HttpRequest.BodyPublishers.noBody()));
+		server.stopped.await();
+	}
+
+
+	@Test
+	void needsToken() throws Exception
+	{
+		assertEquals(401, send(request("/jobs").GET()).statusCode());
+		assertEquals(401, send(request("/jobs").header(JobServer.TOKEN_HEADER, "0"+server.token.substring(1)).GET()).statusCode());
+		assertEquals(401, send(request("/shutdown").POST(HttpRequest.BodyPublishers.noBody())).statusCode());
+		assertEquals(200, send(request("/jobs").header(JobServer.TOKEN_HEADER, server.token).GET()).statusCode());
+		assertEquals(200, send(request("/jobs?token="+server.token).GET()).statusCode());
+	}
+
+
+	@Test
+	void refusesWebPages() throws Exception
+	{
+		HttpRequest.Builder r = request("/jobs").header(JobServer.TOKEN_HEADER, server.token).header("Origin", "http://example.com");
+		assertEquals(403, send(r.GET()).statusCode());
+	}
+
+
+	@Test
+	void staysInsideRoots() throws Exception
+	{
+		String outside = TestSignals.output();
+		String inside = root.resolve("out.wav").toString();
+		assertEquals(403, send(job(outside, inside, null)).statusCode());
+		assertEquals(403, send(job(inside, outside, null)).statusCode());
+		assertEquals(403, send(job(root.resolve("..").resolve(new File(outside).getName()).toString(), inside, null)).statusCode());
+		assertEquals(403, send(job(root.resolve("in.wav").toString(), inside, "--analysis-cache="+root)).statusCode());
+	}
+
+
+	@Test
+	void runsJob() throws Exception
+	{
+		Path input = root.resolve("in.wav");
+		Files.copy(Paths.get(TestSignals.speech(4L, 20, 0.1f, 7)), input);
+		HttpResponse<String> response = send(job(input.toString(), root.resolve("out.wav").toString(), "--no-analysis-cache"));
+		assertEquals(200, response.statusCode());
+		String[] lines = response.body().trim().split("\n");
+		assertTrue(lines[lines.length-1].matches("\\d+ done 0 .*"), response.body());
+		assertTrue(Files.size(root.resolve("out.wav")) > 0);
+	}
+
+
+	private static HttpRequest.Builder job(String input, String output, String options)
+	{
+		String query = "input="+encode(input)+"&output="+encode(output)+"&mode=full";
+		if (options != null) query += "&options="+encode(options);
+		return request("/jobs?"+query).header(JobServer.TOKEN_HEADER, server.token).POST(HttpRequest.BodyPublishers.noBody());
+	}
+
+
+	private static HttpRequest.Builder request(String path)
+	{
+		return HttpRequest.newBuilder(URI.create("http://127.0.0.1:"+server.server.getAddress().getPort()+path));
+	}
+
+
+	private static HttpResponse<String> send(HttpRequest.Builder request) throws Exception
+	{
+		return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+
+	private static String encode(String s)
+	{
+		return URLEncoder.encode(s, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,142 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// VectorKernels against ScalarKernels: gain, clip and peak give the same bits, sumSquares and absSums
+// stay within the tolerance VectorKernels states. Only runs when the vector kernels are compiled in and
+// the module is added (mvn -Pvector test); otherwise the tests are skipped.
+public class KernelsTest
+{
+	private static final int TRIALS = 200;
+	private static final int MAX_LENGTH = 65536;
+	private static final double SUM_TOLERANCE = 1e-4;		// Relative, see VectorKernels
+
+	static Kernels scalar = new ScalarKernels();
+	static Kernels vector;
+
+	@BeforeAll
+	static void load()
+	{
+		try
+		{
+			vector = (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e)
+		{
+			vector = null;
+		}
+	}
+
+
+	@Test
+	void selectsVector()
+	{
+		assumeTrue(vector != null, "vector kernels not available");
+		assertEquals(vector.getName(), Kernels.INSTANCE.getName());
+	}
+
+
+	@Test
+	void gainMatches()
+	{
+		assumeTrue(vector != null, "vector kernels not available");
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			float[] x = signal(random);
+			float[] y = x.clone();
+			int from = random.nextInt(20);
+			int to = x.length - random.nextInt(20);
+			float g = 4.0f*random.nextFloat();
+			scalar.gain(x, from, to, g);
+			vector.gain(y, from, to, g);
+			assertBits(x, y, "seed "+seed);
+		}
+	}
+
+
+	@Test
+	void clipMatches()
+	{
+		assumeTrue(vector != null, "vector kernels not available");
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			float[] x = signal(random);
+			float[] y = x.clone();
+			int from = random.nextInt(20);
+			int to = x.length - random.nextInt(20);
+			float clipAt = random.nextFloat();
+			scalar.clip(x, from, to, clipAt);
+			vector.clip(y, from, to, clipAt);
+			assertBits(x, y, "seed "+seed);
+		}
+	}
+
+
+	@Test
+	void peakMatches()
+	{
+		assumeTrue(vector != null, "vector kernels not available");
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			float[] x = signal(random);
+			int from = random.nextInt(20);
+			int to = x.length - random.nextInt(20);
+			float start = (seed % 2 == 0) ? 0.0f : random.nextFloat();
+			assertEquals(Float.floatToIntBits(scalar.peak(x, from, to, start)), Float.floatToIntBits(vector.peak(x, from, to, start)), "seed "+seed);
+		}
+	}
+
+
+	@Test
+	void sumsWithinTolerance()
+	{
+		assumeTrue(vector != null, "vector kernels not available");
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			float[] x = signal(random);
+			int from = random.nextInt(20);
+			int to = x.length - random.nextInt(20);
+
+			float expected = scalar.sumSquares(x, from, to, 1.0f);
+			float actual = vector.sumSquares(x, from, to, 1.0f);
+			assertEquals(expected, actual, expected*SUM_TOLERANCE, "sumSquares, seed "+seed);
+
+			double[] expectedSums = { 2.0, 3.0 };
+			double[] actualSums = { 2.0, 3.0 };
+			scalar.absSums(x, from, to, expectedSums);
+			vector.absSums(x, from, to, actualSums);
+			assertEquals(expectedSums[0], actualSums[0], expectedSums[0]*SUM_TOLERANCE, "abs sum, seed "+seed);
+			assertEquals(expectedSums[1], actualSums[1], expectedSums[1]*SUM_TOLERANCE, "square sum, seed "+seed);
+		}
+	}
+
+
+	// Audio-like values with some negative zeros and overs, at a length that isn't a whole number of vectors
+	private static float[] signal(Random random)
+	{
+		float[] x = new float[40 + random.nextInt(MAX_LENGTH)];
+		for (int i=0;i<x.length;i++)
+		{
+			if (random.nextInt(100) == 0) x[i] = -0.0f;
+			else x[i] = (float) (random.nextGaussian()*0.4);
+		}
+		return x;
+	}
+
+
+	private static void assertBits(float[] expected, float[] actual, String what)
+	{
+		for (int i=0;i<expected.length;i++)
+		{
+			assertEquals(Float.floatToIntBits(expected[i]), Float.floatToIntBits(actual[i]), what+", index "+i);
+		}
+	}
+}
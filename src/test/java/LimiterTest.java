@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Nothing comes out of the Limiter above its ceiling, on either channel, whatever the block size and
+// lookahead: boosted noise, single-sample spikes, full-scale square waves and one-channel blocks.
+public class LimiterTest
+{
+	private static final float RATE = FrameReader.MIN_SAMPLE_RATE;
+	private static final int TRIALS = 60;
+
+	@Test
+	void neverExceedsCeiling() throws Exception
+	{
+		float[] ceilings = { 1.0f, 0.5f, 0.891f };
+		int[] lookaheads = { 1, 5, 20 };
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			float ceiling = ceilings[seed % ceilings.length];
+			int lookaheadMs = lookaheads[(seed/3) % lookaheads.length];
+			int channels = (seed % 5 == 0) ? 1 : 2;
+			float[][] frames = signal(random, seed % 4, channels, 5000 + random.nextInt(40000));
+			int length = frames[0].length;
+
+			Limiter limiter = new Limiter(ceiling, lookaheadMs, StereoPair.LIMITER_RELEASE_MS, RATE);
+			TestSignals.run(limiter, frames, 1 + random.nextInt(3000));
+
+			for (int c=0;c<channels;c++)
+			{
+				for (int i=0;i<length;i++)
+				{
+					assertTrue(Math.abs(frames[c][i]) <= ceiling, "seed "+seed+", channel "+c+", frame "+i+": "+frames[c][i]+" over "+ceiling);
+				}
+			}
+			assertTrue(limiter.getFramesLimited() > 0, "seed "+seed+" never limited");
+		}
+	}
+
+
+	// The delay lines the output up with the input: under the ceiling, nothing changes
+	@Test
+	void belowCeilingIsUnchanged() throws Exception
+	{
+		Random random = new Random(1L);
+		float[][] frames = new float[2][20000];
+		for (int i=0;i<frames[0].length;i++)
+		{
+			frames[0][i] = (float) (random.nextGaussian()*0.1);
+			frames[1][i] = (float) (random.nextGaussian()*0.1);
+		}
+		float[][] expected = TestSignals.copy(frames);
+
+		Limiter limiter = new Limiter(1.0f, StereoPair.LIMITER_LOOKAHEAD_MS, StereoPair.LIMITER_RELEASE_MS, RATE);
+		TestSignals.run(limiter, frames, 777);
+
+		assertEquals(0, limiter.getFramesLimited());
+		for (int c=0;c<2;c++)
+		{
+			for (int i=0;i<frames[c].length;i++)
+			{
+				assertEquals(expected[c][i], frames[c][i], 0.0f, "channel "+c+", frame "+i);
+			}
+		}
+	}
+
+
+	private static float[][] signal(Random random, int kind, int channels, int length)
+	{
+		float[][] frames = new float[channels][length];
+		for (int i=0;i<length;i++)
+		{
+			for (int c=0;c<channels;c++)
+			{
+				float x;
+				if (kind == 0) x = (float) (random.nextGaussian()*0.8);								// Boosted noise
+				else if (kind == 1) x = (random.nextInt(500) == 0) ? 4.0f*(random.nextFloat()-0.5f) : 0.05f*random.nextFloat();	// Spikes
+				else if (kind == 2) x = ((i/(50+c*7)) % 2 == 0) ? 1.5f : -1.5f;					// Square
+				else x = (float) (Math.sin(i*0.01)*3.0*Math.sin(i*0.0001+c));						// Swelling sine
+				frames[c][i] = x;
+			}
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,130 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// The meter against the EBU Tech 3341/3342 reference signals: a stereo 1khz sine reads its level in
+// LUFS, the relative gate drops quiet passages from the integrated loudness, and two levels 10db apart
+// give a range of 10 LU. Also at 44.1khz, where the K-weighting is redesigned for the rate.
+public class LoudnessMeterTest
+{
+	private static final double TOLERANCE = 0.1;	// LU, as the EBU tests allow
+
+	@Test
+	void sineReadsItsLevel()
+	{
+		float[] rates = { 48000.0f, 44100.0f };
+		for (float rate : rates)
+		{
+			LoudnessMeter meter = new LoudnessMeter(0, rate);
+			feed(meter, rate, 0, new double[] { 20.0 }, new double[] { -23.0 }, 4096);
+			assertEquals(-23.0, meter.getIntegrated(), TOLERANCE, rate+"hz integrated");
+			assertEquals(-23.0, meter.getShortTermMax(), TOLERANCE, rate+"hz short-term max");
+			assertEquals(-23.0, meter.getMomentaryMax(), TOLERANCE, rate+"hz momentary max");
+			assertEquals(0.0, meter.getLoudnessRange(), TOLERANCE, rate+"hz range");
+		}
+	}
+
+
+	// EBU Tech 3341 case 3: the -36db stretches fall under the relative gate
+	@Test
+	void relativeGate()
+	{
+		LoudnessMeter meter = new LoudnessMeter(0, 48000.0f);
+		feed(meter, 48000.0f, 0, new double[] { 10.0, 60.0, 10.0 }, new double[] { -36.0, -23.0, -36.0 }, 1000);
+		assertEquals(-23.0, meter.getIntegrated(), TOLERANCE);
+	}
+
+
+	// EBU Tech 3342 case 1: 20s at -20 then 20s at -30
+	@Test
+	void loudnessRange()
+	{
+		LoudnessMeter meter = new LoudnessMeter(0, 48000.0f);
+		feed(meter, 48000.0f, 0, new double[] { 20.0, 20.0 }, new double[] { -20.0, -30.0 }, 4096);
+		assertEquals(10.0, meter.getLoudnessRange(), 1.0);
+	}
+
+
+	@Test
+	void silenceIsGated()
+	{
+		LoudnessMeter meter = new LoudnessMeter(0, 48000.0f);
+		feed(meter, 48000.0f, 0, new double[] { 5.0 }, new double[] { Double.NEGATIVE_INFINITY }, 4096);
+		assertEquals(Double.NEGATIVE_INFINITY, meter.getIntegrated());
+	}
+
+
+	// Slices measured by separate meters from the same origin and merged read as one meter over the whole
+	@Test
+	void slicesMerge()
+	{
+		float rate = 44100.0f;
+		int origin = 12345;
+		LoudnessMeter whole = new LoudnessMeter(origin, rate);
+		feed(whole, rate, origin, new double[] { 8.0, 8.0 }, new double[] { -18.0, -27.0 }, 3000);
+
+		// The second slice starts mid-hop; its meter warms up on the second before it first
+		int split = origin + StereoPair.secondsToSamples(8, rate) + 777;
+		LoudnessMeter first = new LoudnessMeter(origin, rate);
+		LoudnessMeter second = new LoudnessMeter(origin, rate);
+		feedRange(first, rate, origin, origin, split, new double[] { 8.0, 8.0 }, new double[] { -18.0, -27.0 });
+		feedRange(second, rate, origin, split - (int) rate, split, new double[] { 8.0, 8.0 }, new double[] { -18.0, -27.0 });
+		second.clearSums();
+		feedRange(second, rate, origin, split, origin + StereoPair.secondsToSamples(16, rate), new double[] { 8.0, 8.0 }, new double[] { -18.0, -27.0 });
+		first.merge(second);
+
+		assertEquals(whole.getIntegrated(), first.getIntegrated(), 0.01);
+		assertEquals(whole.getLoudnessRange(), first.getLoudnessRange(), 0.01);
+		assertTrue(whole.getIntegrated() > -27.0 && whole.getIntegrated() < -18.0);
+	}
+
+
+	// Stereo 997hz sine, the same on both channels, in stretches of the given lengths (seconds) and levels
+	// (dbFS), starting at the origin
+	private static void feed(LoudnessMeter meter, float rate, int origin, double[] seconds, double[] levels, int blockSize)
+	{
+		int length = 0;
+		for (double s : seconds)
+		{
+			length += (int) (s*rate);
+		}
+		float[][] block = new float[2][blockSize];
+		for (int pos=origin;pos<origin+length;pos+=blockSize)
+		{
+			int n = Math.min(blockSize, origin+length-pos);
+			fill(block, n, pos, rate, origin, seconds, levels);
+			meter.process(block, 0, n, pos);
+		}
+	}
+
+
+	private static void feedRange(LoudnessMeter meter, float rate, int origin, int from, int to, double[] seconds, double[] levels)
+	{
+		float[][] block = new float[2][4096];
+		for (int pos=from;pos<to;pos+=4096)
+		{
+			int n = Math.min(4096, to-pos);
+			fill(block, n, pos, rate, origin, seconds, levels);
+			meter.process(block, 0, n, pos);
+		}
+	}
+
+
+	private static void fill(float[][] block, int n, int pos, float rate, int origin, double[] seconds, double[] levels)
+	{
+		for (int i=0;i<n;i++)
+		{
+			int p = pos+i-origin;
+			double t = p/(double) rate;
+			int k = 0;
+			while (k < seconds.length-1 && t >= seconds[k])
+			{
+				t -= seconds[k];
+				k++;
+			}
+			double amplitude = Math.pow(10.0, levels[k]/20.0);
+			block[0][i] = block[1][i] = (float) (amplitude*Math.sin(2.0*Math.PI*997.0*p/rate));
+		}
+	}
+}
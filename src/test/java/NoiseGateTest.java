@@ -0,0 +1,152 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// NoiseGate, fed in blocks of any size, comes out bit for bit the same as the forward-scanning
+// noiseReduce it replaced (kept below as the reference), with the same gap count. The signals are built
+// around the edge cases: gaps of exactly the minimum length and one either side of it, samples right on
+// the threshold, and a file that ends inside a gap.
+public class NoiseGateTest
+{
+	private static final float RATE = FrameReader.MIN_SAMPLE_RATE;
+	private static final int TRIALS = 200;
+
+	@Test
+	void matchesScanWithDefaults() throws Exception
+	{
+		for (int seed=0;seed<4;seed++)
+		{
+			assertMatches(seed, StereoPair.NOISE_THRESHOLD, StereoPair.NOISE_ATTACK_MS, StereoPair.NOISE_RELEASE_MS, StereoPair.NOISE_GAIN_FACTOR, StereoPair.NOISE_MIN_GAP_MS);
+		}
+	}
+
+
+	// Short times, so a lot of gaps fit in each trial
+	@Test
+	void matchesScanWithShortGaps() throws Exception
+	{
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			assertMatches(seed, StereoPair.NOISE_THRESHOLD, 3, 1, StereoPair.NOISE_GAIN_FACTOR, 5);
+		}
+	}
+
+
+	private static void assertMatches(int seed, float threshold, int attackMs, int releaseMs, float gainFactor, int minGapMs) throws Exception
+	{
+		Random random = new Random(seed);
+		int minGap = StereoPair.msToSamples(minGapMs, RATE);
+		float[][] frames = signal(random, threshold, minGap, 40);
+
+		float[][] expected = TestSignals.copy(frames);
+		int expectedGaps = noiseReduce(expected, threshold, attackMs, releaseMs, gainFactor, minGapMs);
+
+		int blockSize = 1 + random.nextInt(2*minGap);
+		NoiseGate gate = new NoiseGate(threshold, attackMs, releaseMs, gainFactor, minGapMs, RATE);
+		TestSignals.run(gate, frames, blockSize);
+
+		assertEquals(expectedGaps, gate.getGapCount(), "seed "+seed+" gaps");
+		for (int c=0;c<2;c++)
+		{
+			for (int i=0;i<frames[c].length;i++)
+			{
+				assertEquals(expected[c][i], frames[c][i], 0.0f, "seed "+seed+", block size "+blockSize+", channel "+c+", frame "+i);
+			}
+		}
+	}
+
+
+	// Alternating speech and quiet stretches. The quiet ones are around the minimum gap length, and some
+	// of their samples sit exactly on the threshold. Every other signal ends in a gap.
+	private static float[][] signal(Random random, float threshold, int minGap, int stretches)
+	{
+		int[] lengths = new int[stretches];
+		int length = 0;
+		for (int k=0;k<stretches;k++)
+		{
+			lengths[k] = (k % 2 == 0) ? 1 + random.nextInt(minGap) : minGap - 2 + random.nextInt(5) + ((random.nextInt(4) == 0) ? random.nextInt(3*minGap) : 0);
+			length += lengths[k];
+		}
+		if (random.nextBoolean()) lengths[stretches-1] = 0;
+
+		float[][] frames = new float[2][length];
+		int pos = 0;
+		for (int k=0;k<stretches;k++)
+		{
+			for (int i=0;i<lengths[k];i++,pos++)
+			{
+				float x;
+				if (k % 2 == 0) x = (random.nextInt(8) == 0) ? threshold : (float) (random.nextGaussian()*0.3);
+				else x = (random.nextInt(50) == 0) ? threshold : (float) (random.nextGaussian()*0.02);
+				frames[0][pos] = x;
+				frames[1][pos] = (float) (random.nextGaussian()*0.1);
+			}
+		}
+		return frames;
+	}
+
+
+	// StereoPair.noiseReduce before NoiseGate, over the whole of frames
+	private static int noiseReduce(float[][] frames, float threshold, int attackTimeMs, int releaseTimeMs, float gainFactor, int minGapLengthMs)
+	{
+		int attackTimeSamples = StereoPair.msToSamples(attackTimeMs, RATE);
+		int releaseTimeSamples = StereoPair.msToSamples(releaseTimeMs, RATE);
+		int minGapLengthSamples = StereoPair.msToSamples(minGapLengthMs, RATE);
+		int length = frames[0].length;
+
+		int gapCount = 0;
+		for (int i=0;i<length;i++)
+		{
+			if (Math.abs(frames[0][i]) < threshold)
+			{
+				int startOfGap = i;
+				int endOfGap = length;
+				for (int k=i;k<length;k++)
+				{
+					if (Math.abs(frames[0][k]) > threshold)
+					{
+						endOfGap = k;
+						break;
+					}
+				}
+				int gapLength = endOfGap - startOfGap;
+
+				if (gapLength > minGapLengthSamples)
+				{
+					gapCount++;
+
+					int startOfAttack = startOfGap;
+					int endOfAttack = startOfGap + attackTimeSamples;
+					int startOfRelease = endOfGap - releaseTimeSamples;
+					int endOfRelease = endOfGap;
+
+					for (int j=startOfGap;j<endOfGap;j++)
+					{
+						float modifiedGainFactor = gainFactor;
+						if (j >= startOfAttack && j <= endOfAttack)
+						{
+							float percentThroughAttack = (float) (j-startOfAttack)/attackTimeSamples;
+							modifiedGainFactor = 1 - (gainFactor*percentThroughAttack);
+						}
+						else if (j >= startOfRelease && j <= endOfRelease)
+						{
+							float percentThroughRelease = (float) (j-startOfRelease)/releaseTimeSamples;
+							modifiedGainFactor = 1 - (gainFactor*(1-percentThroughRelease));
+						}
+						else
+						{
+							modifiedGainFactor = 1 - gainFactor;
+						}
+
+						frames[0][j] = frames[0][j]*modifiedGainFactor;
+						frames[1][j] = frames[1][j]*modifiedGainFactor;
+					}
+				}
+				i = endOfGap + 1;
+			}
+		}
+		return gapCount;
+	}
+}
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// The off-heap store holds the same samples as the heap one, across chunk boundaries and once it has
+// spilled to its scratch file, and a job run on it gives the same bytes
+public class OffHeapSampleStoreTest
+{
+	@Test
+	void matchesHeapStore()
+	{
+		assertMatches(1024L*1024L*1024L);
+	}
+
+
+	// A budget of one chunk, so the rest is in the scratch file
+	@Test
+	void matchesHeapStoreWhenSpilled()
+	{
+		assertMatches(OffHeapSampleStore.CHUNK_FRAMES*8L);
+	}
+
+
+	@Test
+	void jobMatchesHeap() throws Exception
+	{
+		String input = TestSignals.speech(5L, 75, 0.1f, 7);
+		byte[] expected = Files.readAllBytes(Paths.get(TestSignals.full(input, "--no-analysis-cache")));
+		byte[] actual = Files.readAllBytes(Paths.get(TestSignals.full(input, "--no-analysis-cache", "--off-heap", "--ram-budget=2")));
+		assertArrayEquals(expected, actual);
+	}
+
+
+	// Appends, then reads, writes and sets at random, in blocks that straddle chunks
+	private static void assertMatches(long ramBudget)
+	{
+		Random random = new Random(ramBudget);
+		int length = 3*OffHeapSampleStore.CHUNK_FRAMES + 1234;
+		SampleStore heap = new HeapSampleStore();
+		SampleStore offHeap = new OffHeapSampleStore(ramBudget);
+		try
+		{
+			float[][] block = new float[2][50000];
+			heap.reserve(length);
+			offHeap.reserve(length);
+			for (int pos=0;pos<length;pos+=block[0].length)
+			{
+				int n = Math.min(block[0].length, length-pos);
+				fill(block, n, random);
+				heap.append(block, n);
+				offHeap.append(block, n);
+			}
+			assertEquals(length, offHeap.getLength());
+
+			for (int k=0;k<200;k++)
+			{
+				int n = 10 + random.nextInt(block[0].length-10);
+				int start = random.nextInt(length-n);
+				if (k % 3 == 0)
+				{
+					fill(block, n, random);
+					heap.write(block, 5, start, n-5);
+					offHeap.write(block, 5, start, n-5);
+				}
+				else
+				{
+					int i = random.nextInt(length);
+					float x = random.nextFloat();
+					heap.set(k % 2, i, x);
+					offHeap.set(k % 2, i, x);
+				}
+			}
+
+			float[][] expected = new float[2][block[0].length];
+			float[][] actual = new float[2][block[0].length];
+			for (int pos=0;pos<length;pos+=block[0].length)
+			{
+				int n = Math.min(block[0].length, length-pos);
+				heap.read(expected, 0, pos, n);
+				offHeap.read(actual, 0, pos, n);
+				assertArrayEquals(expected[0], actual[0], "left at "+pos);
+				assertArrayEquals(expected[1], actual[1], "right at "+pos);
+				assertEquals(heap.get(1, pos), offHeap.get(1, pos), 0.0f);
+			}
+		}
+		finally
+		{
+			offHeap.close();
+		}
+	}
+
+
+	private static void fill(float[][] block, int n, Random random)
+	{
+		for (int i=0;i<n;i++)
+		{
+			block[0][i] = 2.0f*random.nextFloat() - 1.0f;
+			block[1][i] = 2.0f*random.nextFloat() - 1.0f;
+		}
+	}
+}
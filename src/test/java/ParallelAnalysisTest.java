@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+// The sliced analysis agrees with StereoPair.analyzeSerial (see ParallelAnalysis for the tolerance). A
+// float sum of squares drifted by about half a percent on these three minute signals, so this catches one
+// coming back on either side.
+public class ParallelAnalysisTest
+{
+	private static final double TOLERANCE = 1e-5;	// Relative
+
+	@Test
+	void quietMatchesSerial() throws Exception
+	{
+		assertMatches(TestSignals.speech(3L, 180, 0.05f, 0));
+	}
+
+
+	@Test
+	void loudMatchesSerial() throws Exception
+	{
+		assertMatches(TestSignals.speech(4L, 180, 1.0f, 3));
+	}
+
+
+	private static void assertMatches(String file) throws Exception
+	{
+		StereoPair s = new StereoPair(file);
+		s.normalize();
+
+		s.analyze();
+		AnalysisCache.Entry parallel = s.getAnalysis();
+		s.analyzeSerial();
+		AnalysisCache.Entry serial = s.getAnalysis();
+
+		assertClose(serial.RMSL, parallel.RMSL, "RMS left");
+		assertClose(serial.RMSR, parallel.RMSR, "RMS right");
+		for (int i=0;i<StereoPair.BANDS_HZ.length;i++)
+		{
+			assertClose(serial.bandRMS[i], parallel.bandRMS[i], "band "+i);
+		}
+		assertEquals(serial.loudness, parallel.loudness, 0.01, "integrated loudness");
+	}
+
+
+	private static void assertClose(float expected, float actual, String what)
+	{
+		assertEquals(expected, actual, Math.abs(expected)*TOLERANCE, what);
+	}
+}
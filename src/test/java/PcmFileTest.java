@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import javax.sound.sampled.AudioFileFormat;
+
+import org.junit.jupiter.api.Test;
+
+// An RF64 file, which javax.sound won't open, reads back through PcmFile and FrameReader with the samples
+// the writer quantized, in blocks that don't line up with the writer's, and BetterBot's header check
+// finds its length
+public class PcmFileTest
+{
+	@Test
+	void rf64ReadsBack() throws Exception
+	{
+		int length = 3*PcmWriter.BLOCK_FRAMES + 123;
+		float[][] frames = PcmWriterTest.ramp(2, length);
+		String file = PcmWriterTest.writeRf64(frames);
+
+		PcmFile pcm = new PcmFile(file);
+		assertEquals(AudioFileFormat.Type.WAVE, pcm.getFileType());
+		assertEquals(2, pcm.getFormat().getChannels());
+		assertEquals(44100.0f, pcm.getFormat().getSampleRate(), 0.0f);
+		assertEquals(length, pcm.getFrameLength());
+		float[][] read = new float[2][length];
+		assertEquals(length, pcm.read(read, 0, 0, length + 1000));
+		assertQuantized(frames, read, 0, length);
+		pcm.close();
+
+		FrameReader reader = new FrameReader(file, 1000);
+		assertTrue(reader.isMapped());
+		assertEquals(length, reader.getFrameLength());
+		float[][] block = new float[2][1000];
+		int position = 0;
+		int n;
+		while ((n = reader.read(block, 1000)) > 0)
+		{
+			for (int c=0;c<2;c++)
+			{
+				System.arraycopy(block[c], 0, read[c], position, n);
+			}
+			position += n;
+		}
+		reader.close();
+		assertEquals(length, position);
+		assertQuantized(frames, read, 0, length);
+
+		AudioFileFormat header = BetterBot.readHeader(file);
+		assertEquals(AudioFileFormat.Type.WAVE, header.getType());
+		assertEquals(length, header.getFrameLength());
+	}
+
+
+	private static void assertQuantized(float[][] expected, float[][] actual, int from, int to)
+	{
+		for (int c=0;c<2;c++)
+		{
+			for (int i=from;i<to;i++)
+			{
+				assertEquals(PcmWriter.quantize(expected[c][i])/32768.0f, actual[c][i], 0.0f, "channel "+c+", frame "+i);
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.Test;
+
+// What PcmWriter writes reads back through javax.sound with the right format and samples, overs
+// saturate instead of wrapping, a multitrack WAV is WAVE_FORMAT_EXTENSIBLE, and a WAV too long for RIFF
+// sizes gets an RF64 header
+public class PcmWriterTest
+{
+	@Test
+	void saturates()
+	{
+		assertEquals(Short.MAX_VALUE, PcmWriter.quantize(1.0f));
+		assertEquals(Short.MAX_VALUE, PcmWriter.quantize(1.5f));
+		assertEquals(Short.MAX_VALUE, PcmWriter.quantize(Float.POSITIVE_INFINITY));
+		assertEquals(Short.MIN_VALUE, PcmWriter.quantize(-1.0f));
+		assertEquals(Short.MIN_VALUE, PcmWriter.quantize(-7.0f));
+		assertEquals(16384, PcmWriter.quantize(0.5f));
+		assertEquals(-16384, PcmWriter.quantize(-0.5f));
+		assertEquals(0, PcmWriter.quantize(0.0f));
+	}
+
+
+	@Test
+	void wavReadsBack() throws Exception
+	{
+		assertReadsBack(AudioFileFormat.Type.WAVE, 2, 44100.0f);
+		assertReadsBack(AudioFileFormat.Type.WAVE, 2, 48000.0f);
+	}
+
+
+	@Test
+	void aiffReadsBack() throws Exception
+	{
+		assertReadsBack(AudioFileFormat.Type.AIFF, 2, 44100.0f);
+		assertReadsBack(AudioFileFormat.Type.AIFF, 2, 96000.0f);
+	}
+
+
+	// Multitrack output: more than two channels make the fmt chunk WAVE_FORMAT_EXTENSIBLE, with PCM as the
+	// subformat; javax.sound reads it back like any other WAV
+	@Test
+	void multichannelWavIsExtensible() throws Exception
+	{
+		assertReadsBack(AudioFileFormat.Type.WAVE, 4, 44100.0f);
+		assertReadsBack(AudioFileFormat.Type.WAVE, 6, 48000.0f);
+		assertReadsBack(AudioFileFormat.Type.AIFF, 4, 44100.0f);
+
+		File file = File.createTempFile("betterbot-test-writer-", ".wav");
+		file.deleteOnExit();
+		PcmWriter writer = new PcmWriter(file.getPath(), AudioFileFormat.Type.WAVE, 1000, 4, 44100.0f);
+		writer.write(ramp(4, 1000), 0, 1000);
+		writer.close();
+
+		ByteBuffer h = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getPath()))).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals("fmt ", id(h, 12));
+		assertEquals(40, h.getInt(16));
+		assertEquals(0xfffe, h.getShort(20) & 0xffff);
+		assertEquals(4, h.getShort(22));
+		assertEquals(8, h.getShort(32));				// Frame size
+		assertEquals(22, h.getShort(36));				// Extension size
+		assertEquals(16, h.getShort(38));				// Valid bits
+		assertEquals(1, h.getInt(44));					// KSDATAFORMAT_SUBTYPE_PCM
+		assertEquals(0, h.getShort(48));
+		assertEquals(0x10, h.getShort(50));
+		assertEquals(0x800000aa00389b71L, h.order(ByteOrder.BIG_ENDIAN).getLong(52));
+		h.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals("data", id(h, 60));
+		assertEquals(8000, h.getInt(64));
+		assertEquals(68 + 8000, h.capacity());
+	}
+
+
+	// Told more frames are coming than a RIFF size holds, the writer picks RF64: sizes of 0xFFFFFFFF and
+	// the real ones in ds64
+	@Test
+	void rf64Header() throws Exception
+	{
+		int length = PcmWriter.BLOCK_FRAMES + 99;
+		String file = writeRf64(ramp(2, length));
+
+		ByteBuffer h = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file))).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals("RF64", id(h, 0));
+		assertEquals(-1, h.getInt(4));
+		assertEquals("WAVE", id(h, 8));
+		assertEquals("ds64", id(h, 12));
+		assertEquals(28, h.getInt(16));
+		assertEquals(h.capacity()-8, h.getLong(20));	// RIFF size
+		assertEquals(length*4L, h.getLong(28));			// Data size
+		assertEquals(length, h.getLong(36));			// Sample count
+		assertEquals("fmt ", id(h, 48));
+		assertEquals(1, h.getShort(56));				// PCM
+		assertEquals("data", id(h, 72));
+		assertEquals(-1, h.getInt(76));
+		assertEquals(80 + length*4, h.capacity());
+	}
+
+
+	// A short RF64 file (the writer expects more than a RIFF size holds, gets fewer)
+	static String writeRf64(float[][] frames) throws Exception
+	{
+		File file = File.createTempFile("betterbot-test-rf64-", ".wav");
+		file.deleteOnExit();
+		PcmWriter writer = new PcmWriter(file.getPath(), AudioFileFormat.Type.WAVE, 0x100000000L, frames.length, 44100.0f);
+		assertTrue(writer.rf64);
+		writer.write(frames, 0, frames[0].length);
+		writer.close();
+		return file.getPath();
+	}
+
+
+	private static String id(ByteBuffer b, int offset)
+	{
+		return new String(new byte[] { b.get(offset), b.get(offset+1), b.get(offset+2), b.get(offset+3) }, StandardCharsets.US_ASCII);
+	}
+
+
+	// Writes a ramp with overs at both ends, in uneven blocks, and reads it back
+	static void assertReadsBack(AudioFileFormat.Type type, int channels, float rate) throws Exception
+	{
+		int length = 3*PcmWriter.BLOCK_FRAMES + 123;
+		float[][] frames = ramp(channels, length);
+
+		File file = File.createTempFile("betterbot-test-writer-", type == AudioFileFormat.Type.WAVE ? ".wav" : ".aif");
+		file.deleteOnExit();
+		PcmWriter writer = new PcmWriter(file.getPath(), type, length, channels, rate);
+		writer.write(frames, 0, 1000);
+		writer.write(frames, 1000, length);
+		writer.close();
+		assertEquals(length, writer.getFrameCount());
+
+		AudioInputStream ais = AudioSystem.getAudioInputStream(file);
+		AudioFormat format = ais.getFormat();
+		assertEquals(channels, format.getChannels());
+		assertEquals(rate, format.getSampleRate(), 0.0f);
+		assertEquals(16, format.getSampleSizeInBits());
+		assertEquals(length, ais.getFrameLength());
+
+		ByteBuffer bytes = ByteBuffer.wrap(ais.readAllBytes()).order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		ais.close();
+		assertEquals(length*channels*2, bytes.remaining());
+		for (int i=0;i<length;i++)
+		{
+			for (int c=0;c<channels;c++)
+			{
+				assertEquals(PcmWriter.quantize(frames[c][i]), bytes.getShort(), "frame "+i+", channel "+c);
+			}
+		}
+	}
+
+
+	// -1.5 to 1.5, a different slope on each channel
+	static float[][] ramp(int channels, int length)
+	{
+		float[][] frames = new float[channels][length];
+		for (int c=0;c<channels;c++)
+		{
+			for (int i=0;i<length;i++)
+			{
+				frames[c][i] = (3.0f*i/length - 1.5f) * (1.0f - 0.1f*c);
+			}
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// The streaming PeakDetector and PeakReduce, fed in blocks of any size, come out bit for bit the same as
+// StereoPair.peakReduce on the whole file: noise, a sine in noise, and sparse steps, which between them
+// hit overlapping regions and peaks that run up to a block boundary.
+public class PeakDetectorTest
+{
+	private static final float THRESHOLD = 0.5f;
+	private static final int TRIALS = 90;
+
+	@Test
+	void matchesPeakReduce() throws Exception
+	{
+		for (int seed=0;seed<TRIALS;seed++)
+		{
+			Random random = new Random(seed);
+			int length = 2000 + random.nextInt(20000);
+			float[][] frames = new float[2][length];
+			for (int i=0;i<length;i++)
+			{
+				for (int c=0;c<2;c++)
+				{
+					double x;
+					if (seed % 3 == 0) x = random.nextGaussian()*0.5;
+					else if (seed % 3 == 1) x = Math.sin(i*0.3+c)*0.8 + random.nextGaussian()*0.3;
+					else x = (random.nextInt(5) == 0 ? 0 : Math.signum(random.nextGaussian())) * random.nextDouble();
+					frames[c][i] = (float) x;
+				}
+			}
+
+			// In memory, from the 16-bit file
+			StereoPair s = new StereoPair(TestSignals.write(frames));
+			float[][] input = new float[2][length];
+			s.samples.read(input, 0, 0, length);
+			s.peakReduce(THRESHOLD);
+			float[][] expected = new float[2][length];
+			s.samples.read(expected, 0, 0, length);
+
+			// Streamed, a detecting pass then a reducing one
+			int blockSize = 1 + random.nextInt(700);
+			Stages.PeakDetector left = new Stages.PeakDetector(THRESHOLD, 0);
+			Stages.PeakDetector right = new Stages.PeakDetector(THRESHOLD, 1);
+			float[][] actual = TestSignals.copy(input);
+			TestSignals.run(left, actual, blockSize);
+			TestSignals.run(right, actual, blockSize);
+			left.finish(length);
+			right.finish(length);
+			TestSignals.run(new Stages.PeakReduce(left.getRegions(), 0), actual, blockSize);
+			TestSignals.run(new Stages.PeakReduce(right.getRegions(), 1), actual, blockSize);
+
+			for (int c=0;c<2;c++)
+			{
+				for (int i=0;i<length;i++)
+				{
+					assertEquals(expected[c][i], actual[c][i], 0.0f, "seed "+seed+", block size "+blockSize+", channel "+c+", frame "+i);
+				}
+			}
+		}
+	}
+}
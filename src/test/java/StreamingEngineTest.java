@@ -0,0 +1,65 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// The streaming engine gives the same bytes as the in-memory chain, with the limiter and with
+// --limiter=peak-reduce (whose PeakDetector has to find the same regions as StereoPair.peakReduce)
+public class StreamingEngineTest
+{
+	static String quiet;	// Needs a boost, so the limiter and peak reduce run
+	static String loud;		// Peaks near full scale, with clicks
+
+	@BeforeAll
+	static void generate() throws Exception
+	{
+		quiet = TestSignals.speech(1L, 75, 0.1f, 7);
+		loud = TestSignals.speech(2L, 75, 1.0f, 5);
+	}
+
+
+	@Test
+	void matchesInMemory() throws Exception
+	{
+		assertSame(quiet);
+		assertSame(loud);
+	}
+
+
+	@Test
+	void matchesInMemoryWithPeakReduce() throws Exception
+	{
+		assertSame(quiet, "--limiter=peak-reduce");
+		assertSame(loud, "--limiter=peak-reduce");
+	}
+
+
+	// A block size that doesn't divide the file, so passes end part way through a block
+	@Test
+	void matchesInMemoryWithOddBlocks() throws Exception
+	{
+		byte[] expected = Files.readAllBytes(Paths.get(TestSignals.full(quiet, "--no-analysis-cache")));
+		byte[] actual = Files.readAllBytes(Paths.get(TestSignals.full(quiet, "--no-analysis-cache", "--streaming", "--block-size=1000")));
+		assertArrayEquals(expected, actual);
+	}
+
+
+	private static void assertSame(String input, String... options) throws Exception
+	{
+		String[] inMemory = new String[options.length+1];
+		String[] streaming = new String[options.length+2];
+		inMemory[0] = streaming[0] = "--no-analysis-cache";
+		for (int i=0;i<options.length;i++)
+		{
+			inMemory[i+1] = streaming[i+1] = options[i];
+		}
+		streaming[options.length+1] = "--streaming";
+
+		byte[] expected = Files.readAllBytes(Paths.get(TestSignals.full(input, inMemory)));
+		byte[] actual = Files.readAllBytes(Paths.get(TestSignals.full(input, streaming)));
+		assertArrayEquals(expected, actual, input);
+	}
+}
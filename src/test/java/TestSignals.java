@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+
+// Generated signals for the tests, written to temporary WAV files at 44.1khz
+public class TestSignals
+{
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+	private static final int BLOCK_SIZE = 8192;
+	private static final float RATE = FrameReader.MIN_SAMPLE_RATE;
+
+	// Speech-like stereo: noise shaped into 4hz syllables and phrases, with pauses at the noise floor, so
+	// phrase detection, the noise gate and the limiter all have something to do. level scales the voice
+	// (1.0 peaks near full scale, 0.1 needs a boost that runs into the limiter), and every clickEvery
+	// seconds there's a one-sample click at full scale (0 for none).
+	public static String speech(long seed, int seconds, float level, int clickEvery) throws IOException
+	{
+		File file = File.createTempFile("betterbot-test-speech-", ".wav");
+		file.deleteOnExit();
+
+		Random random = new Random(seed);
+		int frames = StereoPair.secondsToSamples(seconds, RATE);
+		int clickFrames = StereoPair.secondsToSamples(clickEvery, RATE);
+		float[][] block = new float[2][BLOCK_SIZE];
+
+		boolean talking = false;
+		int remaining = 0;
+		float lowL = 0.0f, lowR = 0.0f;
+
+		PcmWriter writer = new PcmWriter(file.getPath(), AudioFileFormat.Type.WAVE, frames);
+		for (int pos=0;pos<frames;pos+=BLOCK_SIZE)
+		{
+			int n = Math.min(BLOCK_SIZE, frames-pos);
+			for (int i=0;i<n;i++)
+			{
+				int p = pos+i;
+				if (remaining-- <= 0)
+				{
+					talking = !talking;
+					remaining = StereoPair.msToSamples(talking ? 2000 + random.nextInt(4000) : 300 + random.nextInt(1200), RATE);
+				}
+
+				lowL += 0.2f * ((2.0f*random.nextFloat() - 1.0f) - lowL);
+				lowR += 0.2f * ((2.0f*random.nextFloat() - 1.0f) - lowR);
+				float syllable = (float) Math.abs(Math.sin(2.0*Math.PI*4.0*p/RATE));
+				float l = (talking ? 0.9f*level*syllable : 0.001f) * lowL;
+				float r = (talking ? 0.9f*level*syllable : 0.001f) * (0.8f*lowR + 0.2f*lowL);
+				if (clickFrames > 0 && p % clickFrames == clickFrames/2)
+				{
+					l = 0.99f;
+					r = -0.99f;
+				}
+				block[LEFT][i] = l;
+				block[RIGHT][i] = r;
+			}
+			writer.write(block, 0, n);
+		}
+		writer.close();
+		return file.getPath();
+	}
+
+
+	// Writes frames to a temporary WAV file, as 16-bit
+	public static String write(float[][] frames) throws IOException
+	{
+		File file = File.createTempFile("betterbot-test-", ".wav");
+		file.deleteOnExit();
+		PcmWriter writer = new PcmWriter(file.getPath(), AudioFileFormat.Type.WAVE, frames[0].length);
+		writer.write(frames, 0, frames[0].length);
+		writer.close();
+		return file.getPath();
+	}
+
+
+	// A temporary output file name
+	public static String output() throws IOException
+	{
+		File file = File.createTempFile("betterbot-test-out-", ".wav");
+		file.deleteOnExit();
+		return file.getPath();
+	}
+
+
+	// Runs a FULL job with these options, returns the output file
+	public static String full(String input, String... options) throws Exception
+	{
+		String output = output();
+		Job job = new Job(input, output, BetterBot.Mode.FULL, Options.parse(options, 0));
+		int status = job.call();
+		if (status != BetterBot.RETURN_OK) throw new AssertionError(input+": returned "+status);
+		return output;
+	}
+
+
+	// Runs one stage over frames in place, in blocks of blockSize, the way StereoPair.applyStage does.
+	// A DelayStage's frames are written back where they came from.
+	public static void run(BlockStage stage, final float[][] frames, int blockSize) throws IOException
+	{
+		List<BlockStage> stages = new ArrayList<BlockStage>();
+		stages.add(stage);
+		StageChain chain = new StageChain(stages);
+		StageChain.Output output = new StageChain.Output()
+		{
+			public void write(float[][] block, int from, int to, int position)
+			{
+				for (int c=0;c<frames.length;c++)
+				{
+					System.arraycopy(block[c], from, frames[c], position, to-from);
+				}
+			}
+		};
+
+		int length = frames[0].length;
+		float[][] block = new float[frames.length][blockSize];
+		for (int pos=0;pos<length;pos+=blockSize)
+		{
+			int n = Math.min(blockSize, length-pos);
+			for (int c=0;c<frames.length;c++)
+			{
+				System.arraycopy(frames[c], pos, block[c], 0, n);
+			}
+			chain.process(block, 0, n, pos, output);
+		}
+		chain.finish(block, output);
+	}
+
+
+	public static float[][] copy(float[][] frames)
+	{
+		float[][] c = new float[frames.length][];
+		for (int i=0;i<frames.length;i++)
+		{
+			c[i] = frames[i].clone();
+		}
+		return c;
+	}
+}
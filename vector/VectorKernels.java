@@ -0,0 +1,98 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Kernels on the incubating Vector API, at the widest vector the CPU has (AVX2 = 8 floats, AVX-512 = 16).
+// Kept out of the main source directory because it only compiles and loads with the module added:
+//
+//   javac -d classes *.java
+//   javac --add-modules jdk.incubator.vector -cp classes -d classes vector/VectorKernels.java
+//   java --add-modules jdk.incubator.vector -cp classes BetterBot ...
+//
+// With Maven: mvn -Pvector package.
+//
+// gain, clip and peak give the same bits as ScalarKernels. sumSquares and absSums add in lane order, so
+// their sums differ from the scalar ones in the last bits, as any reordering would: within 1e-4 relative
+// over a block of up to 64k samples (about 1e-5 measured). KernelsTest checks both.
+public class VectorKernels implements Kernels
+{
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	private final Kernels tail = new ScalarKernels();	// For whatever's left over after the last full vector
+
+	public void gain(float[] x, int from, int to, float g)
+	{
+		int i = from;
+		int bound = from + SPECIES.loopBound(to-from);
+		for (;i<bound;i+=SPECIES.length())
+		{
+			FloatVector.fromArray(SPECIES, x, i).mul(g).intoArray(x, i);
+		}
+		tail.gain(x, i, to, g);
+	}
+
+
+	public void clip(float[] x, int from, int to, float clipAt)
+	{
+		int i = from;
+		int bound = from + SPECIES.loopBound(to-from);
+		for (;i<bound;i+=SPECIES.length())
+		{
+			FloatVector.fromArray(SPECIES, x, i).max(-clipAt).min(clipAt).intoArray(x, i);
+		}
+		tail.clip(x, i, to, clipAt);
+	}
+
+
+	public float peak(float[] x, int from, int to, float peak)
+	{
+		int i = from;
+		int bound = from + SPECIES.loopBound(to-from);
+		FloatVector max = FloatVector.zero(SPECIES);
+		for (;i<bound;i+=SPECIES.length())
+		{
+			max = max.max(FloatVector.fromArray(SPECIES, x, i).abs());
+		}
+		peak = Math.max(peak, max.reduceLanes(VectorOperators.MAX));
+		return tail.peak(x, i, to, peak);
+	}
+
+
+	public float sumSquares(float[] x, int from, int to, float sum)
+	{
+		int i = from;
+		int bound = from + SPECIES.loopBound(to-from);
+		FloatVector acc = FloatVector.zero(SPECIES);
+		for (;i<bound;i+=SPECIES.length())
+		{
+			FloatVector v = FloatVector.fromArray(SPECIES, x, i);
+			acc = v.fma(v, acc);
+		}
+		sum += acc.reduceLanes(VectorOperators.ADD);
+		return tail.sumSquares(x, i, to, sum);
+	}
+
+
+	public void absSums(float[] x, int from, int to, double[] sums)
+	{
+		int i = from;
+		int bound = from + SPECIES.loopBound(to-from);
+		FloatVector absAcc = FloatVector.zero(SPECIES);
+		FloatVector squareAcc = FloatVector.zero(SPECIES);
+		for (;i<bound;i+=SPECIES.length())
+		{
+			FloatVector a = FloatVector.fromArray(SPECIES, x, i).abs();
+			absAcc = absAcc.add(a);
+			squareAcc = a.fma(a, squareAcc);
+		}
+		sums[0] += absAcc.reduceLanes(VectorOperators.ADD);
+		sums[1] += squareAcc.reduceLanes(VectorOperators.ADD);
+		tail.absSums(x, i, to, sums);
+	}
+
+
+	public String getName()
+	{
+		return "vector ("+SPECIES.length()+" floats)";
+	}
+}